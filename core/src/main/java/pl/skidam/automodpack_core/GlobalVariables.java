@@ -35,6 +35,12 @@ public class GlobalVariables {
     // Switches - optional or required packs, chosen by the player, only one can be installed at a time
     public static final Path hostContentModpackDir = hostModpackDir.resolve("main");
     public static Path hostModpackContentFile = hostModpackDir.resolve("automodpack-content.json");
+    public static final Path hostModpackCacheDir = hostModpackDir.resolve("cache");
+    public static final Path hostModpackDictionaryFile = hostModpackDir.resolve("automodpack-dictionary.zstd");
+    public static final Path hostModpackVersionsDir = hostModpackDir.resolve("versions");
+    public static final Path hostModpackPatchesDir = hostModpackDir.resolve("patches");
+    public static final Path hostModpackContentVersionsDir = hostModpackDir.resolve("content-versions");
+    public static final Path hostModpackContentDiffsDir = hostModpackDir.resolve("content-diffs");
     public static Path serverConfigFile = automodpackDir.resolve("automodpack-server.json");
     public static Path serverCoreConfigFile = automodpackDir.resolve("automodpack-core.json");
     public static final Path privateDir = automodpackDir.resolve(".private");
@@ -48,6 +54,7 @@ public class GlobalVariables {
     public static final Path clientConfigFile = automodpackDir.resolve("automodpack-client.json");
     public static final Path clientSecretsFile = privateDir.resolve("automodpack-client-secrets.json");
     public static final Path modpacksDir = automodpackDir.resolve("modpacks");
+    public static final Path dictionariesDir = automodpackDir.resolve("dictionaries");
 
     public static final String clientConfigFileOverrideResource = "overrides-automodpack-client.json";
     public static String clientConfigOverride; // read from inside a jar file on preload, used instead of clientConfigFile if exists
@@ -3,22 +3,36 @@ package pl.skidam.automodpack_core.auth;
 import pl.skidam.automodpack_core.GlobalVariables;
 import pl.skidam.automodpack_core.config.ConfigTools;
 import pl.skidam.automodpack_core.config.Jsons;
+import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
 
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SecretsStore {
-    private static class SecretsCache {
+    static class SecretsCache {
         private final ConcurrentMap<String, Secrets.Secret> cache;
+        private final ConcurrentMap<String, String> keysBySecret; // secret, key
         private Jsons.SecretsFields db;
         private final Path configFile;
+        private final long flushDelayMs;
+        private final boolean expiring;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private ScheduledExecutorService writer;
 
-        public SecretsCache(Path configFile) {
+        /**
+         * @param flushDelayMs how long saved secrets are batched in memory before the file is written, 0 to write it on every save
+         * @param expiring whether secrets older than the secret lifetime from the server config get removed
+         */
+        public SecretsCache(Path configFile, long flushDelayMs, boolean expiring) {
             this.configFile = configFile;
+            this.flushDelayMs = flushDelayMs;
+            this.expiring = expiring;
             this.cache = new ConcurrentHashMap<>();
+            this.keysBySecret = new ConcurrentHashMap<>();
         }
 
         public synchronized void load() {
@@ -27,10 +41,23 @@ public class SecretsStore {
             db = ConfigTools.load(configFile, Jsons.SecretsFields.class);
             if (db != null && db.secrets != null && !db.secrets.isEmpty()) {
                 cache.putAll(db.secrets);
+                db.secrets.forEach((key, secret) -> {
+                    if (secret != null && secret.secret() != null)
+                        keysBySecret.put(secret.secret(), key);
+                });
             }
+            if (db == null) {
+                db = new Jsons.SecretsFields();
+            }
+            removeExpired();
         }
 
+        // Writes a snapshot of the cache, secrets saved while writing are written by the next flush
         public synchronized void save() {
+            load();
+            flushScheduled.set(false);
+            removeExpired();
+            db.secrets = new HashMap<>(cache);
             ConfigTools.save(configFile, db);
         }
 
@@ -39,38 +66,87 @@ public class SecretsStore {
             return cache.get(key);
         }
 
+        public Map.Entry<String, Secrets.Secret> getBySecret(String secret) {
+            load();
+            String key = keysBySecret.get(secret);
+            if (key == null)
+                return null;
+            Secrets.Secret value = cache.get(key);
+            if (value == null || !Objects.equals(value.secret(), secret)) // Replaced in the meantime
+                return null;
+            return Map.entry(key, value);
+        }
+
         public void save(String key, Secrets.Secret secret) throws IllegalArgumentException {
             if (key == null || key.isBlank() || secret == null || secret.secret().isBlank())
                 throw new IllegalArgumentException("Key or secret cannot be null or blank");
             load();
-            cache.put(key, secret);
-            if (db == null) {
-                db = new Jsons.SecretsFields();
+            Secrets.Secret previous = cache.put(key, secret);
+            keysBySecret.put(secret.secret(), key);
+            if (previous != null && previous.secret() != null && !previous.secret().equals(secret.secret())) {
+                keysBySecret.remove(previous.secret(), key);
+            }
+
+            if (flushDelayMs <= 0) {
+                save();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                getWriter().schedule(() -> save(), flushDelayMs, TimeUnit.MILLISECONDS);
             }
-            db.secrets.put(key, secret);
-            save();
         }
-    }
 
-    private static final SecretsCache hostSecrets = new SecretsCache(GlobalVariables.serverSecretsFile);
-    private static final SecretsCache clientSecrets = new SecretsCache(GlobalVariables.clientSecretsFile);
+        public void flush() {
+            if (flushScheduled.get()) {
+                save();
+            }
+        }
 
-    public static Map.Entry<String, Secrets.Secret>  getHostSecret(String secret) {
-        hostSecrets.load();
-        for (var entry : hostSecrets.cache.entrySet()) {
-            var thisSecret = entry.getValue().secret();
-            if (Objects.equals(thisSecret, secret)) {
-                return entry;
+        // Expired secrets are rejected anyway, they would only make the file grow with every player who ever joined
+        private void removeExpired() {
+            if (!expiring || GlobalVariables.serverConfig == null)
+                return;
+            long expiredBefore = System.currentTimeMillis() / 1000 - GlobalVariables.serverConfig.secretLifetime * 3600;
+            cache.forEach((key, secret) -> {
+                if (secret.timestamp() == null || secret.timestamp() <= expiredBefore) {
+                    if (cache.remove(key, secret) && secret.secret() != null) {
+                        keysBySecret.remove(secret.secret(), key);
+                    }
+                }
+            });
+        }
+
+        private synchronized ScheduledExecutorService getWriter() {
+            if (writer == null) {
+                writer = Executors.newSingleThreadScheduledExecutor(new CustomThreadFactoryBuilder().setNameFormat("AutoModpackSecretsWriter-%d").setDaemon(true).build());
             }
+            return writer;
         }
+    }
 
-        return null;
+    private static final SecretsCache hostSecrets = new SecretsCache(GlobalVariables.serverSecretsFile, 5000, true); // Saved on every login, written in batches off the server thread
+    private static final SecretsCache clientSecrets = new SecretsCache(GlobalVariables.clientSecretsFile, 0, false); // The game may restart right after saving
+
+    public static Map.Entry<String, Secrets.Secret> getHostSecret(String secret) {
+        return hostSecrets.getBySecret(secret);
     }
 
     public static void saveHostSecret(String uuid, Secrets.Secret secret) {
         hostSecrets.save(uuid, secret);
     }
 
+    /**
+     * Loads host secrets ahead of the first login, so it doesn't wait for the file.
+     */
+    public static void loadHostSecrets() {
+        hostSecrets.load();
+    }
+
+    /**
+     * Writes host secrets which are still waiting to be written, call before the server shuts down.
+     */
+    public static void flushHostSecrets() {
+        hostSecrets.flush();
+    }
+
     public static Secrets.Secret getClientSecret(String modpack) {
         return clientSecrets.get(modpack);
     }
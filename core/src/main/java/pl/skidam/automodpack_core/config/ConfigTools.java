@@ -5,6 +5,9 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
 
+import pl.skidam.automodpack_core.utils.ModpackContentCodec;
+
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -95,11 +98,25 @@ public class ConfigTools {
 
 
     // Modpack content stuff
+    // Loads the encoded cache of the content file if it's up to date, the content file itself may be encoded too, e.g. when received from the server
     public static Jsons.ModpackContentFields loadModpackContent(Path modpackContentFile) {
+        var optionalCachePath = ModpackContentCodec.getValidCachePath(modpackContentFile);
+        if (optionalCachePath.isPresent()) {
+            try {
+                return ModpackContentCodec.decode(Files.readAllBytes(optionalCachePath.get()));
+            } catch (Exception e) {
+                LOGGER.warn("Couldn't load modpack content cache {}, loading the content file - {}", optionalCachePath.get(), e.getMessage());
+            }
+        }
+
         try {
             if (Files.isRegularFile(modpackContentFile)) {
-                String json = Files.readString(modpackContentFile);
-                return GSON.fromJson(json, Jsons.ModpackContentFields.class);
+                byte[] data = Files.readAllBytes(modpackContentFile);
+                if (ModpackContentCodec.isEncoded(data)) {
+                    return ModpackContentCodec.decode(data);
+                }
+
+                return GSON.fromJson(new String(data, StandardCharsets.UTF_8), Jsons.ModpackContentFields.class);
             }
         } catch (Exception e) {
             LOGGER.error("Couldn't load modpack content! {}", modpackContentFile.toAbsolutePath().normalize(), e);
@@ -114,6 +131,9 @@ public class ConfigTools {
             }
 
             Files.writeString(modpackContentFile, GSON.toJson(configObject), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            // Records the size and modification time of the content file, so the cache isn't used once the content file changes
+            ModpackContentCodec.writeCache(modpackContentFile, configObject);
         } catch (Exception e) {
             LOGGER.error("Couldn't save modpack content! " + configObject.getClass());
             e.printStackTrace();
@@ -36,11 +36,20 @@ public class Jsons {
 //        public boolean velocityMode = false; compat plugin... someday I hope
 //        public boolean forceToDisableAllOtherModsOnClients = false;
         public boolean hostModpackOnMinecraftPort = true;
+        public int hostMinecraftPortTransferThreads = 2; // threads for modpack transfers on the minecraft port, 0 = minecraft network threads
         public String hostIp = "";
         public String hostLocalIp = "";
         public boolean updateIpsOnEveryStart = false;
         public int hostPort = -1;
         public boolean reverseProxy = false;
+        public int hostMetricsPort = -1; // port of the Prometheus metrics endpoint at /metrics, -1 = disabled
+        public String hostMetricsAddress = "127.0.0.1"; // address the metrics endpoint binds to, it has no authentication so it's local only by default
+        public int hostWriteBufferLowWaterMark = 262144; // 256 KB, bytes queued per connection below which file data is produced again
+        public int hostWriteBufferHighWaterMark = 524288; // 512 KB, bytes queued per connection above which file data production pauses
+        public long hostWriteMemoryBudget = 134217728; // 128 MB, bytes queued across all connections, -1 = unlimited
+        public long hostHotFileCacheSize = 33554432; // 32 MB, memory for small hosted files kept ready to send, 0 = disabled
+        public long hostBandwidthLimit = 0; // KB/s shared by all connections, 0 = unlimited
+        public long hostConnectionBandwidthLimit = 0; // KB/s per connection, 0 = unlimited
         public long secretLifetime = 336; // 336 hours = 14 days
         public boolean validateSecrets = true;
         public boolean selfUpdater = false;
@@ -70,6 +79,7 @@ public class Jsons {
         public String loader = "";
         public String loaderVersion = "";
         public String mcVersion = "";
+        public String contentHash; // Changes whenever the rest of the content changes, null if it wasn't computed
         public Set<ModpackContentItem> list;
 
         public ModpackContentFields(Set<ModpackContentItem> list) {
@@ -87,6 +97,7 @@ public class Jsons {
             public boolean editable;
             public String sha1;
             public String murmur;
+            public List<ModpackContentChunk> chunks; // Content-defined chunks of large files, null for other files
 
             public ModpackContentItem(String file, String size, String type, boolean editable, String sha1, String murmur) {
                 this.file = file;
@@ -102,5 +113,28 @@ public class Jsons {
                 return String.format("ModpackContentItems(file=%s, size=%s, type=%s, editable=%s, sha1=%s, murmur=%s)", file, size, type, editable, sha1, murmur);
             }
         }
+
+        public static class ModpackContentChunk {
+            public String sha1;
+            public String size;
+
+            public ModpackContentChunk(String sha1, String size) {
+                this.sha1 = sha1;
+                this.size = size;
+            }
+        }
+    }
+
+    public static class ModpackContentDiffFields {
+        public String baseContentHash = ""; // Content the diff applies to
+        public String contentHash = ""; // Content after applying the diff
+        public String modpackName = "";
+        public String automodpackVersion = "";
+        public String loader = "";
+        public String loaderVersion = "";
+        public String mcVersion = "";
+        public Set<ModpackContentFields.ModpackContentItem> added = Set.of();
+        public Set<ModpackContentFields.ModpackContentItem> changed = Set.of(); // Items of files which are in the base content with different values
+        public Set<String> removed = Set.of(); // Files
     }
 }
@@ -55,6 +55,14 @@ public class Modpack {
         return generated;
     }
 
+    /**
+     * Returns the content hash of the hosted modpack, if it's generated.
+     */
+    public Optional<String> getContentHash() {
+        ModpackContent content = modpacks.get(serverConfig.modpackName);
+        return content == null ? Optional.empty() : Optional.ofNullable(content.getContentHash());
+    }
+
     public boolean isGenerating() {
         int activeCount = CREATION_EXECUTOR.getActiveCount();
         int queueSize = CREATION_EXECUTOR.getQueue().size();
@@ -23,6 +23,8 @@ public class ModpackContent {
     private final Path MODPACK_DIR;
     private final ThreadPoolExecutor CREATION_EXECUTOR;
     private final Map<String, String> sha1MurmurMapPreviousContent = new HashMap<>();
+    private final Map<String, List<Jsons.ModpackContentFields.ModpackContentChunk>> sha1ChunksMapPreviousContent = new HashMap<>();
+    private volatile String contentHash;
 
     public ModpackContent(String modpackName, Path cwd, Path modpackDir, List<String> syncedFiles, List<String> allowEditsInFiles, ThreadPoolExecutor CREATION_EXECUTOR) {
         this.MODPACK_NAME = modpackName;
@@ -43,11 +45,24 @@ public class ModpackContent {
         return MODPACK_NAME;
     }
 
+    /**
+     * Returns the hash of the content as it was last saved, null if it wasn't saved yet.
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
     public boolean create() {
         try {
             pathsMap.clear();
             sha1MurmurMapPreviousContent.clear();
-            getPreviousContent().ifPresent(previousContent -> previousContent.list.forEach(item -> sha1MurmurMapPreviousContent.put(item.sha1, item.murmur)));
+            sha1ChunksMapPreviousContent.clear();
+            getPreviousContent().ifPresent(previousContent -> previousContent.list.forEach(item -> {
+                sha1MurmurMapPreviousContent.put(item.sha1, item.murmur);
+                if (item.chunks != null) {
+                    sha1ChunksMapPreviousContent.put(item.sha1, item.chunks);
+                }
+            }));
 
             List<CompletableFuture<Void>> creationFutures = Collections.synchronizedList(new ArrayList<>());
 
@@ -87,6 +102,11 @@ public class ModpackContent {
         saveModpackContent();
         if (hostServer != null) {
             hostServer.addPaths(pathsMap);
+
+            // The modpack content file is fetched on every join, so it's sampled too
+            List<Path> dictionarySamples = new ArrayList<>(pathsMap.getMap().values());
+            dictionarySamples.add(hostModpackContentFile);
+            hostServer.updateDictionary(dictionarySamples);
         }
 
         return true;
@@ -138,8 +158,14 @@ public class ModpackContent {
             modpackContent.loaderVersion = LOADER_VERSION;
             modpackContent.loader = LOADER;
             modpackContent.modpackName = MODPACK_NAME;
+            modpackContent.contentHash = ModpackContentTools.computeContentHash(modpackContent);
 
             ConfigTools.saveModpackContent(hostModpackContentFile, modpackContent);
+            contentHash = modpackContent.contentHash;
+
+            if (hostServer != null) {
+                hostServer.getContentDiffCache().update(contentHash, hostModpackContentFile);
+            }
         }
     }
 
@@ -297,7 +323,17 @@ public class ModpackContent {
             LOGGER.info("File {} is editable!", formattedFile);
         }
 
-        return new Jsons.ModpackContentFields.ModpackContentItem(formattedFile, size, type, isEditable, sha1, murmur);
+        var item = new Jsons.ModpackContentFields.ModpackContentItem(formattedFile, size, type, isEditable, sha1, murmur);
+
+        // Clients which have a previous version of a large file download only the chunks they are missing
+        if (Long.parseLong(size) >= FileChunker.MIN_CHUNKED_FILE_SIZE) {
+            item.chunks = sha1ChunksMapPreviousContent.get(sha1);
+            if (item.chunks == null) {
+                item.chunks = FileChunker.toManifest(FileChunker.chunk(file));
+            }
+        }
+
+        return item;
 
     }
 }
\ No newline at end of file
@@ -0,0 +1,787 @@
+package pl.skidam.automodpack_core.protocol;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import pl.skidam.automodpack_core.auth.Secrets;
+import pl.skidam.automodpack_core.callbacks.IntCallback;
+import pl.skidam.automodpack_core.protocol.netty.NettyServer;
+import pl.skidam.automodpack_core.protocol.netty.ZstdDictionary;
+import pl.skidam.automodpack_core.protocol.netty.handler.ProtocolMessageEncoder;
+import pl.skidam.automodpack_core.protocol.netty.handler.ZstdDecoder;
+import pl.skidam.automodpack_core.protocol.netty.handler.ZstdEncoder;
+import pl.skidam.automodpack_core.protocol.netty.message.BatchFileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.ContentDiffRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.DeltaFileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.DictionaryRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.FileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.ProtocolMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.RefreshRequestMessage;
+import pl.skidam.automodpack_core.utils.CustomFileUtils;
+import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+import static pl.skidam.automodpack_core.protocol.NetUtils.*;
+
+/**
+ * A helper class representing a single connection.
+ * It first performs a plain-text handshake then upgrades the same channel to TLS.
+ * Connections are non-blocking and share the client event loop group, outbound messages go through
+ * the same encoders the server uses and inbound frames are decompressed by the same Zstd decoder.
+ * Requests are pipelined - every response frame carries the id of the request it belongs to,
+ * so incoming frames are dispatched to the matching pending request.
+ */
+class Connection {
+    static final int MAX_REQUESTS_IN_FLIGHT = 4;
+    private static final int TIMEOUT_SECONDS = 15;
+    private static EventLoopGroup eventLoopGroup;
+    private static final int SSL_SESSION_CACHE_SIZE = 64;
+    private static final int SSL_SESSION_TIMEOUT_SECONDS = 3600;
+    private static final Map<String, SslContext> sslContexts = new HashMap<>();
+
+    private final String serverKey;
+    private final byte[] secretBytes;
+    private final Channel channel;
+    private final Map<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger requestsInFlight = new AtomicInteger(0);
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile Runnable slotReleasedListener = () -> { };
+    private volatile Runnable closeListener = () -> { };
+    private volatile int missingDictionaryId = 0;
+    private volatile byte[] missingDictionaryHash;
+
+    public boolean isActive() {
+        return channel.isActive();
+    }
+
+    /**
+     * Creates a new connection by first opening a plain TCP channel,
+     * sending the AMMD magic, waiting for the AMOD reply, and then upgrading to TLS.
+     * Blocks until the connection is ready to send requests.
+     */
+    public Connection(InetSocketAddress address, Secrets.Secret secret) throws Exception {
+        serverKey = getServerKey(address, secret);
+        secretBytes = Base64.getUrlDecoder().decode(secret.secret());
+        CompletableFuture<Boolean> ready = new CompletableFuture<>();
+
+        LOGGER.debug("Initializing connection to: {}", address.getHostString());
+        long connectStart = System.currentTimeMillis();
+        ChannelFuture connectFuture = new Bootstrap()
+                .group(getEventLoopGroup())
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, TIMEOUT_SECONDS * 1000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.attr(NettyServer.USE_COMPRESSION).set(true);
+                        ch.pipeline().addLast("handshake", new HandshakeHandler(address, secret, connectStart, ready));
+                    }
+                })
+                .connect(address);
+
+        connectFuture.addListener(future -> {
+            if (!future.isSuccess()) {
+                ready.completeExceptionally(future.cause());
+            }
+        });
+
+        this.channel = connectFuture.channel();
+        channel.closeFuture().addListener(future -> closeListener.run());
+
+        try {
+            boolean resumed = ready.get(TIMEOUT_SECONDS * 2, TimeUnit.SECONDS);
+            LOGGER.debug("Connection established with: {} in {}ms (TLS session resumed: {})", address.getHostString(), System.currentTimeMillis() - connectStart, resumed);
+        } catch (Exception e) {
+            channel.close();
+            throw new IOException("Failed to establish connection", e instanceof ExecutionException ? e.getCause() : e);
+        }
+
+        if (missingDictionaryId != 0) {
+            fetchDictionary(missingDictionaryId, missingDictionaryHash);
+        }
+    }
+
+    /**
+     * Fetches the dictionary the server advertised in the background, so the following connections to the server can use it.
+     */
+    private void fetchDictionary(int dictionaryId, byte[] hash) {
+        if (!DictionaryCache.startFetching(hash)) {
+            return;
+        }
+
+        try {
+            Path destination = DictionaryCache.getTempPath(hash);
+            reserve();
+            sendDictionaryRequest(dictionaryId, destination).whenComplete((path, e) -> {
+                if (e == null) {
+                    DictionaryCache.finishFetching(dictionaryId, hash, path);
+                } else {
+                    DictionaryCache.failFetching(hash, e);
+                }
+            });
+        } catch (IOException e) {
+            DictionaryCache.failFetching(hash, e);
+        }
+    }
+
+    private static synchronized EventLoopGroup getEventLoopGroup() {
+        if (eventLoopGroup == null) {
+            int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+            eventLoopGroup = new NioEventLoopGroup(threads, new CustomThreadFactoryBuilder().setNameFormat("AutoModpack Client IO #%d").setDaemon(true).build());
+        }
+
+        return eventLoopGroup;
+    }
+
+    /**
+     * Identifies the server by its address and certificate fingerprint.
+     */
+    static String getServerKey(InetSocketAddress address, Secrets.Secret secret) {
+        return address.getHostString() + ":" + address.getPort() + "/" + secret.fingerprint();
+    }
+
+    public String getServerKey() {
+        return serverKey;
+    }
+
+    /**
+     * Returns the SSL context for the given server. Each server gets its own context and thus its own client session cache,
+     * so reconnecting to it - the download and refresh phases open fresh connections right after the modpack fetch - can resume
+     * the previous TLS session instead of doing a full handshake. Keying by fingerprint too means a session established
+     * with one server identity is never offered to another one on the same address.
+     * Trusts all certificates, the server certificate is validated against the fingerprint after the handshake.
+     */
+    static synchronized SslContext getSslContext(String serverKey) throws SSLException {
+        SslContext sslContext = sslContexts.get(serverKey);
+        if (sslContext == null) {
+            sslContext = SslContextBuilder.forClient()
+                    .sslProvider(SslProvider.JDK)
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .protocols("TLSv1.3")
+                    .ciphers(Arrays.asList(
+                            "TLS_AES_128_GCM_SHA256",
+                            "TLS_AES_256_GCM_SHA384",
+                            "TLS_CHACHA20_POLY1305_SHA256"))
+                    .sessionCacheSize(SSL_SESSION_CACHE_SIZE)
+                    .sessionTimeout(SSL_SESSION_TIMEOUT_SECONDS)
+                    .build();
+            sslContexts.put(serverKey, sslContext);
+        }
+
+        return sslContext;
+    }
+
+    public int getRequestsInFlight() {
+        return requestsInFlight.get();
+    }
+
+    /**
+     * Reserves a slot for a request which is about to be sent over this connection.
+     */
+    public void reserve() {
+        requestsInFlight.incrementAndGet();
+    }
+
+    /**
+     * Releases a slot reserved with {@link #reserve()} which won't be used.
+     */
+    public void release() {
+        requestsInFlight.decrementAndGet();
+        lastUsed = System.currentTimeMillis();
+        slotReleasedListener.run();
+    }
+
+    /**
+     * Returns for how long this connection had no request to handle, 0 if it has some in flight.
+     */
+    public long getIdleTime() {
+        return requestsInFlight.get() > 0 ? 0 : System.currentTimeMillis() - lastUsed;
+    }
+
+    /**
+     * Sets a listener which runs every time a request slot of this connection gets released.
+     */
+    public void onSlotReleased(Runnable listener) {
+        this.slotReleasedListener = listener;
+    }
+
+    /**
+     * Sets a listener which runs once the connection gets closed, either by us or by the server.
+     */
+    public void onClose(Runnable listener) {
+        this.closeListener = listener;
+        if (!channel.isOpen()) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs the task on the event loop of this connection after the given delay.
+     */
+    public void schedule(Runnable task, long delayMs) {
+        channel.eventLoop().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a file request over this connection.
+     * With length of -1 the rest of the file starting at the offset is requested, with the first offset bytes of the destination kept.
+     * Otherwise exactly the given byte range is requested and written at its position in the destination, leaving the rest of it untouched.
+     * The slot has to be reserved beforehand with {@link #reserve()}.
+     */
+    public CompletableFuture<Path> sendDownloadFile(byte[] fileHash, Path destination, long offset, long length, IntCallback chunkCallback) {
+        if (destination == null) {
+            release();
+            throw new IllegalArgumentException("Destination cannot be null");
+        }
+
+        int requestId = nextRequestId.getAndIncrement();
+        // Ranges of a file arrive out of order across connections, so only whole files are hashed while receiving
+        PendingRequest request = new PendingRequest(new Path[]{destination}, length < 0 ? new byte[][]{fileHash} : null, chunkCallback);
+        request.rangeOffset = offset;
+        request.rangeLength = length;
+
+        if (offset > 0 && length < 0 && fileHash.length > 0) {
+            try { // Hashed before sending the request, so the event loop doesn't have to read the already received part of the file
+                request.resumeDigest = digestFile(destination, offset);
+            } catch (IOException e) {
+                release();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        sendRequest(requestId, request, new FileRequestMessage(PROTOCOL_VERSION, secretBytes, requestId, fileHash, offset, length));
+        return request.future.thenApply(paths -> paths[0]);
+    }
+
+    /**
+     * Sends a delta file request over this connection, the server answers with a patch from the file with the base hash
+     * to the patch destination, or with the whole file to the destination.
+     * Returns a future with whether a patch was received, the patch isn't verified until it's applied.
+     * The slot has to be reserved beforehand with {@link #reserve()}.
+     */
+    public CompletableFuture<Boolean> sendDeltaDownloadFile(byte[] fileHash, byte[] baseFileHash, Path destination, Path patchDestination, IntCallback chunkCallback) {
+        if (destination == null || patchDestination == null) {
+            release();
+            throw new IllegalArgumentException("Destination cannot be null");
+        }
+
+        int requestId = nextRequestId.getAndIncrement();
+        PendingRequest request = new PendingRequest(new Path[]{destination}, new byte[][]{fileHash}, chunkCallback);
+        request.patchDestination = patchDestination;
+
+        sendRequest(requestId, request, new DeltaFileRequestMessage(PROTOCOL_VERSION, secretBytes, requestId, fileHash, baseFileHash));
+        return request.future.thenApply(paths -> request.patched);
+    }
+
+    /**
+     * Sends a batch file request over this connection.
+     * The slot has to be reserved beforehand with {@link #reserve()}.
+     */
+    public CompletableFuture<Path[]> sendBatchDownloadFile(byte[][] fileHashes, Path[] destinations, IntCallback chunkCallback) {
+        if (fileHashes.length == 0 || fileHashes.length != destinations.length) {
+            release();
+            throw new IllegalArgumentException("Every file hash needs exactly one destination");
+        }
+
+        int requestId = nextRequestId.getAndIncrement();
+        PendingRequest request = new PendingRequest(destinations, fileHashes, chunkCallback);
+
+        sendRequest(requestId, request, new BatchFileRequestMessage(PROTOCOL_VERSION, secretBytes, requestId, fileHashes));
+        return request.future;
+    }
+
+    /**
+     * Sends a refresh request over this connection.
+     * The slot has to be reserved beforehand with {@link #reserve()}.
+     */
+    public CompletableFuture<Path> sendRefreshRequest(byte[][] fileHashes, Path destination) {
+        int requestId = nextRequestId.getAndIncrement();
+        PendingRequest request = new PendingRequest(new Path[]{destination}, null, null);
+
+        sendRequest(requestId, request, new RefreshRequestMessage(PROTOCOL_VERSION, secretBytes, requestId, fileHashes));
+        return request.future.thenApply(paths -> paths[0]);
+    }
+
+    /**
+     * Sends a content diff request over this connection, the server answers with a diff from the content with the base hash
+     * to the diff destination, or with the whole content to the destination.
+     * The slot has to be reserved beforehand with {@link #reserve()}.
+     */
+    public CompletableFuture<Boolean> sendContentDiffRequest(byte[] baseContentHash, byte[][] fileHashes, Path destination, Path diffDestination) {
+        int requestId = nextRequestId.getAndIncrement();
+        PendingRequest request = new PendingRequest(new Path[]{destination}, null, null);
+        request.patchDestination = diffDestination;
+
+        sendRequest(requestId, request, new ContentDiffRequestMessage(PROTOCOL_VERSION, secretBytes, requestId, baseContentHash, fileHashes));
+        return request.future.thenApply(paths -> request.patched);
+    }
+
+    /**
+     * Sends a dictionary request over this connection.
+     * The slot has to be reserved beforehand with {@link #reserve()}.
+     */
+    public CompletableFuture<Path> sendDictionaryRequest(int dictionaryId, Path destination) {
+        int requestId = nextRequestId.getAndIncrement();
+        PendingRequest request = new PendingRequest(new Path[]{destination}, null, null);
+
+        sendRequest(requestId, request, new DictionaryRequestMessage(PROTOCOL_VERSION, secretBytes, requestId, dictionaryId));
+        return request.future.thenApply(paths -> paths[0]);
+    }
+
+    private void sendRequest(int requestId, PendingRequest request, ProtocolMessage message) {
+        pendingRequests.put(requestId, request);
+        channel.writeAndFlush(message).addListener(future -> {
+            if (!future.isSuccess()) {
+                failRequest(requestId, new IOException("Failed to send request", future.cause()));
+            }
+        });
+    }
+
+    private void completeRequest(int requestId, PendingRequest request) throws IOException {
+        pendingRequests.remove(requestId);
+        request.closeOutput();
+        release();
+        request.future.complete(request.destinations);
+    }
+
+    private void failRequest(int requestId, Exception exception) {
+        PendingRequest request = pendingRequests.remove(requestId);
+        if (request == null) {
+            return;
+        }
+
+        try {
+            request.closeOutput();
+        } catch (IOException e) {
+            exception.addSuppressed(e);
+        }
+
+        release();
+        request.future.completeExceptionally(exception);
+    }
+
+    private void failAllRequests(Exception exception) {
+        for (Integer requestId : pendingRequests.keySet()) {
+            failRequest(requestId, exception);
+        }
+    }
+
+    /**
+     * Handles one decompressed frame, all frames of a connection are handled on its event loop.
+     * Every frame starts with [protocolVersion][messageType][int: requestId], then depending on the type:
+     *   - FILE_RESPONSE_TYPE: [long expectedFileSize][long offset][beginning of the file data], starts the next file of the request
+     *   - PATCH_RESPONSE_TYPE: same as FILE_RESPONSE_TYPE, but the data is a patch from the base file or a diff from the base content of the request
+     *   - FILE_CHUNK_TYPE: file data until the expected file size is reached
+     *   - END_OF_TRANSMISSION: nothing, the request is complete
+     *   - ERROR: [int: errorLength][error message]
+     */
+    private void handleFrame(ByteBuf frame) throws IOException {
+        if (frame.isReadable() && frame.getByte(frame.readerIndex()) != PROTOCOL_VERSION) {
+            // Frames of other versions have a different layout, so none of the requests can be completed
+            failAllRequests(new IOException("Server uses protocol version " + frame.getByte(frame.readerIndex()) + ", expected " + PROTOCOL_VERSION));
+            channel.close();
+            return;
+        }
+
+        if (frame.readableBytes() < 6) {
+            throw new IOException("Received too short frame: " + frame.readableBytes());
+        }
+
+        frame.skipBytes(1); // protocol version
+        byte messageType = frame.readByte();
+        int requestId = frame.readInt();
+
+        PendingRequest request = pendingRequests.get(requestId);
+        if (request == null) {
+            LOGGER.debug("Received frame of type {} for unknown request {}", messageType, requestId); // e.g. rest of already failed request
+            return;
+        }
+
+        try {
+            handleRequestFrame(requestId, request, messageType, frame);
+        } catch (IOException e) {
+            failRequest(requestId, e);
+        }
+    }
+
+    private void handleRequestFrame(int requestId, PendingRequest request, byte messageType, ByteBuf frame) throws IOException {
+        switch (messageType) {
+            case FILE_RESPONSE_TYPE, PATCH_RESPONSE_TYPE -> {
+                request.finishFile();
+                request.fileIndex++;
+                if (request.fileIndex >= request.destinations.length) {
+                    throw new IOException("Received more files than requested");
+                }
+
+                long fileSize = frame.readLong();
+                long offset = frame.readLong();
+
+                if (fileSize < 0) { // File not available, skip it
+                    LOGGER.debug("File {} is not available on the server", request.destinations[request.fileIndex]);
+                    return;
+                }
+
+                if (messageType == PATCH_RESPONSE_TYPE && request.patchDestination == null) {
+                    throw new IOException("Received patch which wasn't requested");
+                }
+
+                request.patched = messageType == PATCH_RESPONSE_TYPE;
+                Path destination = request.patched ? request.patchDestination : request.destinations[request.fileIndex];
+                FileChannel output = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                if (request.rangeLength >= 0) { // Writes just the range, other parts of the file are written by other requests
+                    if (offset != request.rangeOffset) {
+                        output.close();
+                        throw new IOException("Received range at " + offset + ", expected " + request.rangeOffset);
+                    }
+                    request.expectedEnd = offset + request.rangeLength;
+                } else { // Keeps the already received part of the file and appends the rest to it
+                    if (offset != 0 && offset != request.rangeOffset) {
+                        output.close();
+                        throw new IOException("Received file at " + offset + ", expected " + request.rangeOffset + " or 0");
+                    }
+                    output.truncate(offset);
+                    request.expectedEnd = fileSize;
+                    if (request.patched) { // The patched file is verified once the patch is applied
+                        request.digest = null;
+                    } else {
+                        request.startDigest(offset);
+                    }
+                }
+
+                request.output = output;
+                request.position = offset;
+                writeData(request, frame);
+            }
+            case FILE_CHUNK_TYPE -> {
+                if (request.output == null) {
+                    throw new IOException("Received file data before the file response header");
+                }
+
+                writeData(request, frame);
+            }
+            case END_OF_TRANSMISSION -> {
+                request.finishFile();
+                completeRequest(requestId, request);
+            }
+            case ERROR -> {
+                int errLen = frame.readInt();
+                if (errLen < 0 || errLen > frame.readableBytes()) {
+                    throw new IOException("Received error message of invalid length " + errLen);
+                }
+
+                throw new IOException("Server error: " + frame.readCharSequence(errLen, StandardCharsets.UTF_8));
+            }
+            default -> throw new IOException("Unexpected message type: " + messageType);
+        }
+    }
+
+    private void writeData(PendingRequest request, ByteBuf frame) throws IOException {
+        int toWrite = (int) Math.min(frame.readableBytes(), request.expectedEnd - request.position);
+        if (toWrite <= 0) {
+            return;
+        }
+
+        if (request.digest != null) {
+            request.digest.update(frame.nioBufferCount() == 1 ? frame.internalNioBuffer(frame.readerIndex(), toWrite) : frame.nioBuffer(frame.readerIndex(), toWrite));
+        }
+
+        int written = 0;
+        while (written < toWrite) {
+            written += frame.readBytes(request.output, request.position + written, toWrite - written);
+        }
+        request.position += toWrite;
+
+        if (request.chunkCallback != null) {
+            request.chunkCallback.run(toWrite);
+        }
+    }
+
+    /**
+     * Closes the underlying channel and fails all pending requests.
+     */
+    public void close() {
+        channel.close();
+        failAllRequests(new IOException("Connection closed"));
+    }
+
+    /**
+     * Performs the plain-text AMMD/AMOD handshake, upgrades the channel to TLS, validates the server certificate
+     * against the fingerprint and then sets up the protocol pipeline.
+     * The AMMD magic is followed by the ids and hashes of the cached dictionaries, servers supporting dictionaries answer with AMOD
+     * followed by the id and hash of their dictionary, which is used for this connection if it's among the cached ones.
+     */
+    private class HandshakeHandler extends ByteToMessageDecoder {
+        private final InetSocketAddress address;
+        private final Secrets.Secret secret;
+        private final long connectStart;
+        private final CompletableFuture<Boolean> ready;
+        private final List<ZstdDictionary> dictionaries = DictionaryCache.getDictionaries();
+
+        private HandshakeHandler(InetSocketAddress address, Secrets.Secret secret, long connectStart, CompletableFuture<Boolean> ready) {
+            this.address = address;
+            this.secret = secret;
+            this.connectStart = connectStart;
+            this.ready = ready;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ByteBuf magic = ctx.alloc().buffer(8 + dictionaries.size() * (4 + ZstdDictionary.HASH_LENGTH));
+            magic.writeInt(MAGIC_AMMD);
+            magic.writeInt(dictionaries.size());
+            for (ZstdDictionary dictionary : dictionaries) {
+                magic.writeInt(dictionary.getId());
+                magic.writeBytes(dictionary.getHash());
+            }
+            ctx.writeAndFlush(magic);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            if (in.readableBytes() < 4) {
+                return;
+            }
+
+            int handshakeResponse = in.getInt(in.readerIndex());
+            ZstdDictionary dictionary = null;
+            if (handshakeResponse == MAGIC_AMOD) {
+                if (in.readableBytes() < 8 + ZstdDictionary.HASH_LENGTH) {
+                    return;
+                }
+
+                in.skipBytes(4);
+                int dictionaryId = in.readInt();
+                byte[] hash = new byte[ZstdDictionary.HASH_LENGTH];
+                in.readBytes(hash);
+                dictionary = dictionaries.stream().filter(cached -> cached.matches(dictionaryId, hash)).findFirst().orElse(null);
+                if (dictionary != null) {
+                    LOGGER.debug("Using zstd dictionary {}", Integer.toUnsignedString(dictionaryId));
+                } else if (dictionaryId != 0) {
+                    missingDictionaryId = dictionaryId;
+                    missingDictionaryHash = hash;
+                }
+            } else if (handshakeResponse == MAGIC_AMOK) { // Server without dictionary support
+                in.skipBytes(4);
+            } else {
+                throw new IOException("Invalid handshake response from server: " + handshakeResponse);
+            }
+
+            ZstdDictionary connectionDictionary = dictionary;
+
+            // Host and port have to be passed to the engine, the JDK looks up sessions to resume by them
+            SslHandler sslHandler = getSslContext(serverKey).newHandler(ctx.alloc(), address.getHostString(), address.getPort());
+            sslHandler.handshakeFuture().addListener(future -> {
+                if (!future.isSuccess()) {
+                    ready.completeExceptionally(future.cause());
+                    ctx.channel().close();
+                    return;
+                }
+
+                SSLSession session = sslHandler.engine().getSession();
+                try {
+                    // Validated on resumed sessions as well, it's cheap compared to the handshake
+                    validateCertificate(session.getPeerCertificates());
+                } catch (Exception e) {
+                    session.invalidate();
+                    ready.completeExceptionally(e);
+                    ctx.channel().close();
+                    return;
+                }
+
+                ChannelPipeline pipeline = ctx.channel().pipeline();
+                pipeline.addLast("idle", new IdleStateHandler(TIMEOUT_SECONDS, 0, 0));
+                pipeline.addLast("zstd-encoder", new ZstdEncoder(connectionDictionary));
+                pipeline.addLast("zstd-decoder", new ZstdDecoder(connectionDictionary));
+                pipeline.addLast("protocol-msg-encoder", new ProtocolMessageEncoder());
+                pipeline.addLast("response-handler", new ResponseHandler());
+                ready.complete(session.getCreationTime() < connectStart);
+            });
+
+            ctx.pipeline().addAfter(ctx.name(), "tls", sslHandler);
+            ctx.pipeline().remove(this);
+        }
+
+        private void validateCertificate(Certificate[] certs) throws Exception {
+            if (certs == null || certs.length == 0 || certs.length > 3) {
+                throw new IOException("Invalid server certificate chain");
+            }
+
+            for (Certificate cert : certs) {
+                if (cert instanceof X509Certificate x509Cert) {
+                    String fingerprint = NetUtils.getFingerprint(x509Cert, secret.secret());
+                    if (fingerprint.equals(secret.fingerprint())) {
+                        return;
+                    }
+                }
+            }
+
+            throw new IOException("Server certificate validation failed");
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ready.completeExceptionally(cause);
+            ctx.close();
+        }
+    }
+
+    private class ResponseHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+            handleFrame(frame);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent && !pendingRequests.isEmpty()) { // Idle connection without pending requests has nothing to time out
+                failAllRequests(new SocketTimeoutException("Read timed out"));
+                ctx.close();
+                return;
+            }
+
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            failAllRequests(new IOException("Connection closed"));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOGGER.debug("Connection failed", cause);
+            ctx.close();
+        }
+    }
+
+    static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Hashes the first length bytes of the file
+    private static MessageDigest digestFile(Path file, long length) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File " + file + " is shorter than " + length + " bytes");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        }
+
+        return digest;
+    }
+
+    private static class PendingRequest {
+        private final CompletableFuture<Path[]> future = new CompletableFuture<>();
+        private final Path[] destinations;
+        private final byte[][] fileHashes; // Received files are verified against these, null if they can't be
+        private final IntCallback chunkCallback;
+        private int fileIndex = -1;
+        private FileChannel output;
+        private long rangeOffset = 0;
+        private long rangeLength = -1;
+        private long expectedEnd; // Position in the file at which the received data ends
+        private long position;
+        private MessageDigest resumeDigest; // Hash of the part of the file which was received before resuming
+        private MessageDigest digest;
+        private Path patchDestination; // Where a patch is received in place of the file, null if the request can't be answered with one
+        private boolean patched;
+
+        private PendingRequest(Path[] destinations, byte[][] fileHashes, IntCallback chunkCallback) {
+            this.destinations = destinations;
+            this.fileHashes = fileHashes;
+            this.chunkCallback = chunkCallback;
+        }
+
+        // Starts hashing the file which is being received from the given offset
+        private void startDigest(long offset) throws IOException {
+            if (fileHashes == null || fileHashes[fileIndex].length == 0) {
+                digest = null;
+            } else if (offset == 0) {
+                digest = newDigest();
+            } else if (resumeDigest != null) {
+                digest = resumeDigest;
+            } else {
+                throw new IOException("Can't verify file resumed at " + offset);
+            }
+        }
+
+        // Verifies and closes the file which is currently being received, if any
+        private void finishFile() throws IOException {
+            if (output == null) {
+                return;
+            }
+
+            closeOutput();
+            output = null;
+
+            if (position != expectedEnd) {
+                throw new IOException("Received data up to " + position + " bytes, expected " + expectedEnd);
+            }
+
+            position = 0;
+
+            if (digest != null) {
+                String hash = CustomFileUtils.convertBytesToHex(digest.digest());
+                digest = null;
+                String expectedHash = new String(fileHashes[fileIndex], StandardCharsets.UTF_8);
+                if (!hash.equalsIgnoreCase(expectedHash)) {
+                    Files.deleteIfExists(destinations[fileIndex]); // Corrupted, resuming it would never succeed
+                    throw new IOException("Received file with hash " + hash + ", expected " + expectedHash);
+                }
+            }
+        }
+
+        private void closeOutput() throws IOException {
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+}
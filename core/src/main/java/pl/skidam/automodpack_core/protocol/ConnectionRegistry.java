@@ -0,0 +1,98 @@
+package pl.skidam.automodpack_core.protocol;
+
+import java.util.*;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+
+/**
+ * Keeps idle connections of closed download clients open for a short while, so the next client to the same server can take them over
+ * instead of connecting and going through the handshakes again.
+ * E.g. the connection used to fetch the modpack content is reused to download the modpack, and those connections are reused by the refresh.
+ * Connections are kept per server, identified by its address and certificate fingerprint, and closed when nobody takes them in time.
+ */
+class ConnectionRegistry {
+    private static final long PARKED_CONNECTION_TIMEOUT_MS = 30_000;
+    private static final int MAX_PARKED_CONNECTIONS = 8;
+    private static final Map<String, Deque<ParkedConnection>> parkedConnections = new HashMap<>();
+
+    private ConnectionRegistry() {
+    }
+
+    /**
+     * Keeps the connection open for the next client to the same server. Connections which aren't reusable are closed.
+     */
+    static synchronized void park(Connection conn) {
+        String serverKey = conn.getServerKey();
+        Deque<ParkedConnection> parked = parkedConnections.get(serverKey);
+        if (!conn.isActive() || conn.getRequestsInFlight() > 0 || (parked != null && parked.size() >= MAX_PARKED_CONNECTIONS)) {
+            conn.close();
+            return;
+        }
+
+        if (parked == null) {
+            parked = new ArrayDeque<>();
+            parkedConnections.put(serverKey, parked);
+        }
+
+        ParkedConnection parkedConnection = new ParkedConnection(conn);
+        parked.push(parkedConnection);
+        conn.onSlotReleased(() -> { });
+        conn.onClose(() -> remove(serverKey, parkedConnection));
+        conn.schedule(() -> {
+            if (remove(serverKey, parkedConnection)) {
+                conn.close();
+            }
+        }, PARKED_CONNECTION_TIMEOUT_MS);
+    }
+
+    /**
+     * Takes over a connection to the server, or returns null if there is none.
+     */
+    static synchronized Connection take(String serverKey) {
+        Deque<ParkedConnection> parked = parkedConnections.get(serverKey);
+        if (parked == null) {
+            return null;
+        }
+
+        Connection conn = null;
+        while (conn == null && !parked.isEmpty()) {
+            Connection parkedConn = parked.pop().connection;
+            if (parkedConn.isActive()) {
+                conn = parkedConn;
+            }
+        }
+
+        if (parked.isEmpty()) {
+            parkedConnections.remove(serverKey);
+        }
+
+        if (conn != null) {
+            conn.onClose(() -> { });
+            LOGGER.debug("Reusing connection to {}", serverKey);
+        }
+
+        return conn;
+    }
+
+    private static synchronized boolean remove(String serverKey, ParkedConnection parkedConnection) {
+        Deque<ParkedConnection> parked = parkedConnections.get(serverKey);
+        if (parked == null || !parked.remove(parkedConnection)) {
+            return false;
+        }
+
+        if (parked.isEmpty()) {
+            parkedConnections.remove(serverKey);
+        }
+
+        return true;
+    }
+
+    // Compared by identity, so a connection parked again after being taken over isn't closed by the timeout of its previous parking
+    private static class ParkedConnection {
+        private final Connection connection;
+
+        private ParkedConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package pl.skidam.automodpack_core.protocol;
+
+import pl.skidam.automodpack_core.protocol.netty.ZstdDictionary;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+import static pl.skidam.automodpack_core.GlobalVariables.dictionariesDir;
+import static pl.skidam.automodpack_core.protocol.NetUtils.MAX_ADVERTISED_DICTIONARIES;
+
+/**
+ * Keeps the zstd dictionaries fetched from servers, named by their hashes, since their ids may collide across servers.
+ * Ids and hashes of the cached dictionaries are sent to the server on connect, the connection uses the server's dictionary if it's among them.
+ * Otherwise the dictionary is fetched over the connection and used by the following ones.
+ * Only the most recently fetched dictionaries are kept.
+ */
+class DictionaryCache {
+    private static final String EXTENSION = ".dict";
+    private static final Map<String, ZstdDictionary> dictionaries = new LinkedHashMap<>(); // Least recently fetched first
+    private static final Set<String> fetching = new HashSet<>();
+    private static boolean loaded = false;
+
+    private DictionaryCache() {
+    }
+
+    /**
+     * Returns the most recently fetched dictionaries, up to as many as the server accepts.
+     */
+    static synchronized List<ZstdDictionary> getDictionaries() {
+        load();
+        List<ZstdDictionary> cached = new ArrayList<>(dictionaries.values());
+        return cached.subList(Math.max(0, cached.size() - MAX_ADVERTISED_DICTIONARIES), cached.size());
+    }
+
+    /**
+     * Marks the dictionary as being fetched, returns false if it's cached or being fetched already.
+     */
+    static synchronized boolean startFetching(byte[] hash) {
+        load();
+        String name = getName(hash);
+        return !dictionaries.containsKey(name) && fetching.add(name);
+    }
+
+    static Path getTempPath(byte[] hash) throws IOException {
+        Files.createDirectories(dictionariesDir);
+        return dictionariesDir.resolve(getName(hash) + EXTENSION + ".tmp");
+    }
+
+    /**
+     * Adds the fetched dictionary to the cache, if it's the expected one.
+     */
+    static synchronized void finishFetching(int id, byte[] hash, Path file) {
+        String name = getName(hash);
+        fetching.remove(name);
+        try {
+            ZstdDictionary dictionary = ZstdDictionary.load(file).orElse(null);
+            if (dictionary == null || !dictionary.matches(id, hash)) {
+                LOGGER.warn("Received invalid zstd dictionary, expected {}", name);
+                Files.deleteIfExists(file);
+                return;
+            }
+
+            Files.move(file, getPath(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dictionaries.put(name, dictionary);
+            LOGGER.debug("Cached zstd dictionary {}", name);
+
+            Iterator<String> iterator = dictionaries.keySet().iterator();
+            while (dictionaries.size() > MAX_ADVERTISED_DICTIONARIES) {
+                String evictedName = iterator.next();
+                iterator.remove();
+                Files.deleteIfExists(getPath(evictedName));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cache zstd dictionary {} - {}", name, e.getMessage());
+        }
+    }
+
+    static synchronized void failFetching(byte[] hash, Throwable cause) {
+        fetching.remove(getName(hash));
+        LOGGER.debug("Failed to fetch zstd dictionary {} - {}", getName(hash), cause.getMessage());
+    }
+
+    private static void load() {
+        if (loaded) {
+            return;
+        }
+
+        loaded = true;
+        if (!Files.isDirectory(dictionariesDir)) {
+            return;
+        }
+
+        try (var stream = Files.list(dictionariesDir)) {
+            List<Path> files = new ArrayList<>(stream.filter(file -> file.getFileName().toString().endsWith(EXTENSION)).toList());
+            files.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+            for (Path file : files) {
+                ZstdDictionary.load(file).ifPresent(dictionary -> dictionaries.put(getName(dictionary.getHash()), dictionary));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to load cached zstd dictionaries - {}", e.getMessage());
+        }
+    }
+
+    private static String getName(byte[] hash) {
+        return HexFormat.of().formatHex(hash);
+    }
+
+    private static Path getPath(String name) {
+        return dictionariesDir.resolve(name + EXTENSION);
+    }
+}
@@ -1,404 +1,484 @@
 package pl.skidam.automodpack_core.protocol;
 
-import pl.skidam.automodpack_core.auth.Secrets;
 import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import pl.skidam.automodpack_core.auth.Secrets;
 import pl.skidam.automodpack_core.callbacks.IntCallback;
+import pl.skidam.automodpack_core.protocol.netty.DeltaCache;
+import pl.skidam.automodpack_core.utils.CustomFileUtils;
+import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
+import pl.skidam.automodpack_core.utils.FileChunker;
 
-import javax.net.ssl.*;
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.SecureRandom;
-import java.security.cert.Certificate;
-import java.security.cert.X509Certificate;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
 import static pl.skidam.automodpack_core.protocol.NetUtils.*;
 
 /**
- * A DownloadClient that creates a pool of connections.
- * Each connection performs an initial plain-text handshake by sending the AMMC magic,
- * waiting for the AMOK reply, and then upgrading the same socket to TLSv1.3.
+ * A DownloadClient that maintains an elastic pool of connections.
+ * Requests wait for a free connection, the pool grows while requests are waiting and shrinks back when connections stay idle.
+ * Connections closed by the server are replaced in the background.
+ * Each connection performs an initial plain-text handshake by sending the AMMD magic,
+ * waiting for the AMOD reply, and then upgrading the same channel to TLSv1.3.
  * Subsequent protocol messages are framed and compressed (using Zstd) to match your full protocol.
+ * Every request carries a request id, so each connection can have several requests in flight at once.
  */
 public class DownloadClient {
+    private static final long MIN_RANGE_SIZE = 8 * 1024 * 1024; // Smaller ranges aren't worth another request
+    private static final long ACQUIRE_TIMEOUT_MS = 30_000;
+    private static final long RECONNECT_DELAY_MS = 1_000;
+    private static final long IDLE_CONNECTION_TIMEOUT_MS = 30_000;
     private final List<Connection> connections = new ArrayList<>();
+    private final ScheduledThreadPoolExecutor connector = new ScheduledThreadPoolExecutor(1, new CustomThreadFactoryBuilder().setNameFormat("AutoModpackConnector-%d").setDaemon(true).build());
+    private final InetSocketAddress address;
+    private final Secrets.Secret secret;
+    private final int minPoolSize;
+    private final int maxPoolSize;
+    private int connecting = 0;
+    private long nextConnectAttempt = 0;
+    private boolean closed = false;
 
     public DownloadClient(InetSocketAddress address, Secrets.Secret secret, int poolSize) throws Exception {
-        for (int i = 0; i < poolSize; i++) {
-            connections.add(new Connection(address, secret));
-        }
+        this(address, secret, poolSize, poolSize);
     }
 
-    private synchronized Connection getFreeConnection() {
-        Iterator<Connection> iterator = connections.iterator();
-        while (iterator.hasNext()) {
-            Connection conn = iterator.next();
-            if (!conn.isBusy()) {
-                if (!conn.isActive()) {
-                    iterator.remove();
-                    return getFreeConnection();
-                }
-                conn.setBusy(true);
-                return conn;
+    /**
+     * Opens minPoolSize connections right away, more connections up to maxPoolSize are opened when needed.
+     */
+    public DownloadClient(InetSocketAddress address, Secrets.Secret secret, int minPoolSize, int maxPoolSize) throws Exception {
+        this.address = address;
+        this.secret = secret;
+        this.minPoolSize = minPoolSize;
+        this.maxPoolSize = Math.max(minPoolSize, maxPoolSize);
+        // Closing the client lets a connection which is being opened finish, so it can be handed over instead of being cut off mid-handshake
+        connector.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        try {
+            for (int i = 0; i < minPoolSize; i++) {
+                addConnection(openConnection());
             }
+        } catch (Exception e) {
+            close();
+            throw e;
         }
-        throw new IllegalStateException("No available connections");
+
+        connector.scheduleWithFixedDelay(this::closeIdleConnections, IDLE_CONNECTION_TIMEOUT_MS, IDLE_CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
     }
 
-    /**
-     * Downloads a file identified by its SHA-1 hash to the given destination.
-     * Returns a CompletableFuture that completes when the download finishes.
-     */
-    public CompletableFuture<Path> downloadFile(byte[] fileHash, Path destination, IntCallback chunkCallback) {
-        Connection conn = getFreeConnection();
-        return conn.sendDownloadFile(fileHash, destination, chunkCallback);
+    // Takes over a connection left by a previous client to the same server if there is one, otherwise connects
+    private Connection openConnection() throws Exception {
+        Connection conn = ConnectionRegistry.take(Connection.getServerKey(address, secret));
+        return conn != null ? conn : new Connection(address, secret);
     }
 
-    /**
-     * Sends a refresh request with the given file hashes.
-     */
-    public CompletableFuture<Path> requestRefresh(byte[][] fileHashes, Path destination) {
-        Connection conn = getFreeConnection();
-        return conn.sendRefreshRequest(fileHashes, destination);
+    private synchronized void addConnection(Connection conn) {
+        connections.add(conn);
+        conn.onSlotReleased(this::slotReleased);
+        conn.onClose(() -> connectionClosed(conn));
+        notifyAll();
     }
 
-    /**
-     * Closes all connections.
-     */
-    public void close() {
-        for (Connection conn : connections) {
-            conn.close();
+    private synchronized void slotReleased() {
+        notifyAll();
+    }
+
+    private synchronized void connectionClosed(Connection conn) {
+        if (!connections.remove(conn)) {
+            return;
         }
 
-        connections.clear();
+        if (!closed && connections.size() + connecting < minPoolSize) {
+            LOGGER.debug("Replacing closed connection to {}", address.getHostString());
+            connectAsync();
+        }
+
+        notifyAll();
     }
-}
 
-/**
- * A helper class representing a single connection.
- * It first performs a plain-text handshake then upgrades the same socket to TLS.
- * Outbound messages are compressed with Zstd and framed; inbound frames are decompressed and processed.
- */
-class Connection {
-    private static final byte PROTOCOL_VERSION = 1;
-
-    private final boolean useCompression;
-    private final byte[] secretBytes;
-    private final SSLSocket socket;
-    private final DataInputStream in;
-    private final DataOutputStream out;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private final AtomicBoolean busy = new AtomicBoolean(false);
-
-    public boolean isActive() {
-        return !socket.isClosed();
+    // Opens a new connection in the background, has to be called while holding the lock
+    private void connectAsync() {
+        connecting++;
+        long delay = Math.max(0, nextConnectAttempt - System.currentTimeMillis());
+        connector.schedule(() -> {
+            Connection conn = null;
+            Exception exception = null;
+            try {
+                conn = openConnection();
+            } catch (Exception e) {
+                exception = e;
+            }
+
+            synchronized (this) {
+                connecting--;
+                if (conn == null) {
+                    if (!closed) {
+                        LOGGER.warn("Failed to open connection to {} - {}", address.getHostString(), exception.getMessage());
+                    }
+                    nextConnectAttempt = System.currentTimeMillis() + RECONNECT_DELAY_MS;
+                    if (!closed && connections.size() + connecting < minPoolSize) {
+                        connectAsync();
+                    }
+                } else if (closed) {
+                    ConnectionRegistry.park(conn);
+                } else {
+                    addConnection(conn);
+                }
+
+                notifyAll();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
-    /**
-     * Creates a new connection by first opening a plain TCP socket,
-     * sending the AMMC magic, waiting for the AMOK reply, and then upgrading to TLS.
-     */
-    public Connection(InetSocketAddress address, Secrets.Secret secret) throws Exception {
-        try {
-            // Step 1. Create a plain TCP connection.
-            LOGGER.debug("Initializing connection to: {}", address.getHostString());
-            Socket plainSocket = new Socket();
-            plainSocket.connect(address, 15000);
-            plainSocket.setSoTimeout(15000);
-            DataOutputStream plainOut = new DataOutputStream(plainSocket.getOutputStream());
-            DataInputStream plainIn = new DataInputStream(plainSocket.getInputStream());
-
-            // Step 2. Send the handshake (AMMC magic) over the plain socket.
-            plainOut.writeInt(MAGIC_AMMC);
-            plainOut.flush();
-
-            // Step 3. Wait for the server’s reply (AMOK magic).
-            int handshakeResponse = plainIn.readInt();
-            if (handshakeResponse != MAGIC_AMOK) {
-                plainSocket.close();
-                throw new IOException("Invalid handshake response from server: " + handshakeResponse);
+    // Shrinks the pool back to its minimum size once the connections aren't needed anymore
+    private synchronized void closeIdleConnections() {
+        var iterator = connections.iterator();
+        while (iterator.hasNext() && connections.size() > minPoolSize) {
+            Connection conn = iterator.next();
+            if (conn.getIdleTime() > IDLE_CONNECTION_TIMEOUT_MS) {
+                iterator.remove();
+                conn.close();
             }
+        }
+    }
 
-            // Step 4. Upgrade the plain socket to TLS using the same underlying connection.
-            SSLContext context = createSSLContext();
-            SSLSocketFactory factory = context.getSocketFactory();
-            // The createSocket(Socket, host, port, autoClose) wraps the existing plain socket.
-            SSLSocket sslSocket = (SSLSocket) factory.createSocket(plainSocket, address.getHostName(), address.getPort(), true);
-            sslSocket.setEnabledProtocols(new String[]{"TLSv1.3"});
-            sslSocket.setEnabledCipherSuites(new String[]{"TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_CHACHA20_POLY1305_SHA256"});
-            sslSocket.startHandshake();
-
-            // Step 5. Perform custom TLS certificate validation.
-            Certificate[] certs = sslSocket.getSession().getPeerCertificates();
-            if (certs == null || certs.length == 0 || certs.length > 3) {
-                sslSocket.close();
-                throw new IOException("Invalid server certificate chain");
+    // Reserves connections which have no requests in flight at all, so splitting a file into ranges doesn't slow down other downloads
+    private synchronized List<Connection> getIdleConnections(int max) {
+        List<Connection> idleConnections = new ArrayList<>();
+        for (Connection conn : connections) {
+            if (idleConnections.size() >= max) {
+                break;
             }
 
-            boolean validated = false;
-            for (Certificate cert : certs) {
-                if (cert instanceof X509Certificate x509Cert) {
-                    String fingerprint = NetUtils.getFingerprint(x509Cert, secret.secret());
-                    if (fingerprint.equals(secret.fingerprint())) {
-                        validated = true;
-                        break;
-                    }
+            if (conn.isActive() && conn.getRequestsInFlight() == 0) {
+                conn.reserve();
+                idleConnections.add(conn);
+            }
+        }
+
+        return idleConnections;
+    }
+
+    // Picks the least loaded connection which still can take another pipelined request.
+    // If there is none, opens another connection when the pool isn't at its maximum size and waits for a slot to free up.
+    private synchronized Connection getFreeConnection() {
+        long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MS;
+
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Download client is closed");
+            }
+
+            Connection freeConnection = null;
+            for (Connection conn : connections) {
+                if (!conn.isActive() || conn.getRequestsInFlight() >= Connection.MAX_REQUESTS_IN_FLIGHT) {
+                    continue;
+                }
+
+                if (freeConnection == null || conn.getRequestsInFlight() < freeConnection.getRequestsInFlight()) {
+                    freeConnection = conn;
                 }
             }
 
-            if (!validated) {
-                sslSocket.close();
-                throw new IOException("Server certificate validation failed");
+            if (freeConnection != null) {
+                freeConnection.reserve();
+                return freeConnection;
             }
 
-//        useCompression = !AddressHelpers.isLocal(address);
-            useCompression = true;
-            secretBytes = Base64.getUrlDecoder().decode(secret.secret());
+            if (connections.size() + connecting < maxPoolSize) {
+                connectAsync();
+            }
 
-            // Now use the SSL socket for further communication.
-            this.socket = sslSocket;
-            this.in = new DataInputStream(sslSocket.getInputStream());
-            this.out = new DataOutputStream(sslSocket.getOutputStream());
-            LOGGER.debug("Connection established with: {}", address.getHostString());
-        } catch (Exception e) {
-            throw new IOException("Failed to establish connection", e);
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IllegalStateException("Timed out waiting for a free connection");
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a free connection", e);
+            }
         }
     }
 
-    public boolean isBusy() {
-        return busy.get();
+    /**
+     * Returns how many requests can be in flight at once across the whole pool, when it is at its maximum size.
+     */
+    public int getMaxRequestsInFlight() {
+        return maxPoolSize * Connection.MAX_REQUESTS_IN_FLIGHT;
     }
 
-    public void setBusy(boolean value) {
-        busy.set(value);
+    /**
+     * Downloads a file identified by its SHA-1 hash to the given destination.
+     * Returns a CompletableFuture that completes when the download finishes.
+     * The file is hashed while it's received, the future fails and the destination is deleted if the hash doesn't match.
+     */
+    public CompletableFuture<Path> downloadFile(byte[] fileHash, Path destination, IntCallback chunkCallback) {
+        return downloadFile(fileHash, destination, 0, chunkCallback);
     }
 
     /**
-     * Sends a file request over this connection.
+     * Downloads a file identified by its SHA-1 hash, resuming at the given offset.
+     * The first offset bytes of the destination are kept and the rest is received from the server.
+     * If the server can't resume at that offset, the destination is overwritten with the whole file.
+     * The whole file is verified the same way as by {@link #downloadFile(byte[], Path, IntCallback)}.
      */
-    public CompletableFuture<Path> sendDownloadFile(byte[] fileHash, Path destination, IntCallback chunkCallback) {
-        if (destination == null) {
-            throw new IllegalArgumentException("Destination cannot be null");
-        }
-
-        return CompletableFuture.supplyAsync(() -> {
-            Exception exception = null;
-            try {
-                // Build File Request message:
-                // [protocolVersion][FILE_REQUEST_TYPE][secret][int: fileHash.length][fileHash]
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos);
-                dos.writeByte(PROTOCOL_VERSION);
-                dos.writeByte(FILE_REQUEST_TYPE);
-                dos.write(secretBytes);
-                dos.writeInt(fileHash.length);
-                dos.write(fileHash);
-                dos.flush();
-                byte[] payload = baos.toByteArray();
-
-                writeProtocolMessage(payload);
-                return readFileResponse(destination, chunkCallback);
-            } catch (Exception e) {
-                exception = e;
-                throw new CompletionException(e);
-            } finally {
-                finalBlock(exception);
-            }
-        }, executor);
+    public CompletableFuture<Path> downloadFile(byte[] fileHash, Path destination, long offset, IntCallback chunkCallback) {
+        Connection conn = getFreeConnection();
+        return conn.sendDownloadFile(fileHash, destination, offset, -1, chunkCallback);
     }
 
     /**
-     * Sends a refresh request over this connection.
+     * Downloads a file identified by its SHA-1 hash, of which an older version is at the base path.
+     * If the server still has that version, it sends just a patch from it, which is applied to the base and written to the destination.
+     * Otherwise the whole file is received to the destination. The base isn't modified.
+     * Either way the file is verified the same way as by {@link #downloadFile(byte[], Path, IntCallback)}.
      */
-    public CompletableFuture<Path> sendRefreshRequest(byte[][] fileHashes, Path destination) {
-        return CompletableFuture.supplyAsync(() -> {
-            Exception exception = null;
-            try {
-                // Build Refresh Request message:
-                // [protocolVersion][REFRESH_REQUEST_TYPE][secret][int: fileHashesCount]
-                // [int: fileHashLength] then each file hash.
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos);
-                dos.writeByte(PROTOCOL_VERSION);
-                dos.writeByte(REFRESH_REQUEST_TYPE);
-                dos.write(secretBytes);
-                dos.writeInt(fileHashes.length);
-                if (fileHashes.length > 0) {
-                    dos.writeInt(fileHashes[0].length); // assuming all hashes have same length
-                    for (byte[] hash : fileHashes) {
-                        dos.write(hash);
-                    }
+    public CompletableFuture<Path> downloadFileDelta(byte[] fileHash, byte[] baseFileHash, Path base, Path destination, IntCallback chunkCallback) {
+        Path patchDestination = destination.resolveSibling(destination.getFileName() + ".patch");
+        Connection conn = getFreeConnection();
+        return conn.sendDeltaDownloadFile(fileHash, baseFileHash, destination, patchDestination, chunkCallback).thenApplyAsync(patched -> {
+            if (patched) { // Off the event loop, both versions are read to memory
+                try {
+                    applyPatch(base, patchDestination, destination, fileHash);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
                 }
-                dos.flush();
-                byte[] payload = baos.toByteArray();
-
-                writeProtocolMessage(payload);
-                return readFileResponse(destination, null);
-            } catch (Exception e) {
-                exception = e;
-                throw new CompletionException(e);
-            } finally {
-                finalBlock(exception);
             }
-        }, executor);
+
+            return destination;
+        });
     }
 
-    private void finalBlock(Exception exception) {
-        // skip any remaining data
+    // The patch is the file zstd compressed with its base as the dictionary
+    private static void applyPatch(Path base, Path patch, Path destination, byte[] fileHash) throws IOException {
         try {
-            while (in.available() > 0) {
-                in.skipBytes(in.available());
+            byte[] patchData = Files.readAllBytes(patch);
+            long size = Zstd.getFrameContentSize(patchData);
+            if (size < 0 || size > DeltaCache.MAX_PATCHED_FILE_SIZE) {
+                throw new IOException("Received patch of invalid size " + size);
             }
-        } catch (IOException e) {
-            if (exception == null) {
-                exception = e;
-                throw new CompletionException(e);
+
+            byte[] file;
+            try (ZstdDecompressCtx decompressCtx = new ZstdDecompressCtx().loadDict(Files.readAllBytes(base))) {
+                file = decompressCtx.decompress(patchData, (int) size);
             }
-        } finally {
-            if (exception == null) {
-                setBusy(false);
+
+            String hash = CustomFileUtils.convertBytesToHex(Connection.newDigest().digest(file));
+            String expectedHash = new String(fileHash, StandardCharsets.UTF_8);
+            if (!hash.equalsIgnoreCase(expectedHash)) { // E.g. the base changed since its hash was sent
+                throw new IOException("Patched file has hash " + hash + ", expected " + expectedHash);
             }
+
+            Files.write(destination, file);
+        } catch (RuntimeException e) { // Zstd errors
+            throw new IOException("Failed to apply patch - " + e.getMessage(), e);
+        } finally {
+            Files.deleteIfExists(patch);
         }
     }
 
     /**
-     * Compresses and writes a protocol message using Zstd.
-     * Message framing: [int: compressedLength][int: originalLength][compressed payload].
+     * Downloads a large file identified by its SHA-1 hash in byte ranges, each range sent over a different idle connection.
+     * The destination is preallocated to the file size and every range is written at its own position.
+     * Falls back to a single request if the file is small or there are no idle connections to spread it across.
+     * If the download fails, the destination is truncated to the part of the file which was received contiguously from its start,
+     * so it can be resumed with {@link #downloadFile(byte[], Path, long, IntCallback)}.
+     * Unlike other downloads, the file isn't verified when it's split into ranges, the caller has to check its hash.
+     * Returns a future with whether the file was split, a file which wasn't split is verified already.
      */
-    private void writeProtocolMessage(byte[] payload) throws IOException {
-        if (!useCompression) {
-            out.writeInt(payload.length);
-            out.write(payload);
-        } else {
-            byte[] compressed = Zstd.compress(payload);
-            out.writeInt(compressed.length);
-            out.writeInt(payload.length);
-            out.write(compressed);
+    public CompletableFuture<Boolean> downloadFileInRanges(byte[] fileHash, Path destination, long fileSize, IntCallback chunkCallback) throws IOException {
+        List<Connection> rangeConnections = new ArrayList<>();
+        rangeConnections.add(getFreeConnection());
+        if (fileSize >= MIN_RANGE_SIZE * 2) {
+            rangeConnections.addAll(getIdleConnections((int) Math.min(fileSize / MIN_RANGE_SIZE, Integer.MAX_VALUE) - 1));
         }
-        out.flush();
-    }
 
-    /**
-     * Reads one framed protocol message, decompressing it.
-     */
-    private byte[] readProtocolMessageFrame() throws IOException {
-        if (!useCompression) {
-            int origLength = in.readInt();
-            byte[] data = new byte[origLength];
-            in.readFully(data);
-            return data;
-        } else {
-            int compLength = in.readInt();
-            int origLength = in.readInt();
-            byte[] compData = new byte[compLength];
-            in.readFully(compData);
-            byte[] decompressed = Zstd.decompress(compData, origLength);
-
-            if (decompressed.length != origLength) {
-                throw new IOException("Decompressed length does not match original length");
-            }
+        if (rangeConnections.size() == 1) {
+            return rangeConnections.get(0).sendDownloadFile(fileHash, destination, 0, -1, chunkCallback).thenApply(path -> false);
+        }
 
-            return decompressed;
+        try (RandomAccessFile raf = new RandomAccessFile(destination.toFile(), "rw")) {
+            raf.setLength(fileSize);
+        } catch (IOException e) {
+            rangeConnections.forEach(Connection::release);
+            throw e;
         }
-    }
 
-    /**
-     * Processes a file/refresh response according to your protocol.
-     * The response is expected to have:
-     *   - A header frame: [protocolVersion][messageType][(if FILE_RESPONSE_TYPE) long expectedFileSize]
-     *   - One or more data frames containing file data until the total file size is reached.
-     *   - A final frame: [protocolVersion][END_OF_TRANSMISSION]
-     */
-    private Path readFileResponse(Path destination, IntCallback chunkCallback) throws IOException {
-        // Header frame
-        byte[] headerFrame = readProtocolMessageFrame();
-        try (DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(headerFrame))) {
-            byte version = headerIn.readByte();
-            byte messageType = headerIn.readByte();
-
-            if (messageType == ERROR) {
-                int errLen = headerIn.readInt();
-                byte[] errBytes = new byte[errLen];
-                headerIn.readFully(errBytes);
-                throw new IOException("Server error: " + new String(errBytes));
+        int ranges = rangeConnections.size();
+        long rangeSize = fileSize / ranges;
+        AtomicLong firstRangeReceived = new AtomicLong(); // Written from the event loop, read once the ranges are done
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[ranges];
+        for (int i = 0; i < ranges; i++) {
+            long offset = i * rangeSize;
+            long length = i == ranges - 1 ? fileSize - offset : rangeSize;
+            IntCallback rangeCallback = i != 0 ? chunkCallback : bytes -> {
+                firstRangeReceived.addAndGet(bytes);
+                if (chunkCallback != null) {
+                    chunkCallback.run(bytes);
+                }
+            };
+
+            try {
+                futures[i] = rangeConnections.get(i).sendDownloadFile(fileHash, destination, offset, length, rangeCallback);
+            } catch (RuntimeException e) { // The failed request released its connection, the rest weren't used
+                rangeConnections.subList(i + 1, ranges).forEach(Connection::release);
+                failRemaining(futures, i, e);
+                break;
             }
+        }
 
-            long receivedBytes = 0;
-            OutputStream fos = new FileOutputStream(destination.toFile()) ;
+        LOGGER.debug("Downloading {} in {} ranges", destination.getFileName(), ranges);
 
-            if (messageType == END_OF_TRANSMISSION) {
-                fos.close();
-                return destination;
+        return CompletableFuture.allOf(futures).handle((result, exception) -> {
+            if (exception == null) {
+                return true;
             }
 
-            if (messageType != FILE_RESPONSE_TYPE) {
-                fos.close();
-                throw new IOException("Unexpected message type: " + messageType);
+            // Only the contiguous part from the start of the file can be resumed
+            try (RandomAccessFile raf = new RandomAccessFile(destination.toFile(), "rw")) {
+                raf.setLength(firstRangeReceived.get());
+            } catch (IOException e) {
+                exception.addSuppressed(e);
             }
 
-            long expectedFileSize = headerIn.readLong();
+            throw exception instanceof CompletionException completionException ? completionException : new CompletionException(exception);
+        });
+    }
 
-            // Read data frames until the expected file size is received.
-            while (receivedBytes < expectedFileSize) {
-                byte[] dataFrame = readProtocolMessageFrame();
-                int toWrite = Math.min(dataFrame.length, (int)(expectedFileSize - receivedBytes));
+    /**
+     * Downloads a large file identified by its SHA-1 hash, of which an older version is at the base path, chunk by chunk.
+     * The base is split into chunks the same way as the file, chunks which the base has too are copied from it
+     * and only the rest is requested from the server, adjacent missing chunks in a single range request.
+     * The base isn't modified. If the download fails, the destination is deleted, since it has gaps which can't be resumed.
+     * Like ranges, the file isn't verified, the caller has to check its hash.
+     */
+    public CompletableFuture<Path> downloadFileChunked(byte[] fileHash, List<FileChunker.Chunk> chunks, Path base, Path destination, IntCallback chunkCallback) throws IOException {
+        Map<String, FileChunker.Chunk> baseChunks = new HashMap<>();
+        for (FileChunker.Chunk chunk : FileChunker.chunk(base)) {
+            baseChunks.putIfAbsent(chunk.sha1(), chunk);
+        }
 
-                fos.write(dataFrame, 0, toWrite);
-                receivedBytes += toWrite;
+        List<long[]> missingRanges = new ArrayList<>(); // [offset, length]
+        int missingChunks = 0;
+        try (FileChannel input = FileChannel.open(base, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (FileChunker.Chunk chunk : chunks) {
+                FileChunker.Chunk baseChunk = baseChunks.get(chunk.sha1());
+                if (baseChunk == null || baseChunk.length() != chunk.length()) {
+                    missingChunks++;
+                    long[] lastRange = missingRanges.isEmpty() ? null : missingRanges.get(missingRanges.size() - 1);
+                    if (lastRange != null && lastRange[0] + lastRange[1] == chunk.offset()) {
+                        lastRange[1] += chunk.length();
+                    } else {
+                        missingRanges.add(new long[]{chunk.offset(), chunk.length()});
+                    }
+                    continue;
+                }
 
-                if (chunkCallback != null) {
-                    chunkCallback.run(toWrite);
+                output.position(chunk.offset());
+                long copied = 0;
+                while (copied < chunk.length()) {
+                    long transferred = input.transferTo(baseChunk.offset() + copied, chunk.length() - copied, output);
+                    if (transferred <= 0) {
+                        throw new IOException("File " + base + " changed while copying its chunks");
+                    }
+                    copied += transferred;
                 }
             }
+        } catch (IOException e) {
+            Files.deleteIfExists(destination);
+            throw e;
+        }
 
-            fos.close();
+        LOGGER.debug("Downloading {} of {} chunks of {} in {} ranges", missingChunks, chunks.size(), destination.getFileName(), missingRanges.size());
 
-            // Read EOT frame
-            byte[] eotFrame = readProtocolMessageFrame();
-            try (DataInputStream eotIn = new DataInputStream(new ByteArrayInputStream(eotFrame))) {
-                byte ver = eotIn.readByte();
-                byte eotType = eotIn.readByte();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[missingRanges.size()];
+        for (int i = 0; i < futures.length; i++) {
+            long[] range = missingRanges.get(i);
+            try {
+                futures[i] = getFreeConnection().sendDownloadFile(fileHash, destination, range[0], range[1], chunkCallback);
+            } catch (RuntimeException e) { // E.g. timed out waiting for a free connection
+                failRemaining(futures, i, e);
+                break;
+            }
+        }
 
-                if (ver != version || eotType != END_OF_TRANSMISSION) {
-                    throw new IOException("Invalid end-of-transmission marker. Expected version " + version +
-                            " and type " + END_OF_TRANSMISSION + ", got version " + ver + " and type " + eotType);
-                }
+        return CompletableFuture.allOf(futures).handle((result, exception) -> {
+            if (exception == null) {
+                return destination;
             }
 
-            return destination;
+            try {
+                Files.deleteIfExists(destination);
+            } catch (IOException e) {
+                exception.addSuppressed(e);
+            }
+
+            throw exception instanceof CompletionException completionException ? completionException : new CompletionException(exception);
+        });
+    }
+
+    // Ranges which weren't requested fail, so the destination is cleaned up once the requested ones are done writing to it
+    private static void failRemaining(CompletableFuture<?>[] futures, int from, Throwable cause) {
+        for (int i = from; i < futures.length; i++) {
+            futures[i] = CompletableFuture.failedFuture(cause);
         }
     }
 
     /**
-     * Closes the underlying socket and shuts down the executor.
+     * Downloads multiple files identified by their SHA-1 hashes in a single request, the server answers with one continuous stream.
+     * Returns a CompletableFuture that completes when the whole batch finishes.
+     * Files which are not available on the server are not created at their destinations.
+     * Every received file is verified against its hash, a mismatch fails the whole batch.
      */
-    public void close() {
-        try {
-            socket.close();
-        } catch (Exception e) {
-            // Log or handle as needed.
-        }
-        executor.shutdownNow();
+    public CompletableFuture<Path[]> downloadFiles(byte[][] fileHashes, Path[] destinations, IntCallback chunkCallback) {
+        Connection conn = getFreeConnection();
+        return conn.sendBatchDownloadFile(fileHashes, destinations, chunkCallback);
     }
 
     /**
-     * Creates an SSLContext that trusts all certificates (like InsecureTrustManagerFactory).
+     * Sends a refresh request with the given file hashes.
      */
-    private SSLContext createSSLContext() throws Exception {
-        SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
-        TrustManager[] trustAllCerts = new TrustManager[] {
-            new X509TrustManager() {
-                public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
-                public void checkClientTrusted(X509Certificate[] certs, String authType) { }
-                public void checkServerTrusted(X509Certificate[] certs, String authType) { }
-            }
-        };
-        sslContext.init(null, trustAllCerts, new SecureRandom());
-        return sslContext;
+    public CompletableFuture<Path> requestRefresh(byte[][] fileHashes, Path destination) {
+        Connection conn = getFreeConnection();
+        return conn.sendRefreshRequest(fileHashes, destination);
+    }
+
+    /**
+     * Requests the modpack content, of which the client has the version with the base content hash.
+     * If the server still has that version, it sends just the diff from it to the diff destination, otherwise the whole content to the destination.
+     * Files with the given hashes are refreshed on the server before the content is sent, there may be none.
+     * Returns a future with whether a diff was received, the diff isn't verified until it's applied.
+     */
+    public CompletableFuture<Boolean> requestContentDiff(byte[] baseContentHash, byte[][] fileHashes, Path destination, Path diffDestination) {
+        Connection conn = getFreeConnection();
+        return conn.sendContentDiffRequest(baseContentHash, fileHashes, destination, diffDestination);
+    }
+
+    /**
+     * Closes the client. Idle connections are kept open for a while, so the next client to the same server can take them over,
+     * the rest of the connections is closed.
+     */
+    public synchronized void close() {
+        closed = true;
+        connector.shutdown();
+
+        for (Connection conn : new ArrayList<>(connections)) {
+            ConnectionRegistry.park(conn);
+        }
+
+        connections.clear();
+        notifyAll();
     }
 }
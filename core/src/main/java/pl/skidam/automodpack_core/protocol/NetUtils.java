@@ -11,7 +11,10 @@ import pl.skidam.automodpack_core.utils.CustomFileUtils;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.*;
@@ -22,11 +25,17 @@ import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Base64;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
 
 public class NetUtils {
 
     public static final int MAGIC_AMMC = 0x414D4D43;
+    public static final int MAGIC_AMMD = 0x414D4D44; // AMMC followed by the ids of the zstd dictionaries the client has
     public static final int MAGIC_AMOK = 0x414D4F4B;
+    public static final int MAGIC_AMOD = 0x414D4F44; // AMOK followed by the id of the server's zstd dictionary
+
+    public static final byte PROTOCOL_VERSION = 2; // 2 added request ids to all requests and byte ranges to file requests
 
     public static final byte ECHO_TYPE = 0x00;
     public static final byte FILE_REQUEST_TYPE = 0x01;
@@ -34,6 +43,52 @@ public class NetUtils {
     public static final byte REFRESH_REQUEST_TYPE = 0x03;
     public static final byte END_OF_TRANSMISSION = 0x04;
     public static final byte ERROR = 0x05;
+    public static final byte FILE_CHUNK_TYPE = 0x06;
+    public static final byte BATCH_FILE_REQUEST_TYPE = 0x07;
+    public static final byte DICTIONARY_REQUEST_TYPE = 0x08;
+    public static final byte DELTA_FILE_REQUEST_TYPE = 0x09;
+    public static final byte PATCH_RESPONSE_TYPE = 0x0A;
+    public static final byte CONTENT_DIFF_REQUEST_TYPE = 0x0B;
+
+    public static final int MAX_ADVERTISED_DICTIONARIES = 16;
+    public static final int MAX_REQUESTED_HASHES = 65536; // Per request, e.g. every file of a big modpack to refresh
+    public static final int MAX_HASH_LENGTH = 64;
+
+    // Formats which are compressed already, zstd can't make them noticeably smaller
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("jar", "zip", "gz", "xz", "zst", "7z", "rar", "png", "jpg", "jpeg", "webp", "ogg", "mp3");
+    private static final int ENTROPY_SAMPLE_SIZE = 16 * 1024;
+    private static final double INCOMPRESSIBLE_ENTROPY = 7.5; // Bits per byte, 8 is random data
+
+    /**
+     * Checks whether it's worth to compress the file when sending it.
+     * Files in compressed formats are not, other files are judged by the entropy of a sample from their beginning.
+     */
+    public static boolean isWorthCompressing(Path path, FileChannel channel) throws IOException {
+        String fileName = path.getFileName().toString();
+        int extensionIndex = fileName.lastIndexOf('.');
+        if (extensionIndex != -1 && COMPRESSED_EXTENSIONS.contains(fileName.substring(extensionIndex + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(ENTROPY_SAMPLE_SIZE, channel.size()));
+        while (sample.hasRemaining() && channel.read(sample, sample.position()) > 0) { }
+        sample.flip();
+
+        int[] counts = new int[256];
+        while (sample.hasRemaining()) {
+            counts[sample.get() & 0xFF]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double probability = (double) count / sample.limit();
+                entropy -= probability * Math.log(probability) / Math.log(2);
+            }
+        }
+
+        return entropy < INCOMPRESSIBLE_ENTROPY;
+    }
 
     public static String getFingerprint(X509Certificate cert, String secret) throws CertificateEncodingException {
         byte[] sharedSecret = secret.getBytes();
@@ -0,0 +1,164 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import pl.skidam.automodpack_core.protocol.NetUtils;
+import pl.skidam.automodpack_core.protocol.netty.handler.FileResponseChunkedInput;
+import pl.skidam.automodpack_core.utils.CustomFileUtils;
+import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+
+/**
+ * Keeps zstd compressed copies of the hosted files on disk, so every file is compressed once instead of once for every client downloading it.
+ * A copy is a sequence of [int compressedLength][int originalLength][zstd compressed data] records,
+ * one for each {@link FileResponseChunkedInput#CHUNK_SIZE} chunk of the file, which are sent as they are in place of compressing the chunks.
+ * Copies are named after the sha1 of the file and built in the background, files which aren't worth compressing get no copy.
+ * Copies of files which aren't hosted anymore are deleted.
+ */
+public class CompressedFileCache {
+    private static final String EXTENSION = ".zst";
+    private static final int COMPRESSION_LEVEL = 9; // Compressed once, so it can be slower than the level used for live compression
+    private final Path cacheDir;
+    private final Set<String> ready = ConcurrentHashMap.newKeySet();
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(new CustomThreadFactoryBuilder().setNameFormat("AutoModpackCacheBuilder-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+    public CompressedFileCache(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Returns the compressed copy of the file with the given sha1, if it's built already.
+     */
+    public Optional<Path> get(String sha1) {
+        if (!ready.contains(sha1)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(getCachePath(sha1));
+    }
+
+    /**
+     * Deletes copies of files which aren't hosted anymore and builds missing copies of the hosted files in the background.
+     */
+    public void update(Map<String, Path> hostedFiles) {
+        Map<String, Path> files = new HashMap<>(hostedFiles);
+        builder.execute(() -> {
+            try {
+                Files.createDirectories(cacheDir);
+                try (var stream = Files.list(cacheDir)) {
+                    for (Path cachePath : stream.toList()) {
+                        String fileName = cachePath.getFileName().toString();
+                        String sha1 = fileName.endsWith(EXTENSION) ? fileName.substring(0, fileName.length() - EXTENSION.length()) : null;
+                        if (sha1 != null && files.containsKey(sha1)) {
+                            ready.add(sha1);
+                        } else {
+                            if (sha1 != null) {
+                                ready.remove(sha1);
+                            }
+                            delete(cachePath);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to clean up compressed file cache", e);
+            }
+
+            files.forEach(this::build);
+        });
+    }
+
+    /**
+     * Builds the copy of the file in the background, if it doesn't have one yet.
+     */
+    public void add(String sha1, Path file) {
+        builder.execute(() -> build(sha1, file));
+    }
+
+    /**
+     * Deletes the copy of the file.
+     */
+    public void remove(String sha1) {
+        builder.execute(() -> {
+            ready.remove(sha1);
+            delete(getCachePath(sha1));
+        });
+    }
+
+    // Runs only on the builder thread
+    private void build(String sha1, Path file) {
+        if (ready.contains(sha1)) {
+            return;
+        }
+
+        Path cachePath = getCachePath(sha1);
+        Path tempPath = cacheDir.resolve(sha1 + EXTENSION + ".tmp");
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (input.size() == 0 || !NetUtils.isWorthCompressing(file, input)) {
+                return;
+            }
+
+            // The file is hashed while compressing, it might have changed since it was hosted under this sha1
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            ByteBuffer chunk = ByteBuffer.allocate(FileResponseChunkedInput.CHUNK_SIZE);
+            byte[] compressed = new byte[(int) Zstd.compressBound(chunk.capacity())];
+
+            Files.createDirectories(cacheDir);
+            try (ZstdCompressCtx compressCtx = new ZstdCompressCtx().setLevel(COMPRESSION_LEVEL);
+                 OutputStream fileOutput = Files.newOutputStream(tempPath);
+                 DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, FileResponseChunkedInput.CHUNK_SIZE))) {
+                long position = 0;
+                while (position < input.size()) {
+                    chunk.clear();
+                    while (chunk.hasRemaining() && input.read(chunk, position + chunk.position()) > 0) { }
+                    int length = chunk.position();
+                    digest.update(chunk.array(), 0, length);
+
+                    int compressedLength = compressCtx.compressByteArray(compressed, 0, compressed.length, chunk.array(), 0, length);
+                    output.writeInt(compressedLength);
+                    output.writeInt(length);
+                    output.write(compressed, 0, compressedLength);
+                    position += length;
+                }
+            }
+
+            if (!sha1.equals(CustomFileUtils.convertBytesToHex(digest.digest()))) {
+                LOGGER.debug("File {} changed, not caching it", file);
+                delete(tempPath);
+                return;
+            }
+
+            Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            ready.add(sha1);
+            LOGGER.debug("Cached compressed copy of {}", file);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to cache compressed copy of {} - {}", file, e.getMessage());
+            delete(tempPath);
+        }
+    }
+
+    private Path getCachePath(String sha1) {
+        return cacheDir.resolve(sha1 + EXTENSION);
+    }
+
+    private void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) { // E.g. still being sent on Windows, gets deleted on the next update
+            LOGGER.debug("Failed to delete {} - {}", path, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import pl.skidam.automodpack_core.config.ConfigTools;
+import pl.skidam.automodpack_core.config.Jsons;
+import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
+import pl.skidam.automodpack_core.utils.ModpackContentTools;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+
+/**
+ * Keeps the last versions of the modpack content and creates diffs from them to the current content,
+ * so clients which have an older version of the content receive just the changed items instead of the whole content.
+ * Versions are copies of the content file named after its content hash. A diff is created on the first request for it
+ * and kept on disk until the content changes. Diffs which aren't much smaller than the content are not sent.
+ */
+public class ContentDiffCache {
+    private static final int MAX_VERSIONS = 16;
+    private static final double MAX_DIFF_RATIO = 0.8;
+    private static final String EXTENSION = ".json";
+    private final Path versionsDir;
+    private final Path diffsDir;
+    private final Map<String, CompletableFuture<Optional<Path>>> diffs = new ConcurrentHashMap<>();
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(new CustomThreadFactoryBuilder().setNameFormat("AutoModpackContentDiffBuilder-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+    private volatile String contentHash;
+
+    public ContentDiffCache(Path versionsDir, Path diffsDir) {
+        this.versionsDir = versionsDir;
+        this.diffsDir = diffsDir;
+    }
+
+    /**
+     * Keeps the version of the content which is now hosted and evicts old versions and diffs to previous versions.
+     * The content file is copied right away, it gets overwritten on the next change.
+     */
+    public void update(String contentHash, Path contentFile) {
+        if (contentHash == null || !isValidSha1(contentHash)) {
+            return;
+        }
+
+        Path versionPath = versionsDir.resolve(contentHash + EXTENSION);
+        try {
+            Files.createDirectories(versionsDir);
+            if (Files.exists(versionPath)) { // Content went back to this version, it's the newest one again
+                Files.setLastModifiedTime(versionPath, FileTime.fromMillis(System.currentTimeMillis()));
+            } else {
+                Path tempPath = versionPath.resolveSibling(versionPath.getFileName() + ".tmp");
+                Files.copy(contentFile, tempPath, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempPath, versionPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed to keep version of modpack content {} - {}", contentHash, e.getMessage());
+            return;
+        }
+
+        if (!contentHash.equals(this.contentHash)) {
+            this.contentHash = contentHash;
+            diffs.clear();
+            builder.execute(this::evict);
+        }
+    }
+
+    /**
+     * Returns a future with the diff from the content with the base hash to the current content, or empty if there is no version
+     * of the base content or the diff is not worth it. The diff from the current content is empty. Diffs get created in the background.
+     */
+    public CompletableFuture<Optional<Path>> getDiff(String baseContentHash) {
+        String contentHash = this.contentHash;
+        // Checked before anything gets cached, base hashes come from clients and most of them have no version here
+        if (contentHash == null || !isValidSha1(baseContentHash) || !Files.exists(versionsDir.resolve(baseContentHash + EXTENSION))) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        Path diffPath = diffsDir.resolve(baseContentHash + "-" + contentHash + EXTENSION);
+        return diffs.computeIfAbsent(diffPath.getFileName().toString(), key -> CompletableFuture.supplyAsync(() -> {
+            if (Files.exists(diffPath)) {
+                return Optional.of(diffPath);
+            }
+
+            return createDiff(baseContentHash, contentHash, diffPath);
+        }, builder));
+    }
+
+    // Runs only on the builder thread
+    private Optional<Path> createDiff(String baseContentHash, String contentHash, Path diffPath) {
+        Path basePath = versionsDir.resolve(baseContentHash + EXTENSION);
+        Path contentPath = versionsDir.resolve(contentHash + EXTENSION);
+        Path tempPath = diffPath.resolveSibling(diffPath.getFileName() + ".tmp");
+        try {
+            if (!Files.exists(basePath) || !Files.exists(contentPath)) {
+                return Optional.empty();
+            }
+
+            Jsons.ModpackContentFields baseContent = ConfigTools.loadModpackContent(basePath);
+            Jsons.ModpackContentFields content = ConfigTools.loadModpackContent(contentPath);
+            if (baseContent == null || content == null) {
+                return Optional.empty();
+            }
+
+            Jsons.ModpackContentDiffFields diff = ModpackContentTools.computeContentDiff(baseContent, content);
+            if (!baseContentHash.equals(diff.baseContentHash) || !contentHash.equals(diff.contentHash)) { // E.g. versions edited by hand
+                LOGGER.debug("Versions of modpack content changed, not creating a diff");
+                return Optional.empty();
+            }
+
+            Files.createDirectories(diffsDir);
+            ConfigTools.save(tempPath, diff);
+            long diffSize = Files.size(tempPath);
+            long contentSize = Files.size(contentPath);
+            if (diffSize > contentSize * MAX_DIFF_RATIO) {
+                LOGGER.debug("Diff of modpack content from {} is not worth it, {} of {} bytes", baseContentHash, diffSize, contentSize);
+                delete(tempPath);
+                return Optional.empty();
+            }
+
+            Files.move(tempPath, diffPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Created diff of modpack content from {}, {} of {} bytes", baseContentHash, diffSize, contentSize);
+            return Optional.of(diffPath);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to create diff of modpack content from {} - {}", baseContentHash, e.getMessage());
+            delete(tempPath);
+            return Optional.empty();
+        }
+    }
+
+    // Runs only on the builder thread
+    private void evict() {
+        try {
+            if (Files.isDirectory(versionsDir)) {
+                List<Path> versions;
+                try (var stream = Files.list(versionsDir)) {
+                    versions = new ArrayList<>(stream.filter(path -> path.getFileName().toString().endsWith(EXTENSION)).toList());
+                }
+
+                // Newest versions are kept, those are the ones clients most likely have
+                versions.sort(Comparator.comparingLong((Path path) -> path.toFile().lastModified()).reversed());
+                versions.subList(Math.min(MAX_VERSIONS, versions.size()), versions.size()).forEach(this::delete);
+            }
+
+            if (Files.isDirectory(diffsDir)) {
+                try (var stream = Files.list(diffsDir)) {
+                    for (Path diffPath : stream.toList()) {
+                        String[] versions = diffPath.getFileName().toString().replace(EXTENSION, "").split("-");
+                        if (versions.length != 2 || !Files.exists(versionsDir.resolve(versions[0] + EXTENSION)) || !versions[1].equals(contentHash)) {
+                            delete(diffPath);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to evict old versions of modpack content", e);
+        }
+    }
+
+    // Hashes come from clients, so they must not be able to point outside the cache
+    private static boolean isValidSha1(String sha1) {
+        return sha1.length() == 40 && sha1.chars().allMatch(c -> Character.digit(c, 16) != -1);
+    }
+
+    private void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.debug("Failed to delete {} - {}", path, e.getMessage());
+        }
+    }
+}
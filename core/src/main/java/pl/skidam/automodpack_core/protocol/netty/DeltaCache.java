@@ -0,0 +1,193 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import com.github.luben.zstd.ZstdCompressCtx;
+import pl.skidam.automodpack_core.utils.CustomFileUtils;
+import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+
+/**
+ * Keeps previous versions of the hosted files and creates binary patches from them to the current versions,
+ * so clients which have an older version of a file download just the patch instead of the whole file.
+ * Versions are hard links to the hosted files named after their sha1, they take no space while the file is hosted
+ * and keep its content once it gets replaced. A patch is the new version zstd compressed with the old version as the dictionary,
+ * it's created on the first request for it and kept on disk. Patches which aren't much smaller than the file are not sent.
+ * Versions which are not hosted anymore are evicted when there are more than {@link #MAX_OLD_VERSIONS}, patches to files
+ * which are not hosted anymore or from evicted versions are deleted.
+ */
+public class DeltaCache {
+    public static final long MAX_PATCHED_FILE_SIZE = 32 * 1024 * 1024; // Both versions are held in memory when creating and applying the patch
+    private static final int MAX_OLD_VERSIONS = 256;
+    private static final int COMPRESSION_LEVEL = 9;
+    private static final int MAX_HASH_LOG = 24;
+    private static final double MAX_PATCH_RATIO = 0.8;
+    private static final String PATCH_EXTENSION = ".patch.zst";
+    private final Path versionsDir;
+    private final Path patchesDir;
+    private final Set<String> hosted = ConcurrentHashMap.newKeySet();
+    private final Map<String, CompletableFuture<Optional<Path>>> patches = new ConcurrentHashMap<>();
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(new CustomThreadFactoryBuilder().setNameFormat("AutoModpackDeltaBuilder-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+    public DeltaCache(Path versionsDir, Path patchesDir) {
+        this.versionsDir = versionsDir;
+        this.patchesDir = patchesDir;
+    }
+
+    /**
+     * Keeps versions of the hosted files and evicts old versions and patches.
+     */
+    public void update(Map<String, Path> hostedFiles) {
+        Map<String, Path> files = new HashMap<>(hostedFiles);
+        hosted.clear();
+        hosted.addAll(files.keySet());
+        patches.clear();
+        builder.execute(() -> {
+            files.forEach(this::keepVersion);
+            evict();
+        });
+    }
+
+    public void add(String sha1, Path file) {
+        hosted.add(sha1);
+        builder.execute(() -> keepVersion(sha1, file));
+    }
+
+    /**
+     * The file isn't hosted anymore, its version is kept for patches to newer versions.
+     */
+    public void remove(String sha1) {
+        hosted.remove(sha1);
+    }
+
+    /**
+     * Returns a future with the patch from the version with the base sha1 to the file, or empty if there is no version to patch
+     * or the patch is not worth it. Patches get created in the background.
+     */
+    public CompletableFuture<Optional<Path>> getPatch(String baseSha1, String sha1, Path file) {
+        // Checked before anything gets cached, base hashes come from clients and most of them have no version here
+        if (baseSha1.equals(sha1) || !isValidSha1(baseSha1) || !isValidSha1(sha1) || !Files.exists(versionsDir.resolve(baseSha1))) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        Path patchPath = patchesDir.resolve(baseSha1 + "-" + sha1 + PATCH_EXTENSION);
+        return patches.computeIfAbsent(patchPath.getFileName().toString(), key -> CompletableFuture.supplyAsync(() -> {
+            if (Files.exists(patchPath)) {
+                return Optional.of(patchPath);
+            }
+
+            return createPatch(baseSha1, sha1, file, patchPath);
+        }, builder));
+    }
+
+    // Runs only on the builder thread
+    private void keepVersion(String sha1, Path file) {
+        Path versionPath = versionsDir.resolve(sha1);
+        try {
+            if (Files.exists(versionPath) || Files.size(file) == 0 || Files.size(file) > MAX_PATCHED_FILE_SIZE) {
+                return;
+            }
+
+            Files.createDirectories(versionsDir);
+            Files.createLink(versionPath, file);
+        } catch (IOException | UnsupportedOperationException e) { // E.g. file system without hard links, there won't be patches from this version
+            LOGGER.debug("Failed to keep version of {} - {}", file, e.getMessage());
+        }
+    }
+
+    // Runs only on the builder thread
+    private Optional<Path> createPatch(String baseSha1, String sha1, Path file, Path patchPath) {
+        Path basePath = versionsDir.resolve(baseSha1);
+        Path tempPath = patchPath.resolveSibling(patchPath.getFileName() + ".tmp");
+        try {
+            if (!Files.exists(basePath) || Files.size(basePath) > MAX_PATCHED_FILE_SIZE || Files.size(file) > MAX_PATCHED_FILE_SIZE) {
+                return Optional.empty();
+            }
+
+            // Versions are links, the content changes if the file got edited in place
+            byte[] base = Files.readAllBytes(basePath);
+            byte[] target = Files.readAllBytes(file);
+            if (!baseSha1.equalsIgnoreCase(sha1(base)) || !sha1.equalsIgnoreCase(sha1(target))) {
+                LOGGER.debug("Versions of {} changed, not creating a patch", file);
+                return Optional.empty();
+            }
+
+            // Matches have to reach back over the whole base, which is in front of the file as the dictionary
+            int windowLog = Math.max(10, 64 - Long.numberOfLeadingZeros(base.length + (long) target.length - 1));
+            int hashLog = Math.min(windowLog, MAX_HASH_LOG);
+            byte[] patch;
+            try (ZstdCompressCtx compressCtx = new ZstdCompressCtx().setLevel(COMPRESSION_LEVEL).setLong(windowLog).setHashLog(hashLog).setChainLog(hashLog).loadDict(base)) {
+                patch = compressCtx.compress(target);
+            }
+
+            if (patch.length > target.length * MAX_PATCH_RATIO) {
+                LOGGER.debug("Patch of {} is not worth it, {} of {} bytes", file, patch.length, target.length);
+                return Optional.empty();
+            }
+
+            Files.createDirectories(patchesDir);
+            Files.write(tempPath, patch);
+            Files.move(tempPath, patchPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Created patch of {} from {}, {} of {} bytes", file.getFileName(), baseSha1, patch.length, target.length);
+            return Optional.of(patchPath);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to create patch of {} - {}", file, e.getMessage());
+            delete(tempPath);
+            return Optional.empty();
+        }
+    }
+
+    // Runs only on the builder thread
+    private void evict() {
+        try {
+            if (Files.isDirectory(versionsDir)) {
+                List<Path> oldVersions;
+                try (var stream = Files.list(versionsDir)) {
+                    oldVersions = new ArrayList<>(stream.filter(path -> !hosted.contains(path.getFileName().toString())).toList());
+                }
+
+                // Newest versions are kept, those are the ones clients most likely have
+                oldVersions.sort(Comparator.comparingLong((Path path) -> path.toFile().lastModified()).reversed());
+                oldVersions.subList(Math.min(MAX_OLD_VERSIONS, oldVersions.size()), oldVersions.size()).forEach(this::delete);
+            }
+
+            if (Files.isDirectory(patchesDir)) {
+                try (var stream = Files.list(patchesDir)) {
+                    for (Path patchPath : stream.toList()) {
+                        String[] versions = patchPath.getFileName().toString().replace(PATCH_EXTENSION, "").split("-");
+                        if (versions.length != 2 || !Files.exists(versionsDir.resolve(versions[0])) || !hosted.contains(versions[1])) {
+                            delete(patchPath);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to evict old versions", e);
+        }
+    }
+
+    // Hashes come from clients, so they must not be able to point outside the cache
+    private static boolean isValidSha1(String sha1) {
+        return sha1.length() == 40 && sha1.chars().allMatch(c -> Character.digit(c, 16) != -1);
+    }
+
+    private static String sha1(byte[] data) throws Exception {
+        return CustomFileUtils.convertBytesToHex(MessageDigest.getInstance("SHA-1").digest(data));
+    }
+
+    private void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.debug("Failed to delete {} - {}", path, e.getMessage());
+        }
+    }
+}
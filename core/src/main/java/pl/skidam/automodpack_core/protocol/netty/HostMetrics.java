@@ -0,0 +1,301 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+import static pl.skidam.automodpack_core.protocol.NetUtils.*;
+
+/**
+ * Counts what the modpack host does, connections, requests by type and by file, bytes sent and how long requests take.
+ * Readable over JMX through {@link HostMetricsMXBean} and in the Prometheus text format, see {@link #toPrometheus()}.
+ * Counters are cheap to update from any thread, the numbers are only put together when they are read.
+ */
+public class HostMetrics implements HostMetricsMXBean {
+    public static final String OBJECT_NAME = "pl.skidam.automodpack:type=HostMetrics";
+    private static final double[] LATENCY_BUCKETS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 }; // Seconds
+    private final NettyServer server;
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder authenticationFailures = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+    private final Map<String, LongAdder> requestsByType = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> fileRequests = new ConcurrentHashMap<>(); // sha1, requests
+    private final Histogram requestDuration = new Histogram();
+    private final Histogram timeToFirstByte = new Histogram();
+    private boolean registered = false;
+
+    public HostMetrics(NettyServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Makes the metrics readable over JMX, does nothing if they are already.
+     */
+    public synchronized void registerMBean() {
+        if (registered) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch (Exception e) { // E.g. another instance is registered already or JMX is not available
+            LOGGER.warn("Failed to register host metrics over JMX - {}", e.getMessage());
+        }
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void authenticationFailed() {
+        authenticationFailures.increment();
+    }
+
+    public void requestReceived(byte type) {
+        requestsByType.computeIfAbsent(requestTypeName(type), key -> new LongAdder()).increment();
+    }
+
+    public void requestFailed() {
+        failedRequests.increment();
+    }
+
+    public void requestServed(long nanos) {
+        requestDuration.observe(nanos);
+    }
+
+    public void firstByteWritten(long nanos) {
+        timeToFirstByte.observe(nanos);
+    }
+
+    public void fileRequested(String sha1) {
+        fileRequests.computeIfAbsent(sha1, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Counts a frame sent to a client, the original length is the length of the data before it got compressed.
+     */
+    public void frameEncoded(int originalLength, int frameLength) {
+        bytesBeforeCompression.add(originalLength);
+        bytesSent.add(frameLength);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.getConnections().size();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getAuthenticationFailures() {
+        return authenticationFailures.sum();
+    }
+
+    @Override
+    public long getRequests() {
+        return requestsByType.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByType() {
+        Map<String, Long> requests = new TreeMap<>();
+        requestsByType.forEach((type, count) -> requests.put(type, count.sum()));
+        return requests;
+    }
+
+    @Override
+    public Map<String, Long> getFileRequests() {
+        Map<String, Long> requests = new TreeMap<>();
+        fileRequests.forEach((sha1, count) -> requests.put(fileName(sha1) + " " + sha1, count.sum()));
+        return requests;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long sent = bytesSent.sum();
+        return sent == 0 ? 1 : (double) bytesBeforeCompression.sum() / sent;
+    }
+
+    @Override
+    public double getRequestDurationMillisP50() {
+        return requestDuration.quantile(0.5) * 1000;
+    }
+
+    @Override
+    public double getRequestDurationMillisP99() {
+        return requestDuration.quantile(0.99) * 1000;
+    }
+
+    @Override
+    public double getTimeToFirstByteMillisP50() {
+        return timeToFirstByte.quantile(0.5) * 1000;
+    }
+
+    @Override
+    public double getTimeToFirstByteMillisP99() {
+        return timeToFirstByte.quantile(0.99) * 1000;
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        return server.getWriteBudget().getPendingBytes();
+    }
+
+    @Override
+    public int getPausedConnections() {
+        return server.getWriteBudget().getPausedConnections();
+    }
+
+    @Override
+    public long getWriteThroughput() {
+        return server.getTrafficShaper().trafficCounter().lastWriteThroughput();
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "automodpack_connections", "Authenticated connections", getActiveConnections());
+        counter(out, "automodpack_connections_opened_total", "Connections authenticated since the start", getConnectionsOpened());
+        counter(out, "automodpack_authentication_failures_total", "Requests rejected because of an invalid secret", getAuthenticationFailures());
+        counter(out, "automodpack_failed_requests_total", "Requests answered with an error", getFailedRequests());
+        counter(out, "automodpack_sent_bytes_total", "Bytes of frames sent to clients, before encryption", getBytesSent());
+        counter(out, "automodpack_uncompressed_bytes_total", "Bytes of data sent to clients, before compression", getBytesBeforeCompression());
+        gauge(out, "automodpack_pending_write_bytes", "Bytes queued for the sockets of all connections", getPendingWriteBytes());
+        gauge(out, "automodpack_paused_connections", "Connections paused because the write memory budget is used up", getPausedConnections());
+        gauge(out, "automodpack_write_throughput_bytes", "Bytes per second written in the last traffic check interval", getWriteThroughput());
+
+        header(out, "automodpack_requests_total", "Requests by type", "counter");
+        getRequestsByType().forEach((type, count) -> out.append("automodpack_requests_total{type=\"").append(type).append("\"} ").append(count).append('\n'));
+
+        header(out, "automodpack_file_requests_total", "Requests by hosted file", "counter");
+        fileRequests.forEach((sha1, count) -> out.append("automodpack_file_requests_total{sha1=\"").append(escape(sha1))
+                .append("\",file=\"").append(escape(fileName(sha1))).append("\"} ").append(count.sum()).append('\n'));
+
+        requestDuration.toPrometheus(out, "automodpack_request_duration_seconds", "Time from receiving a request to writing the whole response");
+        timeToFirstByte.toPrometheus(out, "automodpack_time_to_first_byte_seconds", "Time from receiving a request to writing the first part of the response");
+        return out.toString();
+    }
+
+    private String fileName(String sha1) {
+        return server.getPath(sha1).map(Path::getFileName).map(Path::toString).orElse("");
+    }
+
+    private static String requestTypeName(byte type) {
+        return switch (type) {
+            case ECHO_TYPE -> "echo";
+            case FILE_REQUEST_TYPE -> "file";
+            case REFRESH_REQUEST_TYPE -> "refresh";
+            case BATCH_FILE_REQUEST_TYPE -> "batch";
+            case DICTIONARY_REQUEST_TYPE -> "dictionary";
+            case DELTA_FILE_REQUEST_TYPE -> "delta";
+            case CONTENT_DIFF_REQUEST_TYPE -> "content_diff";
+            default -> "unknown";
+        };
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Counts durations into fixed buckets, quantiles are estimated as the upper bound of the bucket they fall in.
+     */
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1]; // The last one is for anything longer
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void observe(long nanos) {
+            double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length && seconds > LATENCY_BUCKETS[bucket]) {
+                bucket++;
+            }
+
+            buckets[bucket].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        private double quantile(double quantile) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                if (cumulative >= quantile * total) {
+                    return LATENCY_BUCKETS[i];
+                }
+            }
+
+            return LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1];
+        }
+
+        private void toPrometheus(StringBuilder out, String name, String help) {
+            header(out, name, help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"").append(LATENCY_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+
+            cumulative += buckets[LATENCY_BUCKETS.length].sum();
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+}
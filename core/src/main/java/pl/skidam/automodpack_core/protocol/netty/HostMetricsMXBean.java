@@ -0,0 +1,45 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import java.util.Map;
+
+/**
+ * Metrics of the modpack host as seen over JMX, registered as {@value HostMetrics#OBJECT_NAME}.
+ */
+public interface HostMetricsMXBean {
+    int getActiveConnections();
+
+    long getConnectionsOpened();
+
+    long getAuthenticationFailures();
+
+    long getRequests();
+
+    long getFailedRequests();
+
+    Map<String, Long> getRequestsByType();
+
+    /**
+     * Returns how many times each hosted file was requested, by file name and sha1.
+     */
+    Map<String, Long> getFileRequests();
+
+    long getBytesSent();
+
+    long getBytesBeforeCompression();
+
+    double getCompressionRatio();
+
+    double getRequestDurationMillisP50();
+
+    double getRequestDurationMillisP99();
+
+    double getTimeToFirstByteMillisP50();
+
+    double getTimeToFirstByteMillisP99();
+
+    long getPendingWriteBytes();
+
+    int getPausedConnections();
+
+    long getWriteThroughput();
+}
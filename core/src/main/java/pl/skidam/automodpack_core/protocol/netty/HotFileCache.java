@@ -0,0 +1,203 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import com.github.luben.zstd.ZstdCompressCtx;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import pl.skidam.automodpack_core.protocol.NetUtils;
+import pl.skidam.automodpack_core.protocol.netty.handler.FileResponseChunkedInput;
+import pl.skidam.automodpack_core.utils.CustomFileUtils;
+import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+
+/**
+ * Keeps small hosted files in memory, ready to be sent, so requests for them are answered without touching the disk.
+ * Files which are worth compressing are kept zstd compressed, the same way as in the {@link CompressedFileCache}, other files as they are.
+ * Only files which fit in a single {@link FileResponseChunkedInput#CHUNK_SIZE} frame are kept, the least recently requested ones
+ * are evicted once the files take more than the budget. Files are loaded in the background, when they get hosted and when they are
+ * requested and not in memory, so the request itself is answered from the disk.
+ */
+public class HotFileCache {
+    public static final int MAX_FILE_SIZE = FileResponseChunkedInput.CHUNK_SIZE;
+    private static final int COMPRESSION_LEVEL = 9; // Same as the compressed file cache
+    private final long budget;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Guarded by this, in access order
+    private final Set<String> hosted = ConcurrentHashMap.newKeySet();
+    private final Set<String> uncacheable = ConcurrentHashMap.newKeySet(); // Too big or failed to load, not tried again
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    private long size = 0;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(new CustomThreadFactoryBuilder().setNameFormat("AutoModpackHotFileLoader-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+    /**
+     * File data, compressed data is a single zstd frame of the whole file.
+     */
+    public record Entry(ByteBuf data, int fileSize, boolean compressed) { }
+
+    /**
+     * @param budget bytes of memory the files may take, 0 to keep none
+     */
+    public HotFileCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the file with the given sha1 if it's in memory, the caller has to release its data.
+     * Otherwise, loads the file in the background for the next request.
+     */
+    public Optional<Entry> get(String sha1, Path file) {
+        if (budget <= 0) {
+            return Optional.empty();
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(sha1);
+            if (entry != null) {
+                return Optional.of(new Entry(entry.data().retainedDuplicate(), entry.fileSize(), entry.compressed()));
+            }
+        }
+
+        load(sha1, file, false);
+        return Optional.empty();
+    }
+
+    /**
+     * Drops the files which aren't hosted anymore and loads the hosted ones in the background until the budget is used up.
+     */
+    public void update(Map<String, Path> hostedFiles) {
+        if (budget <= 0) {
+            return;
+        }
+
+        Map<String, Path> files = new HashMap<>(hostedFiles);
+        hosted.clear();
+        hosted.addAll(files.keySet());
+        uncacheable.clear();
+        synchronized (this) {
+            entries.entrySet().removeIf(entry -> !hosted.contains(entry.getKey()) && release(entry.getValue()));
+        }
+
+        files.forEach((sha1, file) -> load(sha1, file, true));
+    }
+
+    public void add(String sha1, Path file) {
+        if (budget <= 0) {
+            return;
+        }
+
+        hosted.add(sha1);
+        load(sha1, file, true);
+    }
+
+    public void remove(String sha1) {
+        hosted.remove(sha1);
+        uncacheable.remove(sha1);
+        synchronized (this) {
+            Entry entry = entries.remove(sha1);
+            if (entry != null) {
+                release(entry);
+            }
+        }
+    }
+
+    // Warming up doesn't evict files, only requested files do
+    private void load(String sha1, Path file, boolean warmUp) {
+        if (uncacheable.contains(sha1) || !loading.add(sha1)) {
+            return;
+        }
+
+        loader.execute(() -> {
+            try {
+                synchronized (this) {
+                    if (entries.containsKey(sha1) || (warmUp && size >= budget)) {
+                        return;
+                    }
+                }
+
+                Entry entry = read(sha1, file);
+                if (entry == null) {
+                    uncacheable.add(sha1);
+                    return;
+                }
+
+                put(sha1, entry);
+            } finally {
+                loading.remove(sha1);
+            }
+        });
+    }
+
+    // Runs only on the loader thread
+    private Entry read(String sha1, Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize > MAX_FILE_SIZE || fileSize > budget) {
+                return null;
+            }
+
+            ByteBuffer content = ByteBuffer.allocate((int) fileSize);
+            while (content.hasRemaining() && channel.read(content, content.position()) > 0) { }
+            if (content.hasRemaining()) {
+                return null;
+            }
+
+            // The file might have changed since it was hosted under this sha1
+            if (!sha1.equals(CustomFileUtils.convertBytesToHex(MessageDigest.getInstance("SHA-1").digest(content.array())))) {
+                LOGGER.debug("File {} changed, not keeping it in memory", file);
+                return null;
+            }
+
+            byte[] data = content.array();
+            boolean compressed = false;
+            if (fileSize > 0 && NetUtils.isWorthCompressing(file, channel)) {
+                try (ZstdCompressCtx compressCtx = new ZstdCompressCtx().setLevel(COMPRESSION_LEVEL)) {
+                    byte[] compressedData = compressCtx.compress(data);
+                    if (compressedData.length < data.length) {
+                        data = compressedData;
+                        compressed = true;
+                    }
+                }
+            }
+
+            ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(data.length);
+            buffer.writeBytes(data);
+            return new Entry(buffer, (int) fileSize, compressed);
+        } catch (Exception e) {
+            LOGGER.debug("Failed to load {} into memory - {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void put(String sha1, Entry entry) {
+        if (!hosted.contains(sha1)) { // Removed while loading
+            entry.data().release();
+            return;
+        }
+
+        entries.put(sha1, entry);
+        size += entry.data().readableBytes();
+
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (size > budget && leastRecentlyUsed.hasNext()) {
+            Entry evicted = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            release(evicted);
+        }
+    }
+
+    // Guarded by this, data still being sent is released once it's sent
+    private boolean release(Entry entry) {
+        size -= entry.data().readableBytes();
+        entry.data().release();
+        return true;
+    }
+}
@@ -8,17 +8,23 @@ import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
 import pl.skidam.automodpack_core.config.ConfigTools;
 import pl.skidam.automodpack_core.protocol.NetUtils;
+import pl.skidam.automodpack_core.protocol.netty.handler.MetricsHttpHandler;
 import pl.skidam.automodpack_core.protocol.netty.handler.ProtocolServerHandler;
 import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
 import pl.skidam.automodpack_core.utils.AddressHelpers;
 import pl.skidam.automodpack_core.utils.ObservableMap;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -26,6 +32,8 @@ import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static pl.skidam.automodpack_core.GlobalVariables.*;
 
@@ -33,6 +41,19 @@ public class NettyServer {
     public static final AttributeKey<Boolean> USE_COMPRESSION = AttributeKey.valueOf("useCompression");
     private final Map<Channel, String> connections = Collections.synchronizedMap(new HashMap<>());
     private final Map<String, Path> paths = Collections.synchronizedMap(new HashMap<>());
+    private final CompressedFileCache compressedFileCache = new CompressedFileCache(hostModpackCacheDir);
+    private final DeltaCache deltaCache = new DeltaCache(hostModpackVersionsDir, hostModpackPatchesDir);
+    private final ContentDiffCache contentDiffCache = new ContentDiffCache(hostModpackContentVersionsDir, hostModpackContentDiffsDir);
+    private static final long TRAFFIC_CHECK_INTERVAL_MS = 1000;
+    private WriteBudget writeBudget;
+    private HotFileCache hotFileCache;
+    private GlobalChannelTrafficShapingHandler trafficShaper;
+    private EventExecutorGroup transferExecutorGroup;
+    private HostMetrics metrics;
+    private ChannelFuture metricsChannel;
+    private volatile ZstdDictionary dictionary;
+    private boolean dictionaryLoaded = false;
+    private final ExecutorService dictionaryTrainer = Executors.newSingleThreadExecutor(new CustomThreadFactoryBuilder().setNameFormat("AutoModpackDictionaryTrainer-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
     private ChannelFuture serverChannel;
     private Boolean shouldHost = false; // needed for stop modpack hosting for minecraft port
     private X509Certificate certificate;
@@ -40,7 +61,9 @@ public class NettyServer {
 
     public void addConnection(Channel channel, String secret) {
         synchronized (connections) {
-            connections.put(channel, secret);
+            if (connections.put(channel, secret) == null) {
+                getMetrics().connectionOpened();
+            }
         }
     }
 
@@ -56,18 +79,218 @@ public class NettyServer {
 
     public void addPaths(ObservableMap<String, Path> paths) {
         this.paths.putAll(paths.getMap());
-        paths.addOnPutCallback(this.paths::put);
-        paths.addOnRemoveCallback(this.paths::remove);
+        paths.addOnPutCallback((sha1, path) -> {
+            this.paths.put(sha1, path);
+            compressedFileCache.add(sha1, path);
+            deltaCache.add(sha1, path);
+            getHotFileCache().add(sha1, path);
+        });
+        paths.addOnRemoveCallback((sha1, path) -> {
+            this.paths.remove(sha1);
+            compressedFileCache.remove(sha1);
+            deltaCache.remove(sha1);
+            getHotFileCache().remove(sha1);
+        });
+
+        synchronized (this.paths) {
+            compressedFileCache.update(this.paths);
+            deltaCache.update(this.paths);
+            getHotFileCache().update(this.paths);
+        }
     }
 
     public void removePaths(ObservableMap<String, Path> paths) {
-        paths.getMap().forEach(this.paths::remove);
+        paths.getMap().forEach((sha1, path) -> {
+            this.paths.remove(sha1);
+            compressedFileCache.remove(sha1);
+            deltaCache.remove(sha1);
+            getHotFileCache().remove(sha1);
+        });
     }
 
     public Optional<Path> getPath(String hash) {
         return Optional.ofNullable(paths.get(hash));
     }
 
+    public CompressedFileCache getCompressedFileCache() {
+        return compressedFileCache;
+    }
+
+    public DeltaCache getDeltaCache() {
+        return deltaCache;
+    }
+
+    public ContentDiffCache getContentDiffCache() {
+        return contentDiffCache;
+    }
+
+    /**
+     * Returns the cache of small files kept in memory, sized from the config on first use.
+     */
+    public synchronized HotFileCache getHotFileCache() {
+        if (hotFileCache == null) {
+            hotFileCache = new HotFileCache(serverConfig.hostHotFileCacheSize);
+        }
+
+        return hotFileCache;
+    }
+
+    /**
+     * Returns the budget of memory for outgoing data of all connections, sized from the config on first use.
+     */
+    public synchronized WriteBudget getWriteBudget() {
+        if (writeBudget == null) {
+            writeBudget = new WriteBudget(serverConfig.hostWriteMemoryBudget);
+        }
+
+        return writeBudget;
+    }
+
+    /**
+     * Returns the traffic shaper shared by all connections, which splits the bandwidth limits fairly between them.
+     */
+    public synchronized GlobalChannelTrafficShapingHandler getTrafficShaper() {
+        if (trafficShaper == null) {
+            var executor = Executors.newSingleThreadScheduledExecutor(new CustomThreadFactoryBuilder().setNameFormat("AutoModpackTrafficShaper-%d").setDaemon(true).build());
+            trafficShaper = new GlobalChannelTrafficShapingHandler(executor, TRAFFIC_CHECK_INTERVAL_MS);
+            updateBandwidthLimits();
+        }
+
+        return trafficShaper;
+    }
+
+    /**
+     * Applies the bandwidth limits from the config, to the connections which are already transferring too.
+     */
+    public synchronized void updateBandwidthLimits() {
+        if (trafficShaper == null) { // Limits get applied once the shaper is created
+            return;
+        }
+
+        trafficShaper.setWriteLimit(Math.max(0, serverConfig.hostBandwidthLimit) * 1024);
+        trafficShaper.setWriteChannelLimit(Math.max(0, serverConfig.hostConnectionBandwidthLimit) * 1024);
+    }
+
+    /**
+     * Returns the group which runs the protocol handlers of connections on the minecraft port,
+     * so transfers don't delay the game packets handled by the minecraft network threads. Null if they should run on those threads.
+     */
+    public synchronized EventExecutorGroup getTransferExecutorGroup() {
+        if (transferExecutorGroup == null && serverConfig.hostMinecraftPortTransferThreads > 0) {
+            transferExecutorGroup = new DefaultEventExecutorGroup(serverConfig.hostMinecraftPortTransferThreads, new CustomThreadFactoryBuilder().setNameFormat("AutoModpack Transfer #%d").setDaemon(true).build());
+        }
+
+        return transferExecutorGroup;
+    }
+
+    // Connections on the minecraft port outlive the modpack host, so the group is kept until the minecraft server stops
+    public synchronized void shutdownTransferExecutorGroup() {
+        if (transferExecutorGroup == null) {
+            return;
+        }
+
+        transferExecutorGroup.shutdownGracefully();
+        transferExecutorGroup = null;
+    }
+
+    public synchronized HostMetrics getMetrics() {
+        if (metrics == null) {
+            metrics = new HostMetrics(this);
+        }
+
+        return metrics;
+    }
+
+    // Metrics are readable over JMX whenever the host is started, over HTTP only if a port is set
+    private synchronized void startMetrics() {
+        getMetrics().registerMBean();
+
+        int port = serverConfig.hostMetricsPort;
+        if (port == -1 || (metricsChannel != null && metricsChannel.channel().isOpen())) {
+            return;
+        }
+
+        String address = serverConfig.hostMetricsAddress == null || serverConfig.hostMetricsAddress.isBlank() ? "127.0.0.1" : serverConfig.hostMetricsAddress;
+        InetSocketAddress bindAddress = new InetSocketAddress(address, port);
+        NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(1, new CustomThreadFactoryBuilder().setNameFormat("AutoModpack Metrics #%d").setDaemon(true).build());
+        try {
+            metricsChannel = new ServerBootstrap()
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new LineBasedFrameDecoder(8192), new MetricsHttpHandler(getMetrics()));
+                        }
+                    })
+                    .group(eventLoopGroup)
+                    .localAddress(bindAddress)
+                    .bind()
+                    .syncUninterruptibly();
+            LOGGER.info("Serving host metrics at /metrics on {}", bindAddress);
+        } catch (Exception e) {
+            LOGGER.error("Failed to start metrics endpoint on {}", bindAddress, e);
+            eventLoopGroup.shutdownGracefully();
+        }
+    }
+
+    private synchronized void stopMetrics() {
+        if (metricsChannel == null) {
+            return;
+        }
+
+        metricsChannel.channel().close();
+        metricsChannel.channel().eventLoop().parent().shutdownGracefully();
+        metricsChannel = null;
+    }
+
+    public WriteBufferWaterMark getWriteBufferWaterMark() {
+        int low = serverConfig.hostWriteBufferLowWaterMark;
+        int high = serverConfig.hostWriteBufferHighWaterMark;
+        if (low <= 0 || high < low) {
+            LOGGER.warn("Invalid write buffer water marks {} - {}, using defaults", low, high);
+            return WriteBufferWaterMark.DEFAULT;
+        }
+
+        return new WriteBufferWaterMark(low, high);
+    }
+
+    /**
+     * Returns the dictionary offered to clients, loaded from the disk on first use.
+     */
+    public synchronized Optional<ZstdDictionary> getDictionary() {
+        if (!dictionaryLoaded) {
+            dictionary = ZstdDictionary.load(hostModpackDictionaryFile).orElse(null);
+            dictionaryLoaded = true;
+        }
+
+        return Optional.ofNullable(dictionary);
+    }
+
+    /**
+     * Trains a new dictionary from the given files in the background and offers it to clients which connect once it's ready.
+     * Until then, and if there is too little to train from, clients get the current one.
+     */
+    public void updateDictionary(Collection<Path> files) {
+        List<Path> samples = List.copyOf(files);
+        dictionaryTrainer.execute(() -> {
+            Optional<ZstdDictionary> newDictionary = ZstdDictionary.train(samples);
+            if (newDictionary.isEmpty()) {
+                return;
+            }
+
+            synchronized (this) {
+                try {
+                    newDictionary.get().save(hostModpackDictionaryFile);
+                    dictionary = newDictionary.get();
+                    dictionaryLoaded = true;
+                    LOGGER.info("Trained zstd dictionary {}", Integer.toUnsignedString(dictionary.getId()));
+                } catch (IOException e) {
+                    LOGGER.error("Failed to save zstd dictionary", e);
+                }
+            }
+        });
+    }
+
     public Optional<ChannelFuture> start() {
         try {
             X509Certificate cert;
@@ -103,9 +326,14 @@ public class NettyServer {
                     .build();
 
             if (!canStart()) {
+                if (shouldHost) { // Hosted on the minecraft port
+                    startMetrics();
+                }
                 return Optional.empty();
             }
 
+            startMetrics();
+
             int port = serverConfig.hostPort;
             InetSocketAddress bindAddress = new InetSocketAddress("0.0.0.0", port);
             LOGGER.info("Starting modpack host server on {}", bindAddress);
@@ -147,6 +375,8 @@ public class NettyServer {
 
     // Returns true if stopped successfully
     public boolean stop() {
+        stopMetrics();
+
         if (serverChannel == null) {
             if (shouldHost) {
                 shouldHost = false;
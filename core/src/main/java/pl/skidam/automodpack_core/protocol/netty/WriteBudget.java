@@ -0,0 +1,76 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the memory held by outgoing data queued on all connections together, on top of the per connection water marks.
+ * Connections count the bytes they queue for the socket until they are written, see {@link pl.skidam.automodpack_core.protocol.netty.handler.WriteBudgetHandler}.
+ * Once the total reaches the budget, connections which queue more are made unwritable, so their transfers pause the same way
+ * they do for a slow client, and they are resumed once the total drops to half of the budget.
+ * Transfers get slower under load instead of the host running out of direct memory.
+ */
+public class WriteBudget {
+    private static final int WRITABILITY_INDEX = 4; // Indexes 1-3 are used by the traffic shaping handlers
+    private final long budget;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Set<Channel> paused = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param budget bytes which may be queued across all connections, -1 for no limit
+     */
+    public WriteBudget(long budget) {
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns how many bytes are queued for the sockets of all connections right now.
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Returns how many connections are paused because the budget is used up.
+     */
+    public int getPausedConnections() {
+        return paused.size();
+    }
+
+    public void queued(Channel channel, long bytes) {
+        if (pendingBytes.addAndGet(bytes) >= budget && budget >= 0 && paused.add(channel)) {
+            setWritable(channel, false);
+        }
+    }
+
+    public void written(long bytes) {
+        if (pendingBytes.addAndGet(-bytes) <= budget / 2 && !paused.isEmpty()) {
+            for (Channel channel : paused) {
+                if (paused.remove(channel)) {
+                    setWritable(channel, true);
+                }
+            }
+        }
+    }
+
+    public void remove(Channel channel) {
+        paused.remove(channel);
+    }
+
+    private static void setWritable(Channel channel, boolean writable) {
+        channel.eventLoop().execute(() -> {
+            ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+            if (outboundBuffer != null) { // Null once the channel is closed
+                outboundBuffer.setUserDefinedWritability(WRITABILITY_INDEX, writable);
+            }
+        });
+    }
+}
@@ -0,0 +1,146 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+
+/**
+ * Zstd dictionary trained from the text files of the modpack, like configs and the modpack content file.
+ * Such files are mostly too small for zstd to build up any history of its own, the dictionary provides it up front,
+ * so they compress a lot better. Dictionaries are identified by the id zstd assigns them when training,
+ * which is written to the header of every frame compressed with the dictionary. The id is random,
+ * so dictionaries of different servers can share it, they are told apart by the SHA-256 hash of their data.
+ */
+public class ZstdDictionary {
+    public static final int HASH_LENGTH = 32;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int MAX_SAMPLE_SIZE = 64 * 1024; // Only the beginning of bigger files is sampled
+    private static final int MAX_SAMPLES_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_SAMPLES = 16; // Training fails or the dictionary is useless with fewer
+    private static final Set<String> TEXT_EXTENSIONS = Set.of("json", "json5", "jsonc", "toml", "txt", "cfg", "conf", "properties", "yml", "yaml", "snbt", "mcmeta", "ini", "xml", "js", "zs", "lang");
+
+    private final int id;
+    private final byte[] data;
+    private final byte[] hash;
+    private final ZstdDictCompress compressDict;
+    private final ZstdDictDecompress decompressDict;
+
+    public ZstdDictionary(byte[] data) {
+        this.id = (int) Zstd.getDictIdFromDict(data);
+        if (id == 0) {
+            throw new IllegalArgumentException("Not a zstd dictionary");
+        }
+
+        this.data = data;
+        try {
+            this.hash = MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.compressDict = new ZstdDictCompress(data, Zstd.defaultCompressionLevel());
+        this.decompressDict = new ZstdDictDecompress(data);
+    }
+
+    /**
+     * Trains a dictionary from the text files among the given files.
+     * Returns empty if there are too few of them to train a useful dictionary.
+     */
+    public static Optional<ZstdDictionary> train(Collection<Path> files) {
+        ZstdDictTrainer trainer = new ZstdDictTrainer(MAX_SAMPLES_SIZE, DICTIONARY_SIZE);
+        int samples = 0;
+        for (Path file : files) {
+            if (!isTextFile(file)) {
+                continue;
+            }
+
+            try (InputStream input = Files.newInputStream(file)) {
+                byte[] sample = input.readNBytes(MAX_SAMPLE_SIZE);
+                if (sample.length == 0) {
+                    continue;
+                }
+
+                if (!trainer.addSample(sample)) {
+                    break; // Full
+                }
+
+                samples++;
+            } catch (IOException e) {
+                LOGGER.debug("Failed to sample {} for the dictionary - {}", file, e.getMessage());
+            }
+        }
+
+        if (samples < MIN_SAMPLES) {
+            LOGGER.debug("Not enough text files to train a dictionary, got {}", samples);
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(new ZstdDictionary(trainer.trainSamples()));
+        } catch (Exception e) {
+            LOGGER.warn("Failed to train zstd dictionary - {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    public static Optional<ZstdDictionary> load(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(new ZstdDictionary(Files.readAllBytes(file)));
+        } catch (Exception e) {
+            LOGGER.warn("Failed to load zstd dictionary {} - {}", file, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    public void save(Path file) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(tempFile, data);
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isTextFile(Path file) {
+        String fileName = file.getFileName().toString();
+        int extensionIndex = fileName.lastIndexOf('.');
+        return extensionIndex != -1 && TEXT_EXTENSIONS.contains(fileName.substring(extensionIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public boolean matches(int id, byte[] hash) {
+        return this.id == id && Arrays.equals(this.hash, hash);
+    }
+
+    public ZstdDictCompress getCompressDict() {
+        return compressDict;
+    }
+
+    public ZstdDictDecompress getDecompressDict() {
+        return decompressDict;
+    }
+}
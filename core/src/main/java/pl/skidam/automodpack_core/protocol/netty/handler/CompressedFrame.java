@@ -0,0 +1,20 @@
+package pl.skidam.automodpack_core.protocol.netty.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * A frame which is zstd compressed already, {@link ZstdEncoder} sends it without compressing it again.
+ */
+public class CompressedFrame extends DefaultByteBufHolder {
+    private final int originalLength;
+
+    public CompressedFrame(ByteBuf compressedData, int originalLength) {
+        super(compressedData);
+        this.originalLength = originalLength;
+    }
+
+    public int getOriginalLength() {
+        return originalLength;
+    }
+}
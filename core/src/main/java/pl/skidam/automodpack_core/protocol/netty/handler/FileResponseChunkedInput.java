@@ -0,0 +1,356 @@
+package pl.skidam.automodpack_core.protocol.netty.handler;
+
+import com.github.luben.zstd.Zstd;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedInput;
+import pl.skidam.automodpack_core.protocol.netty.HotFileCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static pl.skidam.automodpack_core.GlobalVariables.LOGGER;
+import static pl.skidam.automodpack_core.protocol.NetUtils.*;
+
+/**
+ * Produces the whole response to a single file request or a batch file request as a stream of frames, all tagged with the request id.
+ * For every requested file, in the order of the request:
+ *   - A header frame: [protocolVersion][FILE_RESPONSE_TYPE][requestId][long fileSize][long offset][beginning of the file data]
+ *     where fileSize is -1 if the file is not available and offset is the position in the file the data starts at
+ *   - Data frames with the rest of the file: [protocolVersion][FILE_CHUNK_TYPE][requestId][file data]
+ * And then a single final frame: [protocolVersion][END_OF_TRANSMISSION][requestId]
+ * Since the response is a single ChunkedInput, responses to pipelined requests never get mixed up on the channel.
+ * Frames carrying data of files which aren't worth compressing are produced as {@link UncompressedFrame}s.
+ * Whole files which have a compressed copy in the {@link pl.skidam.automodpack_core.protocol.netty.CompressedFileCache}
+ * are sent from the copy as {@link CompressedFrame}s, so they don't get compressed again.
+ * Whole files kept in memory by the {@link HotFileCache} are sent from there in a single frame, without touching the disk.
+ * Patches from the {@link pl.skidam.automodpack_core.protocol.netty.DeltaCache} are sent the same way as files,
+ * just with PATCH_RESPONSE_TYPE in the header.
+ */
+public class FileResponseChunkedInput implements ChunkedInput<Object> {
+    public static final int CHUNK_SIZE = 131072; // 128 KB chunk size - good for zstd
+    private static final int TAG_SIZE = 1 + 1 + 4;
+
+    private final byte version;
+    private final int requestId;
+    private final List<Path> paths;
+    private final List<Path> compressedPaths;
+    private final HotFileCache.Entry[] cachedFiles; // Released once sent
+    private final long[] offsets;
+    private final long[] lengths;
+    private byte headerType = FILE_RESPONSE_TYPE;
+    private int fileIndex = 0;
+    private ChunkedFile currentFile;
+    private boolean compressCurrentFile;
+    private FileChannel currentCompressedFile;
+    private long compressedPosition;
+    private long progress = 0;
+    private boolean eotSent = false;
+
+    /**
+     * @param paths files to send, null entries are sent as not available
+     * @param compressedPaths compressed copies of the files, null entries if there is none
+     */
+    public FileResponseChunkedInput(byte version, int requestId, List<Path> paths, List<Path> compressedPaths) {
+        this(version, requestId, paths, compressedPaths, new HotFileCache.Entry[paths.size()]);
+    }
+
+    /**
+     * @param paths files to send, null entries are sent as not available
+     * @param compressedPaths compressed copies of the files, null entries if there is none
+     * @param cachedFiles files in memory, sent instead of reading the files, null entries if they are not in memory
+     */
+    public FileResponseChunkedInput(byte version, int requestId, List<Path> paths, List<Path> compressedPaths, HotFileCache.Entry[] cachedFiles) {
+        this.version = version;
+        this.requestId = requestId;
+        this.paths = paths;
+        this.compressedPaths = compressedPaths;
+        this.cachedFiles = cachedFiles;
+        this.offsets = new long[paths.size()];
+        this.lengths = new long[paths.size()];
+        Arrays.fill(lengths, -1);
+    }
+
+    /**
+     * Sends length bytes of a single file starting at the given offset, used to resume interrupted downloads and to download byte ranges.
+     * Length of -1 sends the rest of the file. If the offset is past the end of the file, the whole file is sent.
+     */
+    public FileResponseChunkedInput(byte version, int requestId, Path path, Path compressedPath, long offset, long length) {
+        this.version = version;
+        this.requestId = requestId;
+        this.paths = List.of(path);
+        this.compressedPaths = Collections.singletonList(compressedPath);
+        this.cachedFiles = new HotFileCache.Entry[1];
+        this.offsets = new long[]{offset};
+        this.lengths = new long[]{length};
+    }
+
+    /**
+     * Sends a patch to be applied to an older version of the requested file instead of the file.
+     */
+    public static FileResponseChunkedInput patch(byte version, int requestId, Path patchPath) {
+        FileResponseChunkedInput input = new FileResponseChunkedInput(version, requestId, patchPath, null, 0, -1);
+        input.headerType = PATCH_RESPONSE_TYPE;
+        return input;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return eotSent;
+    }
+
+    /**
+     * Sends a whole file kept in memory.
+     */
+    public static FileResponseChunkedInput cached(byte version, int requestId, Path path, HotFileCache.Entry cachedFile) {
+        return new FileResponseChunkedInput(version, requestId, List.of(path), Collections.singletonList(null), new HotFileCache.Entry[]{cachedFile});
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (int i = 0; i < cachedFiles.length; i++) {
+            if (cachedFiles[i] != null) {
+                cachedFiles[i].data().release();
+                cachedFiles[i] = null;
+            }
+        }
+
+        if (currentFile != null) {
+            currentFile.close();
+            currentFile = null;
+        }
+
+        if (currentCompressedFile != null) {
+            currentCompressedFile.close();
+            currentCompressedFile = null;
+        }
+    }
+
+    @Deprecated
+    @Override
+    public Object readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public Object readChunk(ByteBufAllocator allocator) throws Exception {
+        if (currentCompressedFile != null) {
+            if (compressedPosition < currentCompressedFile.size()) {
+                return withCompressedData(allocator, tag(FILE_CHUNK_TYPE));
+            }
+
+            currentCompressedFile.close();
+            currentCompressedFile = null;
+        }
+
+        if (currentFile != null) {
+            if (!currentFile.isEndOfInput()) {
+                ByteBuf tag = allocator.buffer(TAG_SIZE);
+                tag.writeByte(version);
+                tag.writeByte(FILE_CHUNK_TYPE);
+                tag.writeInt(requestId);
+                return withData(allocator, tag);
+            }
+
+            currentFile.close();
+            currentFile = null;
+        }
+
+        if (fileIndex < paths.size()) {
+            return nextFileHeader(allocator);
+        }
+
+        if (eotSent) {
+            return null;
+        }
+
+        eotSent = true;
+        ByteBuf eot = allocator.buffer(TAG_SIZE);
+        eot.writeByte(version);
+        eot.writeByte(END_OF_TRANSMISSION);
+        eot.writeInt(requestId);
+        return eot;
+    }
+
+    // Files are opened one at a time, so a large batch doesn't hold a file handle for each of its files
+    private Object nextFileHeader(ByteBufAllocator allocator) throws Exception {
+        Path path = paths.get(fileIndex);
+        Path compressedPath = compressedPaths.get(fileIndex);
+        HotFileCache.Entry cachedFile = cachedFiles[fileIndex];
+        cachedFiles[fileIndex] = null;
+        long offset = offsets[fileIndex];
+        long length = lengths[fileIndex];
+        fileIndex++;
+        long fileSize = -1;
+
+        if (cachedFile != null) {
+            return withCachedData(allocator, cachedFile);
+        }
+
+        if (path != null) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(path.toFile(), "r");
+                fileSize = raf.length();
+                if (offset < 0 || offset > fileSize) {
+                    offset = 0;
+                }
+
+                if (length < 0 || length > fileSize - offset) { // Offset is within the file, so this can't overflow
+                    length = fileSize - offset;
+                }
+
+                if (length == 0) {
+                    raf.close();
+                } else if (compressedPath != null && offset == 0 && length == fileSize && openCompressedFile(compressedPath)) {
+                    raf.close();
+                } else {
+                    compressCurrentFile = isWorthCompressing(path, raf.getChannel());
+                    currentFile = new ChunkedFile(raf, offset, length, CHUNK_SIZE);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to open file {} - {}", path, e.getMessage());
+                if (raf != null && currentFile == null) {
+                    raf.close();
+                }
+                fileSize = -1;
+                offset = 0;
+            }
+        } else {
+            offset = 0;
+        }
+
+        ByteBuf header = allocator.buffer(TAG_SIZE + 8 + 8);
+        header.writeByte(version);
+        header.writeByte(headerType);
+        header.writeInt(requestId);
+        header.writeLong(fileSize);
+        header.writeLong(offset);
+
+        if (currentCompressedFile != null) {
+            byte[] headerBytes = new byte[header.readableBytes()];
+            header.readBytes(headerBytes);
+            header.release();
+            return withCompressedData(allocator, headerBytes);
+        }
+
+        if (currentFile == null) {
+            return header;
+        }
+
+        // The header carries the first chunk of the file, so small files take just a single frame
+        return withData(allocator, header);
+    }
+
+    private boolean openCompressedFile(Path compressedPath) {
+        try {
+            currentCompressedFile = FileChannel.open(compressedPath, StandardOpenOption.READ);
+            compressedPosition = 0;
+            return true;
+        } catch (IOException e) { // E.g. evicted in the meantime, the file gets compressed on the fly instead
+            LOGGER.debug("Failed to open compressed file {} - {}", compressedPath, e.getMessage());
+            return false;
+        }
+    }
+
+    private byte[] tag(byte type) {
+        return new byte[]{version, type, (byte) (requestId >>> 24), (byte) (requestId >>> 16), (byte) (requestId >>> 8), (byte) requestId};
+    }
+
+    // Reads the next compressed chunk of the copy and puts the separately compressed tag in front of it,
+    // zstd decompresses concatenated frames as a whole, so the receiver gets the tag followed by the chunk
+    private Object withCompressedData(ByteBufAllocator allocator, byte[] tag) throws IOException {
+        ByteBuffer recordHeader = ByteBuffer.allocate(8);
+        readFully(recordHeader, compressedPosition);
+        int compressedLength = recordHeader.getInt(0);
+        int originalLength = recordHeader.getInt(4);
+
+        byte[] compressedTag = Zstd.compress(tag);
+        ByteBuf frame = allocator.directBuffer(compressedTag.length + compressedLength);
+        try {
+            frame.writeBytes(compressedTag);
+            long position = compressedPosition + 8;
+            while (frame.isWritable()) {
+                int read = frame.writeBytes(currentCompressedFile, position, frame.writableBytes());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of compressed file");
+                }
+                position += read;
+            }
+            compressedPosition = position;
+        } catch (IOException e) {
+            frame.release();
+            throw e;
+        }
+
+        progress += originalLength;
+        return new CompressedFrame(frame, tag.length + originalLength);
+    }
+
+    // The whole file follows the header in the same frame
+    private Object withCachedData(ByteBufAllocator allocator, HotFileCache.Entry cachedFile) {
+        ByteBuf header = allocator.buffer(TAG_SIZE + 8 + 8);
+        header.writeByte(version);
+        header.writeByte(headerType);
+        header.writeInt(requestId);
+        header.writeLong(cachedFile.fileSize());
+        header.writeLong(0);
+        progress += cachedFile.fileSize();
+
+        if (!cachedFile.compressed()) {
+            return new UncompressedFrame(allocator.compositeBuffer(2).addComponents(true, header, cachedFile.data()));
+        }
+
+        byte[] headerBytes = new byte[header.readableBytes()];
+        header.readBytes(headerBytes);
+        header.release();
+        ByteBuf compressedHeader = Unpooled.wrappedBuffer(Zstd.compress(headerBytes));
+        return new CompressedFrame(allocator.compositeBuffer(2).addComponents(true, compressedHeader, cachedFile.data()), headerBytes.length + cachedFile.fileSize());
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (currentCompressedFile.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of compressed file");
+            }
+        }
+    }
+
+    private Object withData(ByteBufAllocator allocator, ByteBuf tag) throws Exception {
+        ByteBuf data;
+        try {
+            data = currentFile.readChunk(allocator);
+        } catch (Exception e) {
+            tag.release();
+            throw e;
+        }
+
+        progress += data.readableBytes();
+        ByteBuf frame = allocator.compositeBuffer(2).addComponents(true, tag, data);
+        return compressCurrentFile ? frame : new UncompressedFrame(frame);
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
@@ -0,0 +1,60 @@
+package pl.skidam.automodpack_core.protocol.netty.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.CharsetUtil;
+import pl.skidam.automodpack_core.protocol.netty.HostMetrics;
+
+/**
+ * Answers HTTP GET requests for /metrics with the host metrics in the Prometheus text format, one request per connection.
+ * Expects the request split into lines, the response is sent once the empty line ending the request headers arrives.
+ * Minecraft doesn't ship the netty HTTP codec, and a scrape endpoint doesn't need more than this.
+ */
+public class MetricsHttpHandler extends SimpleChannelInboundHandler<ByteBuf> {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private final HostMetrics metrics;
+    private String requestLine;
+
+    public MetricsHttpHandler(HostMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf line) {
+        if (requestLine == null) {
+            requestLine = line.toString(CharsetUtil.US_ASCII);
+            return;
+        }
+
+        if (line.isReadable()) { // Header, none of them matter
+            return;
+        }
+
+        String[] request = requestLine.split(" ");
+        if (request.length < 2 || !request[0].equals("GET")) {
+            respond(ctx, "405 Method Not Allowed", "Only GET is supported\n");
+        } else if (!request[1].equals("/metrics") && !request[1].startsWith("/metrics?")) {
+            respond(ctx, "404 Not Found", "Metrics are at /metrics\n");
+        } else {
+            respond(ctx, "200 OK", metrics.toPrometheus());
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close(); // Requests with too long lines end up here too
+    }
+
+    private void respond(ChannelHandlerContext ctx, String status, String body) {
+        byte[] content = body.getBytes(CharsetUtil.UTF_8);
+        String headers = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: " + CONTENT_TYPE + "\r\n" +
+                "Content-Length: " + content.length + "\r\n" +
+                "Connection: close\r\n\r\n";
+        ByteBuf response = Unpooled.wrappedBuffer(headers.getBytes(CharsetUtil.US_ASCII), content);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+}
@@ -1,14 +1,20 @@
 package pl.skidam.automodpack_core.protocol.netty.handler;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import pl.skidam.automodpack_core.protocol.NetUtils;
+import pl.skidam.automodpack_core.protocol.netty.message.BatchFileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.ContentDiffRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.DeltaFileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.DictionaryRequestMessage;
 import pl.skidam.automodpack_core.protocol.netty.message.EchoMessage;
 import pl.skidam.automodpack_core.protocol.netty.message.FileRequestMessage;
 import pl.skidam.automodpack_core.protocol.netty.message.FileResponseMessage;
 import pl.skidam.automodpack_core.protocol.netty.message.RefreshRequestMessage;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import static pl.skidam.automodpack_core.protocol.NetUtils.*;
@@ -18,45 +24,108 @@ public class ProtocolMessageDecoder extends ByteToMessageDecoder {
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
         in.markReaderIndex();
         byte version = in.readByte();
+        if (version != PROTOCOL_VERSION) {
+            // The rest of the frame has a different layout, it can't be parsed
+            in.skipBytes(in.readableBytes());
+            rejectVersion(ctx, version);
+            return;
+        }
+
         byte type = in.readByte();
         byte[] secret = new byte[32];
         in.readBytes(secret);
 
         switch (type) {
             case ECHO_TYPE:
-                int dataLength = in.readInt();
-                byte[] data = new byte[dataLength];
-                in.readBytes(data);
+                byte[] data = readData(in, in.readInt());
                 out.add(new EchoMessage(version, secret, data));
                 break;
             case FILE_REQUEST_TYPE:
-                int fileHashLength = in.readInt();
-                byte[] fileHash = new byte[fileHashLength];
-                in.readBytes(fileHash);
-                out.add(new FileRequestMessage(version, secret, fileHash));
+                int requestId = in.readInt();
+                byte[] fileHash = readHash(in, in.readInt());
+                long offset = in.readLong();
+                long length = in.readLong();
+                out.add(new FileRequestMessage(version, secret, requestId, fileHash, offset, length));
                 break;
             case NetUtils.FILE_RESPONSE_TYPE:
-                int fileLength = in.readInt();
-                byte[] fileData = new byte[fileLength];
-                in.readBytes(fileData);
+                byte[] fileData = readData(in, in.readInt());
                 out.add(new FileResponseMessage(version, secret, fileData));
                 break;
             case REFRESH_REQUEST_TYPE:
-                int fileHashesCount = in.readInt();
-                int fileHashesLength = in.readInt();
-                byte[][] fileHashesList = new byte[fileHashesCount][];
-                for (int i = 0; i < fileHashesCount; i++) {
-                    byte[] fileHashEntry = new byte[fileHashesLength];
-                    in.readBytes(fileHashEntry);
-                    fileHashesList[i] = fileHashEntry;
-                }
-                out.add(new RefreshRequestMessage(version, secret, fileHashesList));
+                int refreshRequestId = in.readInt();
+                byte[][] fileHashesList = readHashes(in, in.readInt(), in.readInt());
+                out.add(new RefreshRequestMessage(version, secret, refreshRequestId, fileHashesList));
+                break;
+            case BATCH_FILE_REQUEST_TYPE:
+                int batchRequestId = in.readInt();
+                byte[][] batchHashesList = readHashes(in, in.readInt(), in.readInt());
+                out.add(new BatchFileRequestMessage(version, secret, batchRequestId, batchHashesList));
+                break;
+            case DELTA_FILE_REQUEST_TYPE:
+                int deltaRequestId = in.readInt();
+                byte[] deltaFileHash = readHash(in, in.readInt());
+                byte[] baseFileHash = readHash(in, in.readInt());
+                out.add(new DeltaFileRequestMessage(version, secret, deltaRequestId, deltaFileHash, baseFileHash));
+                break;
+            case DICTIONARY_REQUEST_TYPE:
+                int dictionaryRequestId = in.readInt();
+                int dictionaryId = in.readInt();
+                out.add(new DictionaryRequestMessage(version, secret, dictionaryRequestId, dictionaryId));
+                break;
+            case CONTENT_DIFF_REQUEST_TYPE:
+                int contentDiffRequestId = in.readInt();
+                byte[] baseContentHash = readHash(in, in.readInt());
+                byte[][] refreshHashesList = readHashes(in, in.readInt(), in.readInt());
+                out.add(new ContentDiffRequestMessage(version, secret, contentDiffRequestId, baseContentHash, refreshHashesList));
                 break;
             default:
                 throw new IllegalArgumentException("Unknown message type: " + type);
         }
     }
 
+    // Counts and lengths come from the client, they are checked before anything gets allocated for them
+    private static byte[][] readHashes(ByteBuf in, int count, int length) {
+        if (count < 0 || count > MAX_REQUESTED_HASHES || length < 0 || length > MAX_HASH_LENGTH || (long) count * length > in.readableBytes()) {
+            throw new IllegalArgumentException("Invalid list of " + count + " hashes of length " + length);
+        }
+
+        byte[][] hashes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = readHash(in, length);
+        }
+
+        return hashes;
+    }
+
+    private static byte[] readHash(ByteBuf in, int length) {
+        if (length > MAX_HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid hash length: " + length);
+        }
+
+        return readData(in, length);
+    }
+
+    private static byte[] readData(ByteBuf in, int length) {
+        if (length < 0 || length > in.readableBytes()) {
+            throw new IllegalArgumentException("Invalid data length: " + length);
+        }
+
+        byte[] data = new byte[length];
+        in.readBytes(data);
+        return data;
+    }
+
+    // The error has the layout of the first protocol version, which has no request id, so clients of any version can show it
+    private void rejectVersion(ChannelHandlerContext ctx, byte version) {
+        byte[] message = ("Unsupported protocol version " + version + ", the server uses " + PROTOCOL_VERSION).getBytes(StandardCharsets.UTF_8);
+        ByteBuf error = ctx.alloc().buffer(1 + 1 + 4 + message.length);
+        error.writeByte(version); // The client accepts only frames of its own version
+        error.writeByte(ERROR);
+        error.writeInt(message.length);
+        error.writeBytes(message);
+        ctx.writeAndFlush(error).addListener(ChannelFutureListener.CLOSE);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         cause.printStackTrace();
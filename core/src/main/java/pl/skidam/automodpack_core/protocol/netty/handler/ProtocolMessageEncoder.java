@@ -22,8 +22,11 @@ public class ProtocolMessageEncoder extends MessageToByteEncoder<ProtocolMessage
                 break;
             case FILE_REQUEST_TYPE:
                 FileRequestMessage fileRequestMessage = (FileRequestMessage) msg;
+                out.writeInt(fileRequestMessage.getRequestId());
                 out.writeInt(fileRequestMessage.getFileHashLength());
                 out.writeBytes(fileRequestMessage.getFileHash());
+                out.writeLong(fileRequestMessage.getOffset());
+                out.writeLong(fileRequestMessage.getLength());
                 break;
             case FILE_RESPONSE_TYPE:
                 FileResponseMessage fileResponseMessage = (FileResponseMessage) msg;
@@ -32,12 +35,46 @@ public class ProtocolMessageEncoder extends MessageToByteEncoder<ProtocolMessage
                 break;
             case REFRESH_REQUEST_TYPE:
                 RefreshRequestMessage refreshRequestMessage = (RefreshRequestMessage) msg;
+                out.writeInt(refreshRequestMessage.getRequestId());
                 out.writeInt(refreshRequestMessage.getFileHashesCount());
                 out.writeInt(refreshRequestMessage.getFileHashesLength());
                 for (byte[] fileHash : refreshRequestMessage.getFileHashesList()) {
                     out.writeBytes(fileHash);
                 }
                 break;
+            case BATCH_FILE_REQUEST_TYPE:
+                BatchFileRequestMessage batchFileRequestMessage = (BatchFileRequestMessage) msg;
+                out.writeInt(batchFileRequestMessage.getRequestId());
+                out.writeInt(batchFileRequestMessage.getFileHashesCount());
+                out.writeInt(batchFileRequestMessage.getFileHashesLength());
+                for (byte[] fileHash : batchFileRequestMessage.getFileHashesList()) {
+                    out.writeBytes(fileHash);
+                }
+                break;
+            case DELTA_FILE_REQUEST_TYPE:
+                DeltaFileRequestMessage deltaFileRequestMessage = (DeltaFileRequestMessage) msg;
+                out.writeInt(deltaFileRequestMessage.getRequestId());
+                out.writeInt(deltaFileRequestMessage.getFileHash().length);
+                out.writeBytes(deltaFileRequestMessage.getFileHash());
+                out.writeInt(deltaFileRequestMessage.getBaseFileHash().length);
+                out.writeBytes(deltaFileRequestMessage.getBaseFileHash());
+                break;
+            case DICTIONARY_REQUEST_TYPE:
+                DictionaryRequestMessage dictionaryRequestMessage = (DictionaryRequestMessage) msg;
+                out.writeInt(dictionaryRequestMessage.getRequestId());
+                out.writeInt(dictionaryRequestMessage.getDictionaryId());
+                break;
+            case CONTENT_DIFF_REQUEST_TYPE:
+                ContentDiffRequestMessage contentDiffRequestMessage = (ContentDiffRequestMessage) msg;
+                out.writeInt(contentDiffRequestMessage.getRequestId());
+                out.writeInt(contentDiffRequestMessage.getBaseContentHash().length);
+                out.writeBytes(contentDiffRequestMessage.getBaseContentHash());
+                out.writeInt(contentDiffRequestMessage.getFileHashesCount());
+                out.writeInt(contentDiffRequestMessage.getFileHashesLength());
+                for (byte[] fileHash : contentDiffRequestMessage.getFileHashesList()) {
+                    out.writeBytes(fileHash);
+                }
+                break;
             default:
                 throw new IllegalArgumentException("Unknown message type: " + msg.getType());
         }
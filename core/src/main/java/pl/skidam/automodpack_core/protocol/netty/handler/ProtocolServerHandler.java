@@ -5,18 +5,31 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.EventExecutorGroup;
 import pl.skidam.automodpack_core.protocol.netty.NettyServer;
+import pl.skidam.automodpack_core.protocol.netty.ZstdDictionary;
 
 import java.util.List;
 
+import static pl.skidam.automodpack_core.GlobalVariables.hostServer;
 import static pl.skidam.automodpack_core.protocol.NetUtils.*;
 
 public class ProtocolServerHandler extends ByteToMessageDecoder {
 
     private final SslContext sslCtx;
+    private final EventExecutorGroup transferExecutorGroup;
     
     public ProtocolServerHandler(SslContext sslCtx) {
+        this(sslCtx, null);
+    }
+
+    /**
+     * @param transferExecutorGroup group to run the compression, file reading and request handling on instead of the event loop of the channel,
+     *                              null to run them on the event loop
+     */
+    public ProtocolServerHandler(SslContext sslCtx, EventExecutorGroup transferExecutorGroup) {
         this.sslCtx = sslCtx;
+        this.transferExecutorGroup = transferExecutorGroup;
     }
 
     @Override
@@ -27,13 +40,49 @@ public class ProtocolServerHandler extends ByteToMessageDecoder {
             }
 
             int magic = in.getInt(0);
-            if (magic == MAGIC_AMMC) {
+            if (magic == MAGIC_AMMC || magic == MAGIC_AMMD) {
+                // Clients supporting dictionaries send AMMD followed by [int count][int dictionaryId, byte[32] hash...] of the dictionaries they have cached
+                ZstdDictionary dictionary = null;
+                ByteBuf response;
+                if (magic == MAGIC_AMMD) {
+                    if (in.readableBytes() < 8) {
+                        return;
+                    }
+
+                    int count = in.getInt(4);
+                    if (count < 0 || count > MAX_ADVERTISED_DICTIONARIES) {
+                        throw new IllegalArgumentException("Invalid dictionary count: " + count);
+                    }
+
+                    int entryLength = 4 + ZstdDictionary.HASH_LENGTH;
+                    if (in.readableBytes() < 8 + count * entryLength) {
+                        return;
+                    }
+
+                    ZstdDictionary hostedDictionary = hostServer.getDictionary().orElse(null);
+                    byte[] hash = new byte[ZstdDictionary.HASH_LENGTH];
+                    for (int i = 0; i < count && hostedDictionary != null && dictionary == null; i++) {
+                        int entryIndex = 8 + i * entryLength;
+                        in.getBytes(entryIndex + 4, hash);
+                        if (hostedDictionary.matches(in.getInt(entryIndex), hash)) {
+                            dictionary = hostedDictionary;
+                        }
+                    }
+
+                    // The client fetches the dictionary if it doesn't have it yet, this connection goes on without it
+                    response = ctx.alloc().buffer(8 + ZstdDictionary.HASH_LENGTH);
+                    response.writeInt(MAGIC_AMOD);
+                    response.writeInt(hostedDictionary == null ? 0 : hostedDictionary.getId());
+                    response.writeBytes(hostedDictionary == null ? new byte[ZstdDictionary.HASH_LENGTH] : hostedDictionary.getHash());
+                } else {
+                    response = ctx.alloc().buffer(4);
+                    response.writeInt(MAGIC_AMOK);
+                }
+
                 // Consume the packet
                 in.skipBytes(in.readableBytes());
 
                 // Send acknowledgment
-                ByteBuf response = ctx.alloc().buffer(4);
-                response.writeInt(MAGIC_AMOK);
                 ctx.writeAndFlush(response);
 
                 // Remove all existing handlers from the pipeline
@@ -48,13 +97,18 @@ public class ProtocolServerHandler extends ByteToMessageDecoder {
 
                 ctx.pipeline().channel().attr(NettyServer.USE_COMPRESSION).set(true);
 
+                // File transfers pause while the channel is not writable, so queued data is bounded per channel and by the budget for all of them
+                ctx.channel().config().setWriteBufferWaterMark(hostServer.getWriteBufferWaterMark());
+
                 // Set up the pipeline for our protocol
+                ctx.pipeline().addLast("traffic-shaping", hostServer.getTrafficShaper());
+                ctx.pipeline().addLast("write-budget", new WriteBudgetHandler(hostServer.getWriteBudget()));
                 ctx.pipeline().addLast("tls", sslCtx.newHandler(ctx.alloc()));
-                ctx.pipeline().addLast("zstd-encoder", new ZstdEncoder());
-                ctx.pipeline().addLast("zstd-decoder", new ZstdDecoder());
-                ctx.pipeline().addLast("chunked-write", new ChunkedWriteHandler());
-                ctx.pipeline().addLast("protocol-msg-decoder", new ProtocolMessageDecoder());
-                ctx.pipeline().addLast("msg-handler", new ServerMessageHandler());
+                ctx.pipeline().addLast(transferExecutorGroup, "zstd-encoder", new ZstdEncoder(dictionary, hostServer.getMetrics()));
+                ctx.pipeline().addLast(transferExecutorGroup, "zstd-decoder", new ZstdDecoder(dictionary));
+                ctx.pipeline().addLast(transferExecutorGroup, "chunked-write", new ChunkedWriteHandler());
+                ctx.pipeline().addLast(transferExecutorGroup, "protocol-msg-decoder", new ProtocolMessageDecoder());
+                ctx.pipeline().addLast(transferExecutorGroup, "msg-handler", new ServerMessageHandler());
             }
 
             // Always remove this handler after processing if its still there
@@ -2,24 +2,32 @@ package pl.skidam.automodpack_core.protocol.netty.handler;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelProgressiveFuture;
+import io.netty.channel.ChannelProgressiveFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.stream.ChunkedFile;
+import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
 import pl.skidam.automodpack_core.GlobalVariables;
 import pl.skidam.automodpack_core.auth.Secrets;
 import pl.skidam.automodpack_core.modpack.ModpackContent;
+import pl.skidam.automodpack_core.protocol.netty.HostMetrics;
+import pl.skidam.automodpack_core.protocol.netty.HotFileCache;
+import pl.skidam.automodpack_core.protocol.netty.message.BatchFileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.ContentDiffRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.DeltaFileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.DictionaryRequestMessage;
 import pl.skidam.automodpack_core.protocol.netty.message.EchoMessage;
 import pl.skidam.automodpack_core.protocol.netty.message.FileRequestMessage;
 import pl.skidam.automodpack_core.protocol.netty.message.ProtocolMessage;
 import pl.skidam.automodpack_core.protocol.netty.message.RefreshRequestMessage;
+import pl.skidam.automodpack_core.utils.ModpackContentCodec;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.SocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 
@@ -28,8 +36,13 @@ import static pl.skidam.automodpack_core.protocol.NetUtils.*;
 
 public class ServerMessageHandler extends SimpleChannelInboundHandler<ProtocolMessage> {
 
-    private static final byte PROTOCOL_VERSION = 1;
-    private final Map<byte[], String> secretLookup = new HashMap<>();
+    private static final long SESSION_REVALIDATION_MS = 60_000; // How long a validated secret is trusted before e.g. whitelist changes get checked again
+    private static final AttributeKey<Session> SESSION = AttributeKey.valueOf("automodpackSession");
+
+    /**
+     * Secret the channel got authenticated with, messages carrying the same secret are not validated again until it's due.
+     */
+    private record Session(byte[] secret, long validatedAt) { }
 
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) {
@@ -38,15 +51,20 @@ public class ServerMessageHandler extends SimpleChannelInboundHandler<ProtocolMe
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, ProtocolMessage msg) throws Exception {
+        long receivedAt = System.nanoTime();
         byte clientProtocolVersion = msg.getVersion();
         SocketAddress address = ctx.channel().remoteAddress();
 
         // Validate the secret
         if (!validateSecret(ctx, address, msg.getSecret())) {
-            sendError(ctx, clientProtocolVersion, "Authentication failed");
+            hostServer.getMetrics().authenticationFailed();
+            sendError(ctx, clientProtocolVersion, getRequestId(msg), "Authentication failed");
+            ctx.channel().close();
             return;
         }
 
+        hostServer.getMetrics().requestReceived(msg.getType());
+
         switch (msg.getType()) {
             case ECHO_TYPE:
                 EchoMessage echoMsg = (EchoMessage) msg;
@@ -60,24 +78,71 @@ public class ServerMessageHandler extends SimpleChannelInboundHandler<ProtocolMe
                 break;
             case FILE_REQUEST_TYPE:
                 FileRequestMessage fileRequest = (FileRequestMessage) msg;
-                sendFile(ctx, fileRequest.getFileHash());
+                sendFile(ctx, fileRequest.getRequestId(), fileRequest.getFileHash(), fileRequest.getOffset(), fileRequest.getLength(), receivedAt);
                 break;
             case REFRESH_REQUEST_TYPE:
                 RefreshRequestMessage refreshRequest = (RefreshRequestMessage) msg;
-                refreshModpackFiles(ctx, refreshRequest.getFileHashesList());
+                refreshModpackFiles(ctx, refreshRequest.getRequestId(), refreshRequest.getFileHashesList(), receivedAt);
+                break;
+            case BATCH_FILE_REQUEST_TYPE:
+                BatchFileRequestMessage batchRequest = (BatchFileRequestMessage) msg;
+                sendFiles(ctx, batchRequest.getRequestId(), batchRequest.getFileHashesList(), receivedAt);
+                break;
+            case DELTA_FILE_REQUEST_TYPE:
+                DeltaFileRequestMessage deltaRequest = (DeltaFileRequestMessage) msg;
+                sendPatch(ctx, deltaRequest.getRequestId(), deltaRequest.getFileHash(), deltaRequest.getBaseFileHash(), receivedAt);
+                break;
+            case DICTIONARY_REQUEST_TYPE:
+                DictionaryRequestMessage dictionaryRequest = (DictionaryRequestMessage) msg;
+                sendDictionary(ctx, dictionaryRequest.getRequestId(), dictionaryRequest.getDictionaryId(), receivedAt);
+                break;
+            case CONTENT_DIFF_REQUEST_TYPE:
+                ContentDiffRequestMessage contentDiffRequest = (ContentDiffRequestMessage) msg;
+                if (contentDiffRequest.getFileHashesCount() > 0) {
+                    refreshModpackFiles(contentDiffRequest.getFileHashesList());
+                }
+                sendContentDiff(ctx, contentDiffRequest.getRequestId(), contentDiffRequest.getBaseContentHash(), receivedAt);
                 break;
             default:
-                sendError(ctx, clientProtocolVersion, "Unknown message type");
+                sendError(ctx, clientProtocolVersion, getRequestId(msg), "Unknown message type");
+                ctx.channel().close();
         }
     }
 
+    private int getRequestId(ProtocolMessage msg) {
+        if (msg instanceof FileRequestMessage fileRequest) {
+            return fileRequest.getRequestId();
+        } else if (msg instanceof RefreshRequestMessage refreshRequest) {
+            return refreshRequest.getRequestId();
+        } else if (msg instanceof BatchFileRequestMessage batchRequest) {
+            return batchRequest.getRequestId();
+        } else if (msg instanceof DeltaFileRequestMessage deltaRequest) {
+            return deltaRequest.getRequestId();
+        } else if (msg instanceof DictionaryRequestMessage dictionaryRequest) {
+            return dictionaryRequest.getRequestId();
+        } else if (msg instanceof ContentDiffRequestMessage contentDiffRequest) {
+            return contentDiffRequest.getRequestId();
+        }
+
+        return 0;
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         cause.printStackTrace();
         ctx.close();
     }
 
-    private void refreshModpackFiles(ChannelHandlerContext context, byte[][] FileHashesList) throws IOException {
+    private void refreshModpackFiles(ChannelHandlerContext context, int requestId, byte[][] FileHashesList, long receivedAt) {
+        refreshModpackFiles(FileHashesList);
+
+        LOGGER.info("Sending new modpack-content.json");
+
+        // Sends new json
+        sendFile(context, requestId, new byte[0], 0, -1, receivedAt);
+    }
+
+    private void refreshModpackFiles(byte[][] FileHashesList) {
         List<String> hashes = new ArrayList<>();
         for (byte[] hash : FileHashesList) {
             hashes.add(new String(hash));
@@ -110,78 +175,173 @@ public class ServerMessageHandler extends SimpleChannelInboundHandler<ProtocolMe
 
         creationFutures.forEach(CompletableFuture::join);
         modpacks.forEach(ModpackContent::saveModpackContent);
-
-        LOGGER.info("Sending new modpack-content.json");
-
-        // Sends new json
-        sendFile(context, new byte[0]);
     }
 
 
     private boolean validateSecret(ChannelHandlerContext ctx, SocketAddress address, byte[] secret) {
-        String decodedSecret = secretLookup.get(secret);
-        boolean addConnection = false;
-        if (decodedSecret == null) {
-            decodedSecret = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
-            addConnection = true;
-            secretLookup.put(secret, decodedSecret);
+        Session session = ctx.channel().attr(SESSION).get();
+        long now = System.currentTimeMillis();
+        if (session != null && now - session.validatedAt() < SESSION_REVALIDATION_MS && MessageDigest.isEqual(session.secret(), secret)) {
+            return true;
         }
 
-        boolean valid = Secrets.isSecretValid(decodedSecret, address);
+        String decodedSecret = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+        if (!Secrets.isSecretValid(decodedSecret, address)) {
+            ctx.channel().attr(SESSION).set(null);
+            return false;
+        }
 
-        if (addConnection && valid) {
+        ctx.channel().attr(SESSION).set(new Session(secret.clone(), now));
+        if (session == null || !MessageDigest.isEqual(session.secret(), secret)) {
             hostServer.addConnection(ctx.channel(), decodedSecret);
         }
 
-        return valid;
+        return true;
     }
 
-    private void sendFile(ChannelHandlerContext ctx, byte[] bsha1) throws IOException {
+    private void sendFile(ChannelHandlerContext ctx, int requestId, byte[] bsha1, long offset, long length, long receivedAt) {
         final String sha1 = new String(bsha1, CharsetUtil.UTF_8);
         final Optional<Path> optionalPath = resolvePath(sha1);
 
+        // Whole small files are usually in memory, those are sent without checking the disk
+        if (!sha1.isBlank() && optionalPath.isPresent() && offset == 0 && length < 0) {
+            Optional<HotFileCache.Entry> cachedFile = hostServer.getHotFileCache().get(sha1, optionalPath.get());
+            if (cachedFile.isPresent()) {
+                hostServer.getMetrics().fileRequested(sha1);
+                writeResponse(ctx, FileResponseChunkedInput.cached(PROTOCOL_VERSION, requestId, optionalPath.get(), cachedFile.get()), receivedAt);
+                return;
+            }
+        }
+
         if (optionalPath.isEmpty() || !Files.exists(optionalPath.get())) {
-            sendError(ctx, (byte) 1, "File not found");
+            sendError(ctx, PROTOCOL_VERSION, requestId, "File not found");
             return;
         }
 
         final Path path = optionalPath.get();
-        final long fileSize = Files.size(path);
 
-        // Send file response header: version, FILE_RESPONSE type, then file size (8 bytes)
-        ByteBuf responseHeader = Unpooled.buffer(1 + 1 + 8);
-        responseHeader.writeByte(PROTOCOL_VERSION);
-        responseHeader.writeByte(FILE_RESPONSE_TYPE);
-        responseHeader.writeLong(fileSize);
-        ctx.writeAndFlush(responseHeader);
+        // Byte ranges have to be served exactly, unlike resumed downloads which fall back to the whole file
+        if (length >= 0) {
+            try {
+                long size = Files.size(path);
+                if (offset < 0 || offset > size || length > size - offset) {
+                    sendError(ctx, PROTOCOL_VERSION, requestId, "Invalid range");
+                    return;
+                }
+            } catch (IOException e) {
+                sendError(ctx, PROTOCOL_VERSION, requestId, "File transfer error: " + e.getMessage());
+                return;
+            }
+        }
+
+        if (!sha1.isBlank()) {
+            hostServer.getMetrics().fileRequested(sha1);
+        }
+
+        // Header, data frames and EOT are produced by a single chunked input, so pipelined requests on this channel are answered one after another
+        writeResponse(ctx, new FileResponseChunkedInput(PROTOCOL_VERSION, requestId, path, getCompressedPath(sha1), offset, length), receivedAt);
+    }
+
+    // Answers with one continuous stream of all requested files, files which are not available are marked as such in their headers
+    private void sendFiles(ChannelHandlerContext ctx, int requestId, byte[][] bsha1s, long receivedAt) {
+        List<Path> paths = new ArrayList<>(bsha1s.length);
+        List<Path> compressedPaths = new ArrayList<>(bsha1s.length);
+        HotFileCache.Entry[] cachedFiles = new HotFileCache.Entry[bsha1s.length];
+        for (int i = 0; i < bsha1s.length; i++) {
+            final String sha1 = new String(bsha1s[i], CharsetUtil.UTF_8);
+            Path path = sha1.isBlank() ? null : hostServer.getPath(sha1).orElse(null);
+            if (path != null) {
+                hostServer.getMetrics().fileRequested(sha1);
+                cachedFiles[i] = hostServer.getHotFileCache().get(sha1, path).orElse(null);
+            }
+            paths.add(path);
+            compressedPaths.add(getCompressedPath(sha1));
+        }
+
+        writeResponse(ctx, new FileResponseChunkedInput(PROTOCOL_VERSION, requestId, paths, compressedPaths, cachedFiles), receivedAt);
+    }
+
+    // The modpack content file changes without changing its sha1, so it's never cached
+    private Path getCompressedPath(String sha1) {
+        if (sha1.isBlank()) {
+            return null;
+        }
+
+        return hostServer.getCompressedFileCache().get(sha1).orElse(null);
+    }
+
+    // Sends a patch from the version of the file the client has if there is one, otherwise the whole file
+    private void sendPatch(ChannelHandlerContext ctx, int requestId, byte[] bsha1, byte[] bbaseSha1, long receivedAt) {
+        final String sha1 = new String(bsha1, CharsetUtil.UTF_8);
+        final String baseSha1 = new String(bbaseSha1, CharsetUtil.UTF_8);
+        final Optional<Path> optionalPath = sha1.isBlank() ? Optional.empty() : hostServer.getPath(sha1);
 
-        if (fileSize == 0) {
-            sendEOT(ctx);
+        if (optionalPath.isEmpty()) {
+            sendFile(ctx, requestId, bsha1, 0, -1, receivedAt);
             return;
         }
 
-        try {
-            RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r");
-            ChunkedFile chunkedFile = new ChunkedFile(raf, 0, raf.length(), 131072); // 128 KB chunk size - good for zstd
-            ctx.writeAndFlush(chunkedFile).addListener((ChannelFutureListener) future -> {
-                try {
-                    if (future.isSuccess()) {
-                        sendEOT(ctx);
-                    } else {
-                        sendError(ctx, PROTOCOL_VERSION, "File transfer error: " + future.cause().getMessage());
-                    }
-                } finally { // Always close resources
-                    try {
-                        chunkedFile.close();
-                        raf.close();
-                    } catch (IOException e) {
-                        LOGGER.error("Error closing file resources", e);
-                    }
-                }
-            });
-        } catch (IOException e) {
-            sendError(ctx, PROTOCOL_VERSION, "File transfer error: " + e.getMessage());
+        // Creating the patch may take a while, the response is written from the event loop once it's done
+        hostServer.getDeltaCache().getPatch(baseSha1, sha1, optionalPath.get()).whenCompleteAsync((patch, e) -> {
+            if (e == null && patch.isPresent()) {
+                hostServer.getMetrics().fileRequested(sha1);
+                writeResponse(ctx, FileResponseChunkedInput.patch(PROTOCOL_VERSION, requestId, patch.get()), receivedAt);
+            } else {
+                sendFile(ctx, requestId, bsha1, 0, -1, receivedAt);
+            }
+        }, ctx.executor());
+    }
+
+    // Sends the changes from the version of the content the client has if there is one, otherwise the whole content
+    private void sendContentDiff(ChannelHandlerContext ctx, int requestId, byte[] bbaseContentHash, long receivedAt) {
+        final String baseContentHash = new String(bbaseContentHash, CharsetUtil.UTF_8);
+
+        // Creating the diff may take a while, the response is written from the event loop once it's done
+        hostServer.getContentDiffCache().getDiff(baseContentHash).whenCompleteAsync((diff, e) -> {
+            if (e == null && diff.isPresent()) {
+                writeResponse(ctx, FileResponseChunkedInput.patch(PROTOCOL_VERSION, requestId, diff.get()), receivedAt);
+            } else { // Clients which request diffs understand the encoded content too
+                Path contentPath = ModpackContentCodec.getValidCachePath(hostModpackContentFile).orElse(hostModpackContentFile);
+                writeResponse(ctx, new FileResponseChunkedInput(PROTOCOL_VERSION, requestId, contentPath, null, 0, -1), receivedAt);
+            }
+        }, ctx.executor());
+    }
+
+    private void sendDictionary(ChannelHandlerContext ctx, int requestId, int dictionaryId, long receivedAt) {
+        var dictionary = hostServer.getDictionary();
+        if (dictionary.isEmpty() || dictionary.get().getId() != dictionaryId || !Files.exists(hostModpackDictionaryFile)) {
+            sendError(ctx, PROTOCOL_VERSION, requestId, "Dictionary not found");
+            return;
         }
+
+        writeResponse(ctx, new FileResponseChunkedInput(PROTOCOL_VERSION, requestId, hostModpackDictionaryFile, null, 0, -1), receivedAt);
+    }
+
+    // The chunked write reports progress after each written part of the response, the first one is the header
+    private void writeResponse(ChannelHandlerContext ctx, FileResponseChunkedInput response, long receivedAt) {
+        HostMetrics metrics = hostServer.getMetrics();
+        ctx.writeAndFlush(response, ctx.newProgressivePromise()).addListener(new ChannelProgressiveFutureListener() {
+            private boolean firstByteWritten = false;
+
+            @Override
+            public void operationProgressed(ChannelProgressiveFuture future, long progress, long total) {
+                if (!firstByteWritten) {
+                    firstByteWritten = true;
+                    metrics.firstByteWritten(System.nanoTime() - receivedAt);
+                }
+            }
+
+            @Override
+            public void operationComplete(ChannelProgressiveFuture future) {
+                if (!future.isSuccess()) {
+                    sendError(ctx, PROTOCOL_VERSION, response.getRequestId(), "File transfer error: " + future.cause().getMessage());
+                    return;
+                }
+
+                operationProgressed(future, 0, 0); // In case everything got written at once
+                metrics.requestServed(System.nanoTime() - receivedAt);
+            }
+        });
     }
 
     public Optional<Path> resolvePath(final String sha1) {
@@ -192,21 +352,16 @@ public class ServerMessageHandler extends SimpleChannelInboundHandler<ProtocolMe
         return hostServer.getPath(sha1);
     }
 
-    private void sendError(ChannelHandlerContext ctx, byte version, String errorMessage) {
+    // Errors are tagged with the request id, so a single failed request doesn't affect the other requests in flight on this channel
+    private void sendError(ChannelHandlerContext ctx, byte version, int requestId, String errorMessage) {
+        hostServer.getMetrics().requestFailed();
         byte[] errMsgBytes = errorMessage.getBytes(CharsetUtil.UTF_8);
-        ByteBuf errorBuf = Unpooled.buffer(1 + 1 + 4 + errMsgBytes.length);
+        ByteBuf errorBuf = Unpooled.buffer(1 + 1 + 4 + 4 + errMsgBytes.length);
         errorBuf.writeByte(version);
         errorBuf.writeByte(ERROR);
+        errorBuf.writeInt(requestId);
         errorBuf.writeInt(errMsgBytes.length);
         errorBuf.writeBytes(errMsgBytes);
         ctx.writeAndFlush(errorBuf);
-        ctx.channel().close();
-    }
-
-    private void sendEOT(ChannelHandlerContext ctx) {
-        ByteBuf eot = Unpooled.buffer(2);
-        eot.writeByte(PROTOCOL_VERSION);
-        eot.writeByte(END_OF_TRANSMISSION);
-        ctx.writeAndFlush(eot);
     }
 }
@@ -0,0 +1,14 @@
+package pl.skidam.automodpack_core.protocol.netty.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * A frame which {@link ZstdEncoder} sends as is, without compressing it.
+ */
+public class UncompressedFrame extends DefaultByteBufHolder {
+
+    public UncompressedFrame(ByteBuf data) {
+        super(data);
+    }
+}
@@ -0,0 +1,39 @@
+package pl.skidam.automodpack_core.protocol.netty.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import pl.skidam.automodpack_core.protocol.netty.WriteBudget;
+
+/**
+ * Counts the bytes written to the socket of the channel in the {@link WriteBudget} until they are written.
+ * Sits between the traffic shaping handler and the TLS handler, so it sees the data as it goes out, after compression and encryption.
+ */
+public class WriteBudgetHandler extends ChannelDuplexHandler {
+    private final WriteBudget budget;
+
+    public WriteBudgetHandler(WriteBudget budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long bytes = msg instanceof ByteBuf buf ? buf.readableBytes() : 0;
+        if (bytes == 0) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        budget.queued(ctx.channel(), bytes);
+        ChannelPromise countedPromise = promise.unvoid();
+        countedPromise.addListener(future -> budget.written(bytes));
+        ctx.write(msg, countedPromise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        budget.remove(ctx.channel());
+        super.channelInactive(ctx);
+    }
+}
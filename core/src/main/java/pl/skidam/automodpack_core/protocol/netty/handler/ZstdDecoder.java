@@ -1,31 +1,55 @@
 package pl.skidam.automodpack_core.protocol.netty.handler;
 
-import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDecompressCtx;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import pl.skidam.automodpack_core.protocol.netty.NettyServer;
+import pl.skidam.automodpack_core.protocol.netty.ZstdDictionary;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
+/**
+ * Decodes the frames written by {@link ZstdEncoder}, frames sent uncompressed are passed on as they are.
+ * Frames are decompressed with a single context reused for the whole channel straight from the received buffer into a pooled direct buffer,
+ * so once the pool is warmed up, decoding a frame doesn't allocate anything on the heap.
+ * Frames compressed with the {@link ZstdDictionary} of the channel are decompressed with it, other frames without it.
+ */
 public class ZstdDecoder extends ByteToMessageDecoder {
+    public static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024; // Way above the biggest request or response frame, lengths come from the peer
+    private final ZstdDecompressCtx decompressCtx = new ZstdDecompressCtx();
+    private final ZstdDictionary dictionary;
+    private final ZstdDecompressCtx dictDecompressCtx;
+
+    public ZstdDecoder() {
+        this(null);
+    }
+
+    public ZstdDecoder(ZstdDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.dictDecompressCtx = dictionary == null ? null : new ZstdDecompressCtx().loadDict(dictionary.getDecompressDict());
+    }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        // Frames may arrive split across reads, reset to the start of the frame if it's not complete yet
+        in.markReaderIndex();
+
         if (!ctx.pipeline().channel().attr(NettyServer.USE_COMPRESSION).get()) {
             if (in.readableBytes() < 4) {
                 return;
             }
 
             int length = in.readInt();
+            checkLength(length);
 
             if (in.readableBytes() < length) {
                 in.resetReaderIndex();
                 return;
             }
 
-            ByteBuf buf = in.readBytes(length);
-            out.add(buf);
+            out.add(in.readRetainedSlice(length));
             return;
         }
 
@@ -36,23 +60,91 @@ public class ZstdDecoder extends ByteToMessageDecoder {
 
         int compressedLength = in.readInt();
         int originalLength = in.readInt();
+        checkLength(compressedLength);
+        if (originalLength != ZstdEncoder.UNCOMPRESSED) {
+            checkLength(originalLength);
+        }
 
         if (in.readableBytes() < compressedLength) {
             in.resetReaderIndex();
             return;
         }
 
-        byte[] compressed = new byte[compressedLength];
-        in.readBytes(compressed);
+        if (originalLength == ZstdEncoder.UNCOMPRESSED) {
+            out.add(in.readRetainedSlice(compressedLength));
+            return;
+        }
+
+        // Zstd needs a single direct buffer to read from, the received data is copied only if it isn't one
+        ByteBuf compressed = in;
+        if (!in.isDirect() || in.nioBufferCount() != 1) {
+            compressed = ctx.alloc().directBuffer(compressedLength);
+            compressed.writeBytes(in, in.readerIndex(), compressedLength);
+        }
 
-        byte[] decompressed = Zstd.decompress(compressed, originalLength);
+        ByteBuf decompressed = ctx.alloc().directBuffer(originalLength);
+        try {
+            ByteBuffer src = compressed.internalNioBuffer(compressed.readerIndex(), compressedLength);
+            ByteBuffer dst = decompressed.internalNioBuffer(0, originalLength);
+            ZstdDecompressCtx frameDecompressCtx = dictionary != null && getDictionaryId(compressed, compressed.readerIndex(), compressedLength) == dictionary.getId() ? dictDecompressCtx : decompressCtx;
+            int size = frameDecompressCtx.decompressDirectByteBuffer(dst, dst.position(), originalLength, src, src.position(), compressedLength);
 
-        if (decompressed.length != originalLength) {
-            throw new IllegalStateException("Decompressed length does not match original length");
+            if (size != originalLength) {
+                throw new IllegalStateException("Decompressed length does not match original length");
+            }
+
+            decompressed.writerIndex(originalLength);
+            out.add(decompressed);
+        } catch (Exception e) {
+            decompressed.release();
+            throw e;
+        } finally {
+            in.skipBytes(compressedLength);
+            if (compressed != in) {
+                compressed.release();
+            }
         }
+    }
 
-        ByteBuf decompressedBuf = ctx.alloc().buffer(originalLength);
-        decompressedBuf.writeBytes(decompressed);
-        out.add(decompressedBuf);
+    // Checked before waiting for the frame or allocating the buffer to decompress it to
+    private static void checkLength(int length) {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Invalid frame length: " + length);
+        }
+    }
+
+    // The frame header is [int magic][byte descriptor][window descriptor, unless single segment][0-4 bytes little endian dictionary id]
+    static int getDictionaryId(ByteBuf frame, int index, int length) {
+        if (length < 6) {
+            return 0;
+        }
+
+        int descriptor = frame.getUnsignedByte(index + 4);
+        int idLength = switch (descriptor & 3) {
+            case 1 -> 1;
+            case 2 -> 2;
+            case 3 -> 4;
+            default -> 0;
+        };
+        int idIndex = index + ((descriptor & 0x20) != 0 ? 5 : 6);
+        if (idLength == 0 || idIndex + idLength > index + length) {
+            return 0;
+        }
+
+        int id = 0;
+        for (int i = idLength - 1; i >= 0; i--) {
+            id = (id << 8) | frame.getUnsignedByte(idIndex + i);
+        }
+
+        return id;
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        decompressCtx.close();
+        if (dictDecompressCtx != null) {
+            dictDecompressCtx.close();
+        }
+        super.handlerRemoved0(ctx);
     }
 }
@@ -1,28 +1,160 @@
 package pl.skidam.automodpack_core.protocol.netty.handler;
 
 import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+import pl.skidam.automodpack_core.protocol.netty.HostMetrics;
 import pl.skidam.automodpack_core.protocol.netty.NettyServer;
+import pl.skidam.automodpack_core.protocol.netty.ZstdDictionary;
 
-public class ZstdEncoder extends MessageToByteEncoder<ByteBuf> {
+import java.nio.ByteBuffer;
+
+/**
+ * Frames outgoing data as [int length][int originalLength][zstd compressed data].
+ * Data wrapped in {@link UncompressedFrame} is sent as is, with {@link #UNCOMPRESSED} in place of the original length.
+ * Data of a {@link CompressedFrame} is compressed already and sent as is.
+ * If compression is disabled for the channel, frames are just [int length][data].
+ * If the peer has the same {@link ZstdDictionary}, small data is compressed with it too and the smaller result is sent.
+ * Like the {@link ZstdDecoder}, data is compressed with contexts reused for the whole channel straight from the data into the frame buffer,
+ * data not in a single direct buffer is copied to a pooled one first.
+ */
+public class ZstdEncoder extends MessageToByteEncoder<Object> {
+    public static final int UNCOMPRESSED = -1;
+    private static final int MAX_DICTIONARY_INPUT_SIZE = 64 * 1024; // Bigger data has enough history of its own
+    private final ZstdCompressCtx compressCtx = new ZstdCompressCtx().setLevel(Zstd.defaultCompressionLevel());
+    private final ZstdCompressCtx dictCompressCtx;
+    private final HostMetrics metrics;
+
+    public ZstdEncoder() {
+        this(null);
+    }
+
+    public ZstdEncoder(ZstdDictionary dictionary) {
+        this(dictionary, null);
+    }
+
+    public ZstdEncoder(ZstdDictionary dictionary, HostMetrics metrics) {
+        this.dictCompressCtx = dictionary == null ? null : new ZstdCompressCtx().loadDict(dictionary.getCompressDict());
+        this.metrics = metrics;
+    }
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, ByteBuf msg, ByteBuf out) throws Exception {
+    public boolean acceptOutboundMessage(Object msg) {
+        return msg instanceof ByteBuf || msg instanceof UncompressedFrame || msg instanceof CompressedFrame;
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Object msg, boolean preferDirect) {
+        int length = msg instanceof CompressedFrame frame ? frame.getOriginalLength() : data(msg).readableBytes();
+        int maxFrameLength = 8 + (msg instanceof UncompressedFrame ? length : (int) Zstd.compressBound(length));
+        return preferDirect ? ctx.alloc().ioBuffer(maxFrameLength) : ctx.alloc().heapBuffer(maxFrameLength);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) throws Exception {
+        int originalLength = msg instanceof CompressedFrame frame ? frame.getOriginalLength() : data(msg).readableBytes();
+        encodeFrame(ctx, msg, out);
+        if (metrics != null) {
+            metrics.frameEncoded(originalLength, out.readableBytes());
+        }
+    }
+
+    private void encodeFrame(ChannelHandlerContext ctx, Object msg, ByteBuf out) {
+        ByteBuf data = data(msg);
+
         if (!ctx.pipeline().channel().attr(NettyServer.USE_COMPRESSION).get()) {
-            out.writeInt(msg.readableBytes());
-            out.writeBytes(msg);
+            if (msg instanceof CompressedFrame frame) {
+                byte[] compressed = new byte[data.readableBytes()];
+                data.readBytes(compressed);
+                out.writeInt(frame.getOriginalLength());
+                out.writeBytes(Zstd.decompress(compressed, frame.getOriginalLength()));
+                return;
+            }
+
+            out.writeInt(data.readableBytes());
+            out.writeBytes(data);
             return;
         }
 
-        byte[] input = new byte[msg.readableBytes()];
-        msg.readBytes(input);
+        if (msg instanceof UncompressedFrame) {
+            out.writeInt(data.readableBytes());
+            out.writeInt(UNCOMPRESSED);
+            out.writeBytes(data);
+            return;
+        }
+
+        if (msg instanceof CompressedFrame frame) {
+            out.writeInt(data.readableBytes());
+            out.writeInt(frame.getOriginalLength());
+            out.writeBytes(data);
+            return;
+        }
+
+        int length = data.readableBytes();
+        int maxCompressedLength = (int) Zstd.compressBound(length);
+        int headerIndex = out.writerIndex();
+        out.ensureWritable(8 + maxCompressedLength);
+
+        // Zstd reads and writes only single direct buffers
+        ByteBuf input = data.isDirect() && data.nioBufferCount() == 1 ? data : ctx.alloc().directBuffer(length).writeBytes(data, data.readerIndex(), length);
+        ByteBuf output = out.isDirect() && out.nioBufferCount() == 1 ? out : ctx.alloc().directBuffer(8 + maxCompressedLength);
+        ByteBuf dictOutput = null;
+        try {
+            int outputIndex = output == out ? headerIndex + 8 : 0;
+            int compressedLength = compress(compressCtx, input, length, output, outputIndex, maxCompressedLength);
+            ByteBuf compressed = output;
+
+            // The dictionary makes most of small files, but it can make data not alike the files it was trained from compress worse
+            if (dictCompressCtx != null && length <= MAX_DICTIONARY_INPUT_SIZE) {
+                dictOutput = ctx.alloc().directBuffer(maxCompressedLength);
+                int dictCompressedLength = compress(dictCompressCtx, input, length, dictOutput, 0, maxCompressedLength);
+                if (dictCompressedLength < compressedLength) {
+                    compressed = dictOutput;
+                    outputIndex = 0;
+                    compressedLength = dictCompressedLength;
+                }
+            }
 
-        byte[] compressed = Zstd.compress(input);
+            out.writeInt(compressedLength);
+            out.writeInt(length);
+            if (compressed == out) {
+                out.writerIndex(out.writerIndex() + compressedLength);
+            } else {
+                out.writeBytes(compressed, outputIndex, compressedLength);
+            }
+            data.skipBytes(length);
+        } finally {
+            if (input != data) {
+                input.release();
+            }
+            if (output != out) {
+                output.release();
+            }
+            if (dictOutput != null) {
+                dictOutput.release();
+            }
+        }
+    }
+
+    private static int compress(ZstdCompressCtx compressCtx, ByteBuf src, int length, ByteBuf dst, int dstIndex, int maxLength) {
+        ByteBuffer srcBuffer = src.internalNioBuffer(src.readerIndex(), length);
+        ByteBuffer dstBuffer = dst.internalNioBuffer(dstIndex, maxLength);
+        return compressCtx.compressDirectByteBuffer(dstBuffer, dstBuffer.position(), maxLength, srcBuffer, srcBuffer.position(), length);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        compressCtx.close();
+        if (dictCompressCtx != null) {
+            dictCompressCtx.close();
+        }
+        super.handlerRemoved(ctx);
+    }
 
-        out.writeInt(compressed.length);
-        out.writeInt(input.length);
-        out.writeBytes(compressed);
+    private static ByteBuf data(Object msg) {
+        return msg instanceof ByteBufHolder holder ? holder.content() : (ByteBuf) msg;
     }
 }
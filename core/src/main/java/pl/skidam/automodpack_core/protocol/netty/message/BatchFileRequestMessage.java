@@ -0,0 +1,34 @@
+package pl.skidam.automodpack_core.protocol.netty.message;
+
+import static pl.skidam.automodpack_core.protocol.NetUtils.BATCH_FILE_REQUEST_TYPE;
+
+public class BatchFileRequestMessage extends ProtocolMessage {
+    private final int requestId;
+    private final int fileHashesCount;
+    private final int fileHashesLength;
+    private final byte[][] fileHashesList;
+
+    public BatchFileRequestMessage(byte version, byte[] secret, int requestId, byte[][] fileHashesList) {
+        super(version, BATCH_FILE_REQUEST_TYPE, secret);
+        this.requestId = requestId;
+        this.fileHashesCount = fileHashesList.length;
+        this.fileHashesLength = fileHashesList[0].length;
+        this.fileHashesList = fileHashesList;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public int getFileHashesCount() {
+        return fileHashesCount;
+    }
+
+    public int getFileHashesLength() {
+        return fileHashesLength;
+    }
+
+    public byte[][] getFileHashesList() {
+        return fileHashesList;
+    }
+}
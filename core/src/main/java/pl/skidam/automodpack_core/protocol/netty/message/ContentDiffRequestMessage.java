@@ -0,0 +1,40 @@
+package pl.skidam.automodpack_core.protocol.netty.message;
+
+import static pl.skidam.automodpack_core.protocol.NetUtils.CONTENT_DIFF_REQUEST_TYPE;
+
+public class ContentDiffRequestMessage extends ProtocolMessage {
+    private final int requestId;
+    private final byte[] baseContentHash;
+    private final byte[][] fileHashesList;
+
+    /**
+     * @param baseContentHash hash of the modpack content the client has, which the server may send a diff against
+     * @param fileHashesList hashes of the files to refresh before the content is sent, may be empty
+     */
+    public ContentDiffRequestMessage(byte version, byte[] secret, int requestId, byte[] baseContentHash, byte[][] fileHashesList) {
+        super(version, CONTENT_DIFF_REQUEST_TYPE, secret);
+        this.requestId = requestId;
+        this.baseContentHash = baseContentHash;
+        this.fileHashesList = fileHashesList;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public byte[] getBaseContentHash() {
+        return baseContentHash;
+    }
+
+    public int getFileHashesCount() {
+        return fileHashesList.length;
+    }
+
+    public int getFileHashesLength() {
+        return fileHashesList.length == 0 ? 0 : fileHashesList[0].length;
+    }
+
+    public byte[][] getFileHashesList() {
+        return fileHashesList;
+    }
+}
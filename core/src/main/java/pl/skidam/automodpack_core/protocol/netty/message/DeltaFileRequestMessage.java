@@ -0,0 +1,31 @@
+package pl.skidam.automodpack_core.protocol.netty.message;
+
+import static pl.skidam.automodpack_core.protocol.NetUtils.DELTA_FILE_REQUEST_TYPE;
+
+public class DeltaFileRequestMessage extends ProtocolMessage {
+    private final int requestId;
+    private final byte[] fileHash;
+    private final byte[] baseFileHash;
+
+    /**
+     * @param baseFileHash hash of the version of the file the client has, which the server may send a patch against
+     */
+    public DeltaFileRequestMessage(byte version, byte[] secret, int requestId, byte[] fileHash, byte[] baseFileHash) {
+        super(version, DELTA_FILE_REQUEST_TYPE, secret);
+        this.requestId = requestId;
+        this.fileHash = fileHash;
+        this.baseFileHash = baseFileHash;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public byte[] getFileHash() {
+        return fileHash;
+    }
+
+    public byte[] getBaseFileHash() {
+        return baseFileHash;
+    }
+}
@@ -0,0 +1,22 @@
+package pl.skidam.automodpack_core.protocol.netty.message;
+
+import static pl.skidam.automodpack_core.protocol.NetUtils.DICTIONARY_REQUEST_TYPE;
+
+public class DictionaryRequestMessage extends ProtocolMessage {
+    private final int requestId;
+    private final int dictionaryId;
+
+    public DictionaryRequestMessage(byte version, byte[] secret, int requestId, int dictionaryId) {
+        super(version, DICTIONARY_REQUEST_TYPE, secret);
+        this.requestId = requestId;
+        this.dictionaryId = dictionaryId;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+}
@@ -3,13 +3,23 @@ package pl.skidam.automodpack_core.protocol.netty.message;
 import static pl.skidam.automodpack_core.protocol.NetUtils.FILE_REQUEST_TYPE;
 
 public class FileRequestMessage extends ProtocolMessage {
+    private final int requestId;
     private final int fileHashLength;
     private final byte[] fileHash;
+    private final long offset;
+    private final long length;
 
-    public FileRequestMessage(byte version, byte[] secret, byte[] fileHash) {
+    public FileRequestMessage(byte version, byte[] secret, int requestId, byte[] fileHash, long offset, long length) {
         super(version, FILE_REQUEST_TYPE, secret);
+        this.requestId = requestId;
         this.fileHashLength = fileHash.length;
         this.fileHash = fileHash;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int getRequestId() {
+        return requestId;
     }
 
     public int getFileHashLength() {
@@ -19,4 +29,15 @@ public class FileRequestMessage extends ProtocolMessage {
     public byte[] getFileHash() {
         return fileHash;
     }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return number of bytes requested starting at the offset, -1 for the rest of the file
+     */
+    public long getLength() {
+        return length;
+    }
 }
@@ -243,7 +243,7 @@ public class CustomFileUtils {
         return null;
     }
 
-    private static String convertBytesToHex(byte[] bytes) {
+    public static String convertBytesToHex(byte[] bytes) {
         StringBuilder hexString = new StringBuilder();
         for (byte b : bytes) {
             String hex = Integer.toHexString(0xff & b);
@@ -0,0 +1,127 @@
+package pl.skidam.automodpack_core.utils;
+
+import pl.skidam.automodpack_core.config.Jsons;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits large files into content-defined chunks, the boundaries are found with a gear rolling hash over the content itself.
+ * Inserting or removing data moves only the boundaries around the change, so most chunks of an updated file are the same
+ * as chunks of its previous version, even at different offsets, and clients download just the chunks they don't have yet.
+ * Host and clients have to split files the same way, the parameters here must not change without changing the manifest format.
+ */
+public class FileChunker {
+    public static final long MIN_CHUNKED_FILE_SIZE = 32 * 1024 * 1024; // Smaller files are patched as a whole
+    static final int MIN_CHUNK_SIZE = 128 * 1024;
+    static final int MAX_CHUNK_SIZE = 2 * 1024 * 1024;
+    private static final int BOUNDARY_BITS = 19; // Boundary every 512 KB on average past the minimum chunk size
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x4175746F4D6F64L); // Fixed, every side needs the same table
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public record Chunk(long offset, int length, String sha1) { }
+
+    private FileChunker() {
+    }
+
+    /**
+     * Splits the file into chunks, returns them in order with their SHA-1 hashes.
+     */
+    public static List<Chunk> chunk(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        byte[] buffer = new byte[64 * 1024];
+        long chunkOffset = 0;
+        int chunkLength = 0;
+        long hash = 0;
+
+        try (InputStream input = Files.newInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    // The hash depends only on the last 64 bytes, so it isn't computed over the rest of the minimum chunk size
+                    if (chunkLength < MIN_CHUNK_SIZE - 64) {
+                        int skipped = Math.min(read - i, MIN_CHUNK_SIZE - 64 - chunkLength);
+                        chunkLength += skipped;
+                        i += skipped - 1;
+                        continue;
+                    }
+
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                    chunkLength++;
+
+                    boolean boundary = chunkLength >= MIN_CHUNK_SIZE && (hash >>> (64 - BOUNDARY_BITS)) == 0;
+                    if (boundary || chunkLength >= MAX_CHUNK_SIZE) {
+                        digest.update(buffer, start, i + 1 - start);
+                        chunks.add(new Chunk(chunkOffset, chunkLength, CustomFileUtils.convertBytesToHex(digest.digest())));
+                        chunkOffset += chunkLength;
+                        chunkLength = 0;
+                        hash = 0;
+                        start = i + 1;
+                    }
+                }
+
+                digest.update(buffer, start, read - start);
+            }
+        }
+
+        if (chunkLength > 0) {
+            chunks.add(new Chunk(chunkOffset, chunkLength, CustomFileUtils.convertBytesToHex(digest.digest())));
+        }
+
+        return chunks;
+    }
+
+    public static List<Jsons.ModpackContentFields.ModpackContentChunk> toManifest(List<Chunk> chunks) {
+        return chunks.stream().map(chunk -> new Jsons.ModpackContentFields.ModpackContentChunk(chunk.sha1(), String.valueOf(chunk.length()))).toList();
+    }
+
+    /**
+     * Returns the chunks listed in the manifest with their offsets, null if there are none or they are invalid.
+     */
+    public static List<Chunk> fromManifest(List<Jsons.ModpackContentFields.ModpackContentChunk> manifestChunks) {
+        if (manifestChunks == null || manifestChunks.isEmpty()) {
+            return null;
+        }
+
+        List<Chunk> chunks = new ArrayList<>(manifestChunks.size());
+        long offset = 0;
+        for (var manifestChunk : manifestChunks) {
+            int length;
+            try {
+                length = Integer.parseInt(manifestChunk.size);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (length <= 0 || length > MAX_CHUNK_SIZE || manifestChunk.sha1 == null) {
+                return null;
+            }
+
+            chunks.add(new Chunk(offset, length, manifestChunk.sha1));
+            offset += length;
+        }
+
+        return chunks;
+    }
+}
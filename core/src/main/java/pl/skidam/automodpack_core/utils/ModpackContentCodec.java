@@ -0,0 +1,338 @@
+package pl.skidam.automodpack_core.utils;
+
+import pl.skidam.automodpack_core.config.Jsons;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Compact binary encoding of the modpack content, sent to clients and kept next to the content file as a cache which is faster to load.
+ * The JSON content file stays the readable export of the same data, a decoded content is equal to the one it was encoded from.
+ * <p>
+ * Format: [int magic][byte version][long size][long last modified millis] of the content file the data is a cache of, zeros if none,
+ * the content fields as strings, then the items sorted by file. Every item is
+ * [varint shared prefix][bytes rest of the file path][byte flags][byte type][size][sha1][murmur][chunks], where
+ * the path shares its first bytes with the path of the previous item, the type is an index to {@link #TYPES}, sizes and murmurs are varints
+ * and hashes are 20 raw bytes. Values which can't be encoded that way, e.g. because they were edited by hand, are stored as strings.
+ * Strings are [varint length + 1][UTF-8 bytes], with length 0 for null.
+ */
+public class ModpackContentCodec {
+    public static final int MAGIC = 0x414D4346; // AMCF
+    public static final byte VERSION = 2;
+    private static final String CACHE_EXTENSION = ".bin";
+    private static final List<String> TYPES = List.of("mod", "config", "shader", "resourcepack", "mc_options", "other");
+    private static final int CUSTOM_TYPE = 0xFF;
+    private static final int EDITABLE = 1;
+    private static final int NUMERIC_SIZE = 1 << 1;
+    private static final int RAW_SHA1 = 1 << 2;
+    private static final int HAS_CHUNKS = 1 << 3;
+    private static final int RAW_CHUNKS = 1 << 4; // Chunk hashes and sizes are in the compact form
+    private static final int NUMERIC_MURMUR = 1 << 5;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    public static byte[] encode(Jsons.ModpackContentFields content) {
+        return encode(content, 0, 0);
+    }
+
+    private static byte[] encode(Jsons.ModpackContentFields content, long sourceSize, long sourceModified) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + content.list.size() * 48);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceModified);
+            writeString(out, content.modpackName);
+            writeString(out, content.automodpackVersion);
+            writeString(out, content.loader);
+            writeString(out, content.loaderVersion);
+            writeString(out, content.mcVersion);
+            writeString(out, content.contentHash);
+
+            List<Jsons.ModpackContentFields.ModpackContentItem> items = new ArrayList<>(content.list);
+            items.sort(Comparator.comparing(item -> item.file));
+            writeVarLong(out, items.size());
+
+            byte[] previousFile = new byte[0];
+            for (Jsons.ModpackContentFields.ModpackContentItem item : items) {
+                byte[] file = item.file.getBytes(StandardCharsets.UTF_8);
+                int shared = 0;
+                while (shared < file.length && shared < previousFile.length && file[shared] == previousFile[shared]) {
+                    shared++;
+                }
+                writeVarLong(out, shared);
+                writeVarLong(out, file.length - shared);
+                out.write(file, shared, file.length - shared);
+                previousFile = file;
+
+                boolean numericSize = isNumeric(item.size);
+                boolean numericMurmur = isNumeric(item.murmur);
+                boolean rawSha1 = isRawSha1(item.sha1);
+                boolean rawChunks = item.chunks != null && item.chunks.stream().allMatch(chunk -> isRawSha1(chunk.sha1) && isNumeric(chunk.size));
+                int flags = (item.editable ? EDITABLE : 0) | (numericSize ? NUMERIC_SIZE : 0) | (rawSha1 ? RAW_SHA1 : 0)
+                        | (item.chunks != null ? HAS_CHUNKS : 0) | (rawChunks ? RAW_CHUNKS : 0) | (numericMurmur ? NUMERIC_MURMUR : 0);
+                out.writeByte(flags);
+
+                int type = TYPES.indexOf(item.type);
+                out.writeByte(type == -1 ? CUSTOM_TYPE : type);
+                if (type == -1) {
+                    writeString(out, item.type);
+                }
+
+                if (numericSize) {
+                    writeVarLong(out, Long.parseLong(item.size));
+                } else {
+                    writeString(out, item.size);
+                }
+
+                if (rawSha1) {
+                    out.write(toRawSha1(item.sha1));
+                } else {
+                    writeString(out, item.sha1);
+                }
+
+                if (numericMurmur) {
+                    writeVarLong(out, Long.parseLong(item.murmur));
+                } else {
+                    writeString(out, item.murmur);
+                }
+
+                if (item.chunks != null) {
+                    writeVarLong(out, item.chunks.size());
+                    for (Jsons.ModpackContentFields.ModpackContentChunk chunk : item.chunks) {
+                        if (rawChunks) {
+                            out.write(toRawSha1(chunk.sha1));
+                            writeVarLong(out, Long.parseLong(chunk.size));
+                        } else {
+                            writeString(out, chunk.sha1);
+                            writeString(out, chunk.size);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) { // Can't happen writing to memory
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public static Jsons.ModpackContentFields decode(byte[] data) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not an encoded modpack content");
+            }
+
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported modpack content version " + version);
+            }
+
+            // Content file it's a cache of, checked before loading it
+            in.getLong();
+            in.getLong();
+
+            String modpackName = readString(in);
+            String automodpackVersion = readString(in);
+            String loader = readString(in);
+            String loaderVersion = readString(in);
+            String mcVersion = readString(in);
+            String contentHash = readString(in);
+
+            int count = readLength(in, in.remaining());
+            Set<Jsons.ModpackContentFields.ModpackContentItem> items = new HashSet<>((int) (count / 0.75f) + 1);
+            byte[] file = new byte[256]; // Starts with the path of the previous item
+            for (int i = 0; i < count; i++) {
+                int shared = readLength(in, file.length);
+                int fileLength = shared + readLength(in, in.remaining());
+                if (fileLength > file.length) {
+                    file = Arrays.copyOf(file, Math.max(fileLength, file.length * 2));
+                }
+                in.get(file, shared, fileLength - shared);
+
+                int flags = in.get() & 0xFF;
+                int type = in.get() & 0xFF;
+                String typeName;
+                if (type == CUSTOM_TYPE) {
+                    typeName = readString(in);
+                } else if (type < TYPES.size()) {
+                    typeName = TYPES.get(type);
+                } else {
+                    throw new IOException("Unknown type " + type);
+                }
+
+                String size = (flags & NUMERIC_SIZE) != 0 ? String.valueOf(readVarLong(in)) : readString(in);
+                String sha1 = (flags & RAW_SHA1) != 0 ? readRawSha1(in) : readString(in);
+                String murmur = (flags & NUMERIC_MURMUR) != 0 ? String.valueOf(readVarLong(in)) : readString(in);
+
+                var item = new Jsons.ModpackContentFields.ModpackContentItem(new String(file, 0, fileLength, StandardCharsets.UTF_8), size, typeName, (flags & EDITABLE) != 0, sha1, murmur);
+                if ((flags & HAS_CHUNKS) != 0) {
+                    int chunkCount = readLength(in, in.remaining());
+                    List<Jsons.ModpackContentFields.ModpackContentChunk> chunks = new ArrayList<>(chunkCount);
+                    for (int j = 0; j < chunkCount; j++) {
+                        if ((flags & RAW_CHUNKS) != 0) {
+                            chunks.add(new Jsons.ModpackContentFields.ModpackContentChunk(readRawSha1(in), String.valueOf(readVarLong(in))));
+                        } else {
+                            chunks.add(new Jsons.ModpackContentFields.ModpackContentChunk(readString(in), readString(in)));
+                        }
+                    }
+                    item.chunks = chunks;
+                }
+
+                items.add(item);
+            }
+
+            Jsons.ModpackContentFields content = new Jsons.ModpackContentFields(items);
+            content.modpackName = modpackName;
+            content.automodpackVersion = automodpackVersion;
+            content.loader = loader;
+            content.loaderVersion = loaderVersion;
+            content.mcVersion = mcVersion;
+            content.contentHash = contentHash;
+            return content;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Encoded modpack content is truncated", e);
+        }
+    }
+
+    public static boolean isEncoded(byte[] data) {
+        return data.length >= 4 && ((data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF)) == MAGIC;
+    }
+
+    /**
+     * Returns the path of the encoded cache of the content file.
+     */
+    public static Path getCachePath(Path contentFile) {
+        String fileName = contentFile.getFileName().toString();
+        if (fileName.endsWith(".json")) {
+            fileName = fileName.substring(0, fileName.length() - ".json".length());
+        }
+
+        return contentFile.resolveSibling(fileName + CACHE_EXTENSION);
+    }
+
+    /**
+     * Writes the encoded cache of the content file, the content file has to be written already.
+     */
+    public static void writeCache(Path contentFile, Jsons.ModpackContentFields content) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(contentFile, BasicFileAttributes.class);
+        Files.write(getCachePath(contentFile), encode(content, attributes.size(), attributes.lastModifiedTime().toMillis()));
+    }
+
+    /**
+     * Returns the encoded cache of the content file if the content file still has the size and modification time it had when the cache was written,
+     * otherwise it was changed since and the cache might be outdated. Modification times are compared for equality, so it works with coarse timestamps too.
+     */
+    public static Optional<Path> getValidCachePath(Path contentFile) {
+        Path cachePath = getCachePath(contentFile);
+        if (!Files.isRegularFile(cachePath)) {
+            return Optional.empty();
+        }
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(cachePath))) {
+            BasicFileAttributes attributes = Files.readAttributes(contentFile, BasicFileAttributes.class);
+            if (in.readInt() == MAGIC && in.readByte() == VERSION && in.readLong() == attributes.size() && in.readLong() == attributes.lastModifiedTime().toMillis()) {
+                return Optional.of(cachePath);
+            }
+        } catch (IOException e) { // E.g. the content file doesn't exist or the cache is truncated
+            return Optional.empty();
+        }
+
+        return Optional.empty();
+    }
+
+    // Canonical non-negative numbers only, so they are decoded to the same string
+    private static boolean isNumeric(String value) {
+        if (value == null || value.isEmpty() || value.length() > 18 || (value.length() > 1 && value.charAt(0) == '0')) {
+            return false;
+        }
+
+        return value.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+
+    // Lowercase only, so they are decoded to the same string
+    private static boolean isRawSha1(String sha1) {
+        return sha1 != null && sha1.length() == 40 && sha1.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    private static byte[] toRawSha1(String sha1) {
+        byte[] raw = new byte[20];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) Integer.parseInt(sha1, i * 2, i * 2 + 2, 16);
+        }
+        return raw;
+    }
+
+    private static String readRawSha1(ByteBuffer in) {
+        byte[] hex = new byte[40];
+        for (int i = 0; i < 20; i++) {
+            int b = in.get() & 0xFF;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(hex, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        long length = readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+
+        if (length - 1 > in.remaining()) {
+            throw new IOException("String of length " + (length - 1) + " is longer than the rest of the data");
+        }
+
+        String value = new String(in.array(), in.position(), (int) (length - 1), StandardCharsets.UTF_8);
+        in.position(in.position() + (int) (length - 1));
+        return value;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Varint is too long");
+    }
+
+    // Lengths come from the data, so they must not make us allocate more than there can be
+    private static int readLength(ByteBuffer in, int max) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > max) {
+            throw new IOException("Invalid length " + length);
+        }
+
+        return (int) length;
+    }
+}
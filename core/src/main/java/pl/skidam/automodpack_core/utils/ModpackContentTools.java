@@ -2,9 +2,18 @@ package pl.skidam.automodpack_core.utils;
 
 import pl.skidam.automodpack_core.config.Jsons;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 
 import static pl.skidam.automodpack_core.GlobalVariables.*;
 
@@ -18,6 +27,94 @@ public class ModpackContentTools {
         return "other";
     }
 
+    /**
+     * Returns the SHA-1 hash of everything in the modpack content but the hash itself.
+     * The order of the files doesn't matter, so the same content always has the same hash.
+     */
+    public static String computeContentHash(Jsons.ModpackContentFields content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(content.modpackName).append('\0').append(content.automodpackVersion).append('\0').append(content.loader).append('\0')
+                .append(content.loaderVersion).append('\0').append(content.mcVersion).append('\n');
+        content.list.stream().sorted(Comparator.comparing(item -> item.file)).forEach(item ->
+                canonical.append(item.file).append('\0').append(item.size).append('\0').append(item.type).append('\0')
+                        .append(item.editable).append('\0').append(item.sha1).append('\n')); // Murmur and chunks are derived from the file
+
+        return CustomFileUtils.convertBytesToHex(digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns the changes from the base content to the content, items are compared by their files.
+     */
+    public static Jsons.ModpackContentDiffFields computeContentDiff(Jsons.ModpackContentFields baseContent, Jsons.ModpackContentFields content) {
+        Map<String, Jsons.ModpackContentFields.ModpackContentItem> baseItems = new HashMap<>();
+        baseContent.list.forEach(item -> baseItems.put(item.file, item));
+
+        Jsons.ModpackContentDiffFields diff = new Jsons.ModpackContentDiffFields();
+        diff.baseContentHash = computeContentHash(baseContent);
+        diff.contentHash = computeContentHash(content);
+        diff.modpackName = content.modpackName;
+        diff.automodpackVersion = content.automodpackVersion;
+        diff.loader = content.loader;
+        diff.loaderVersion = content.loaderVersion;
+        diff.mcVersion = content.mcVersion;
+        diff.added = new HashSet<>();
+        diff.changed = new HashSet<>();
+        diff.removed = new HashSet<>(baseItems.keySet());
+
+        for (Jsons.ModpackContentFields.ModpackContentItem item : content.list) {
+            diff.removed.remove(item.file);
+            Jsons.ModpackContentFields.ModpackContentItem baseItem = baseItems.get(item.file);
+            if (baseItem == null) {
+                diff.added.add(item);
+            } else if (!isSameItem(baseItem, item)) {
+                diff.changed.add(item);
+            }
+        }
+
+        return diff;
+    }
+
+    /**
+     * Applies the diff to the base content, returns empty if the diff is from other content or the result doesn't have the expected hash.
+     */
+    public static Optional<Jsons.ModpackContentFields> applyContentDiff(Jsons.ModpackContentFields baseContent, Jsons.ModpackContentDiffFields diff) {
+        if (diff.baseContentHash == null || !diff.baseContentHash.equals(computeContentHash(baseContent))) {
+            return Optional.empty();
+        }
+
+        Map<String, Jsons.ModpackContentFields.ModpackContentItem> items = new HashMap<>();
+        baseContent.list.forEach(item -> items.put(item.file, item));
+        diff.removed.forEach(items::remove);
+        diff.changed.forEach(item -> items.put(item.file, item));
+        diff.added.forEach(item -> items.put(item.file, item));
+
+        Jsons.ModpackContentFields content = new Jsons.ModpackContentFields(new HashSet<>(items.values()));
+        content.modpackName = diff.modpackName;
+        content.automodpackVersion = diff.automodpackVersion;
+        content.loader = diff.loader;
+        content.loaderVersion = diff.loaderVersion;
+        content.mcVersion = diff.mcVersion;
+        content.contentHash = computeContentHash(content);
+        if (!content.contentHash.equals(diff.contentHash)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(content);
+    }
+
+    // Chunks are derived from the file, they differ only if one of the items doesn't have them
+    private static boolean isSameItem(Jsons.ModpackContentFields.ModpackContentItem a, Jsons.ModpackContentFields.ModpackContentItem b) {
+        return Objects.equals(a.size, b.size) && Objects.equals(a.type, b.type) && a.editable == b.editable && Objects.equals(a.sha1, b.sha1)
+                && Objects.equals(a.murmur, b.murmur) && (a.chunks == null) == (b.chunks == null);
+    }
+
     public static Optional<Path> getModpackDir(String modpack) {
         if (modpack == null || modpack.isEmpty()) {
             return Optional.empty();
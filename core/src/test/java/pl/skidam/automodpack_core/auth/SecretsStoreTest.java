@@ -0,0 +1,74 @@
+package pl.skidam.automodpack_core.auth;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.GlobalVariables;
+import pl.skidam.automodpack_core.config.Jsons;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SecretsStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static Secrets.Secret secret(String secret, long ageSeconds) {
+        return new Secrets.Secret(secret, "fingerprint", System.currentTimeMillis() / 1000 - ageSeconds);
+    }
+
+    @Test
+    void replacedSecretIsNotFoundAnymore() {
+        Path file = tempDir.resolve("secrets.json");
+        SecretsStore.SecretsCache cache = new SecretsStore.SecretsCache(file, 0, false);
+
+        cache.save("player", secret("first", 0));
+        assertEquals("player", cache.getBySecret("first").getKey());
+
+        cache.save("player", secret("second", 0));
+        assertNull(cache.getBySecret("first"));
+        assertEquals("second", cache.getBySecret("second").getValue().secret());
+
+        // The index is rebuilt from the file
+        SecretsStore.SecretsCache loaded = new SecretsStore.SecretsCache(file, 0, false);
+        assertNull(loaded.getBySecret("first"));
+        assertEquals("player", loaded.getBySecret("second").getKey());
+    }
+
+    @Test
+    void expiredSecretsAreRemoved() {
+        Jsons.ServerConfigFields previousConfig = GlobalVariables.serverConfig;
+        GlobalVariables.serverConfig = new Jsons.ServerConfigFields();
+        GlobalVariables.serverConfig.secretLifetime = 1;
+        try {
+            Path file = tempDir.resolve("secrets.json");
+            SecretsStore.SecretsCache cache = new SecretsStore.SecretsCache(file, 0, true);
+            cache.save("old", secret("oldSecret", 2 * 3600));
+            cache.save("recent", secret("recentSecret", 60));
+
+            assertNull(cache.get("old"));
+            assertNull(cache.getBySecret("oldSecret"));
+            assertEquals("recent", cache.getBySecret("recentSecret").getKey());
+
+            SecretsStore.SecretsCache loaded = new SecretsStore.SecretsCache(file, 0, true);
+            assertNull(loaded.get("old"));
+            assertNotNull(loaded.get("recent"));
+        } finally {
+            GlobalVariables.serverConfig = previousConfig;
+        }
+    }
+
+    @Test
+    void flushWritesPendingSaves() {
+        Path file = tempDir.resolve("secrets.json");
+        SecretsStore.SecretsCache cache = new SecretsStore.SecretsCache(file, 60_000, false);
+
+        cache.save("player", secret("pending", 0));
+        assertEquals("player", cache.getBySecret("pending").getKey());
+        assertNull(new SecretsStore.SecretsCache(file, 0, false).get("player"));
+
+        cache.flush();
+        assertEquals("pending", new SecretsStore.SecretsCache(file, 0, false).get("player").secret());
+    }
+}
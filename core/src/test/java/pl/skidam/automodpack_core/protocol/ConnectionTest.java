@@ -0,0 +1,107 @@
+package pl.skidam.automodpack_core.protocol;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionTest {
+
+    // Opens a TLS connection the way the handshake handler does and returns whether its session was resumed
+    private boolean connect(NioEventLoopGroup group, InetSocketAddress address, String serverKey) throws Exception {
+        long connectStart = System.currentTimeMillis();
+        CompletableFuture<Boolean> resumed = new CompletableFuture<>();
+        SslHandler sslHandler = Connection.getSslContext(serverKey).newHandler(ByteBufAllocator.DEFAULT, address.getHostString(), address.getPort());
+        Channel channel = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(sslHandler, new SimpleChannelInboundHandler<ByteBuf>() {
+                            // TLS 1.3 session tickets arrive after the handshake, the echo comes after them
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+                                resumed.complete(sslHandler.engine().getSession().getCreationTime() < connectStart);
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                resumed.completeExceptionally(cause);
+                            }
+                        });
+                    }
+                })
+                .connect(address)
+                .sync()
+                .channel();
+
+        sslHandler.handshakeFuture().sync();
+        channel.writeAndFlush(Unpooled.wrappedBuffer(new byte[]{1}));
+        try {
+            return resumed.get(10, TimeUnit.SECONDS);
+        } finally {
+            channel.close().sync();
+        }
+    }
+
+    @Test
+    void reconnectResumesTheTlsSession() throws Exception {
+        KeyPair keyPair = NetUtils.generateKeyPair();
+        SslContext serverContext = SslContextBuilder.forServer(keyPair.getPrivate(), NetUtils.selfSign(keyPair))
+                .sslProvider(SslProvider.JDK)
+                .protocols("TLSv1.3")
+                .build();
+
+        NioEventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            Channel server = new ServerBootstrap()
+                    .group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(serverContext.newHandler(ch.alloc()), new SimpleChannelInboundHandler<ByteBuf>() {
+                                @Override
+                                protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+                                    ctx.writeAndFlush(msg.retain());
+                                }
+                            });
+                        }
+                    })
+                    .bind(new InetSocketAddress("127.0.0.1", 0))
+                    .sync()
+                    .channel();
+            InetSocketAddress address = (InetSocketAddress) server.localAddress();
+
+            // Creation time has millisecond precision
+            assertFalse(connect(group, address, address + "/first"));
+            Thread.sleep(10);
+            assertTrue(connect(group, address, address + "/first"));
+
+            // Other server identity on the same address, nothing to resume
+            assertFalse(connect(group, address, address + "/second"));
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+}
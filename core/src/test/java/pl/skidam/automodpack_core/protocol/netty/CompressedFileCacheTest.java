@@ -0,0 +1,89 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import com.github.luben.zstd.Zstd;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.protocol.netty.handler.FileResponseChunkedInput;
+import pl.skidam.automodpack_core.utils.CustomFileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressedFileCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Files are compressed in the background
+    private Optional<Path> await(CompressedFileCache cache, String sha1) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            Optional<Path> cached = cache.get(sha1);
+            if (cached.isPresent()) {
+                return cached;
+            }
+            Thread.sleep(50);
+        }
+
+        return Optional.empty();
+    }
+
+    @Test
+    void compressedCopyDecompressesToTheFile() throws Exception {
+        Path file = tempDir.resolve("config.json");
+        byte[] data = "{\"option\": true, \"value\": 12345}\n".repeat(10000).getBytes(StandardCharsets.UTF_8);
+        Files.write(file, data);
+        String sha1 = CustomFileUtils.getHash(file);
+
+        CompressedFileCache cache = new CompressedFileCache(tempDir.resolve("cache"));
+        cache.add(sha1, file);
+        Path cachePath = await(cache, sha1).orElseThrow();
+        assertTrue(Files.size(cachePath) < data.length / 10);
+
+        // Records of whole chunks, sent as they are in place of the chunks of the file
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(cachePath))) {
+            while (input.available() > 0) {
+                byte[] compressed = new byte[input.readInt()];
+                int originalLength = input.readInt();
+                input.readFully(compressed);
+                assertTrue(originalLength <= FileResponseChunkedInput.CHUNK_SIZE);
+                decompressed.write(Zstd.decompress(compressed, originalLength));
+            }
+        }
+        assertArrayEquals(data, decompressed.toByteArray());
+
+        // Not hosted anymore
+        cache.update(Map.of());
+        for (int i = 0; i < 100 && Files.exists(cachePath); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(Files.exists(cachePath));
+        assertTrue(cache.get(sha1).isEmpty());
+    }
+
+    @Test
+    void changedAndIncompressibleFilesAreNotCached() throws IOException, InterruptedException {
+        Path file = tempDir.resolve("options.txt");
+        Files.writeString(file, "renderDistance:12\n".repeat(1000));
+        Path jar = tempDir.resolve("mod.jar");
+        Files.writeString(jar, "fov:70\n".repeat(1000));
+        String jarSha1 = CustomFileUtils.getHash(jar);
+
+        CompressedFileCache cache = new CompressedFileCache(tempDir.resolve("cache"));
+        cache.add("0000000000000000000000000000000000000000", file);
+        cache.add(jarSha1, jar);
+        cache.add(CustomFileUtils.getHash(file), file); // Built after the others, so they're done once it is
+        assertTrue(await(cache, CustomFileUtils.getHash(file)).isPresent());
+
+        assertTrue(cache.get("0000000000000000000000000000000000000000").isEmpty());
+        assertTrue(cache.get(jarSha1).isEmpty());
+    }
+}
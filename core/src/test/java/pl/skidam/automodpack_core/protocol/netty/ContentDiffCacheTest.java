@@ -0,0 +1,75 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.config.ConfigTools;
+import pl.skidam.automodpack_core.config.Jsons;
+import pl.skidam.automodpack_core.utils.ModpackContentTools;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentDiffCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Content with many mods, the one given is updated
+    private Path writeContent(String name, String updatedSha1) {
+        LinkedHashSet<Jsons.ModpackContentFields.ModpackContentItem> items = new LinkedHashSet<>();
+        for (int i = 0; i < 50; i++) {
+            String sha1 = String.format("%040x", i);
+            items.add(new Jsons.ModpackContentFields.ModpackContentItem("/mods/mod-" + i + ".jar", "1024", "mod", false, i == 0 ? updatedSha1 : sha1, "1"));
+        }
+        Jsons.ModpackContentFields content = new Jsons.ModpackContentFields(items);
+        content.modpackName = "TestPack";
+        content.mcVersion = "1.21.1";
+
+        Path file = tempDir.resolve(name);
+        ConfigTools.saveModpackContent(file, content);
+        return file;
+    }
+
+    private static String hash(Path contentFile) {
+        return ModpackContentTools.computeContentHash(ConfigTools.loadModpackContent(contentFile));
+    }
+
+    @Test
+    void diffFromPreviousVersionIsCreated() throws Exception {
+        Path baseFile = writeContent("base.json", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3");
+        Path contentFile = writeContent("content.json", "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        String baseHash = hash(baseFile);
+        String contentHash = hash(contentFile);
+
+        ContentDiffCache cache = new ContentDiffCache(tempDir.resolve("versions"), tempDir.resolve("diffs"));
+        cache.update(baseHash, baseFile);
+        cache.update(contentHash, contentFile);
+
+        Path diffPath = cache.getDiff(baseHash).get(10, TimeUnit.SECONDS).orElseThrow();
+        assertTrue(Files.size(diffPath) < Files.size(contentFile) / 5);
+        assertSame(cache.getDiff(baseHash), cache.getDiff(baseHash));
+    }
+
+    @Test
+    void unknownBaseIsNotCached() throws Exception {
+        Path contentFile = writeContent("content.json", "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        ContentDiffCache cache = new ContentDiffCache(tempDir.resolve("versions"), tempDir.resolve("diffs"));
+        cache.update(hash(contentFile), contentFile);
+
+        // Answered without building anything, a cached future would be returned again
+        String unknownHash = "0000000000000000000000000000000000000000";
+        CompletableFuture<Optional<Path>> unknownBase = cache.getDiff(unknownHash);
+        assertTrue(unknownBase.isDone());
+        assertTrue(unknownBase.get().isEmpty());
+        assertNotSame(unknownBase, cache.getDiff(unknownHash));
+        assertFalse(Files.exists(tempDir.resolve("diffs")));
+
+        assertTrue(cache.getDiff("../../" + unknownHash.substring(6)).get().isEmpty());
+    }
+}
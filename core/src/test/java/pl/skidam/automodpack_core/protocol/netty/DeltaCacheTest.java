@@ -0,0 +1,83 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.utils.CustomFileUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private DeltaCache createCache(Path baseFile, String baseSha1) throws InterruptedException {
+        DeltaCache cache = new DeltaCache(tempDir.resolve("versions"), tempDir.resolve("patches"));
+        cache.update(Map.of(baseSha1, baseFile));
+
+        // Versions are kept in the background
+        for (int i = 0; i < 100 && !Files.exists(tempDir.resolve("versions").resolve(baseSha1)); i++) {
+            Thread.sleep(50);
+        }
+
+        return cache;
+    }
+
+    @Test
+    void patchRecreatesTheFileFromItsBase() throws Exception {
+        byte[] base = new byte[256 * 1024];
+        new Random(42).nextBytes(base);
+        byte[] target = base.clone();
+        for (int i = 1000; i < 1100; i++) {
+            target[i] = 0;
+        }
+
+        Path baseFile = tempDir.resolve("mod-1.0.jar");
+        Files.write(baseFile, base);
+        String baseSha1 = CustomFileUtils.getHash(baseFile);
+        DeltaCache cache = createCache(baseFile, baseSha1);
+
+        Path targetFile = tempDir.resolve("mod-1.1.jar");
+        Files.write(targetFile, target);
+        String sha1 = CustomFileUtils.getHash(targetFile);
+        cache.add(sha1, targetFile);
+
+        Path patchPath = cache.getPatch(baseSha1, sha1, targetFile).get(10, TimeUnit.SECONDS).orElseThrow();
+        byte[] patch = Files.readAllBytes(patchPath);
+        assertTrue(patch.length < target.length / 10);
+
+        // Applied the same way the client does
+        try (ZstdDecompressCtx decompressCtx = new ZstdDecompressCtx().loadDict(base)) {
+            assertArrayEquals(target, decompressCtx.decompress(patch, (int) Zstd.getFrameContentSize(patch)));
+        }
+
+        // Kept on disk for the next request
+        assertEquals(Optional.of(patchPath), cache.getPatch(baseSha1, sha1, targetFile).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void unknownBasesAreNotPatched() throws Exception {
+        Path baseFile = tempDir.resolve("config.json");
+        Files.writeString(baseFile, "{\"value\": 1}");
+        String baseSha1 = CustomFileUtils.getHash(baseFile);
+        DeltaCache cache = createCache(baseFile, baseSha1);
+
+        // Answered without building anything
+        CompletableFuture<Optional<Path>> unknownBase = cache.getPatch("0000000000000000000000000000000000000000", baseSha1, baseFile);
+        assertTrue(unknownBase.isDone());
+        assertTrue(unknownBase.get().isEmpty());
+
+        assertTrue(cache.getPatch("../../" + baseSha1.substring(6), baseSha1, baseFile).get().isEmpty());
+        assertTrue(cache.getPatch(baseSha1, baseSha1, baseFile).get().isEmpty());
+    }
+}
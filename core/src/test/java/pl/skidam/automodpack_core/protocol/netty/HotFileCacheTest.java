@@ -0,0 +1,116 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import com.github.luben.zstd.Zstd;
+import io.netty.buffer.ByteBufUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.utils.CustomFileUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotFileCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Files are loaded in the background
+    private Optional<HotFileCache.Entry> await(HotFileCache cache, String sha1, Path file) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            Optional<HotFileCache.Entry> entry = cache.get(sha1, file);
+            if (entry.isPresent()) {
+                return entry;
+            }
+            Thread.sleep(50);
+        }
+
+        return Optional.empty();
+    }
+
+    private Path randomFile(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(name.hashCode()).nextBytes(data);
+        return Files.write(tempDir.resolve(name), data);
+    }
+
+    @Test
+    void filesAreKeptCompressedWhenWorthIt() throws Exception {
+        Path config = tempDir.resolve("config.json");
+        byte[] data = "{\"option\": true}\n".repeat(500).getBytes(StandardCharsets.UTF_8);
+        Files.write(config, data);
+        Path jar = randomFile("mod.jar", 4096);
+
+        HotFileCache cache = new HotFileCache(1024 * 1024);
+        String configSha1 = CustomFileUtils.getHash(config);
+        String jarSha1 = CustomFileUtils.getHash(jar);
+        cache.update(Map.of(configSha1, config, jarSha1, jar));
+
+        HotFileCache.Entry configEntry = await(cache, configSha1, config).orElseThrow();
+        assertTrue(configEntry.compressed());
+        assertEquals(data.length, configEntry.fileSize());
+        assertArrayEquals(data, Zstd.decompress(ByteBufUtil.getBytes(configEntry.data()), data.length));
+        configEntry.data().release();
+
+        HotFileCache.Entry jarEntry = await(cache, jarSha1, jar).orElseThrow();
+        assertFalse(jarEntry.compressed());
+        assertArrayEquals(Files.readAllBytes(jar), ByteBufUtil.getBytes(jarEntry.data()));
+        jarEntry.data().release();
+
+        // Not hosted anymore
+        cache.update(Map.of(jarSha1, jar));
+        assertTrue(cache.get(configSha1, config).isEmpty());
+        cache.remove(jarSha1);
+        assertTrue(cache.get(jarSha1, jar).isEmpty());
+    }
+
+    @Test
+    void leastRecentlyRequestedFilesAreEvicted() throws Exception {
+        Path first = randomFile("first.bin", 1000);
+        Path second = randomFile("second.bin", 1000);
+        Path third = randomFile("third.bin", 1000);
+        String firstSha1 = CustomFileUtils.getHash(first);
+        String secondSha1 = CustomFileUtils.getHash(second);
+        String thirdSha1 = CustomFileUtils.getHash(third);
+
+        HotFileCache cache = new HotFileCache(2500);
+        cache.add(firstSha1, first);
+        cache.add(secondSha1, second);
+        await(cache, secondSha1, second).orElseThrow().data().release();
+        await(cache, firstSha1, first).orElseThrow().data().release();
+
+        // Over the budget, the least recently requested file makes room
+        cache.add(thirdSha1, third);
+        await(cache, thirdSha1, third).orElseThrow().data().release();
+        assertTrue(cache.get(firstSha1, first).isPresent());
+        assertTrue(cache.get(secondSha1, second).isEmpty());
+    }
+
+    @Test
+    void changedAndOversizedFilesAreNotKept() throws Exception {
+        Path file = randomFile("options.txt", 100);
+        Path big = randomFile("big.bin", HotFileCache.MAX_FILE_SIZE + 1);
+        String bigSha1 = CustomFileUtils.getHash(big);
+
+        HotFileCache cache = new HotFileCache(16 * 1024 * 1024);
+        cache.add("0000000000000000000000000000000000000000", file);
+        cache.add(bigSha1, big);
+        String sha1 = CustomFileUtils.getHash(file);
+        cache.add(sha1, file); // Loaded after the others, so they're done once it is
+        assertTrue(await(cache, sha1, file).isPresent());
+
+        assertTrue(cache.get("0000000000000000000000000000000000000000", file).isEmpty());
+        assertTrue(cache.get(bigSha1, big).isEmpty());
+
+        HotFileCache disabled = new HotFileCache(0);
+        disabled.add(sha1, file);
+        Thread.sleep(200);
+        assertTrue(disabled.get(sha1, file).isEmpty());
+    }
+}
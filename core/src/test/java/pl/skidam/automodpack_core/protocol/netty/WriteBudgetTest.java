@@ -0,0 +1,72 @@
+package pl.skidam.automodpack_core.protocol.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import pl.skidam.automodpack_core.protocol.netty.handler.WriteBudgetHandler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBudgetTest {
+
+    // Written data stays queued until the channel is flushed
+    private static void queue(EmbeddedChannel channel, int bytes) {
+        channel.write(Unpooled.wrappedBuffer(new byte[bytes]));
+        channel.runPendingTasks();
+    }
+
+    @Test
+    void connectionsPauseUntilHalfOfTheBudgetIsWritten() {
+        WriteBudget budget = new WriteBudget(1000);
+        EmbeddedChannel first = new EmbeddedChannel(new WriteBudgetHandler(budget));
+        EmbeddedChannel second = new EmbeddedChannel(new WriteBudgetHandler(budget));
+
+        queue(first, 600);
+        assertEquals(600, budget.getPendingBytes());
+        assertTrue(first.isWritable());
+
+        // Over the budget, only the connection queueing more pauses
+        queue(second, 500);
+        assertEquals(1100, budget.getPendingBytes());
+        assertEquals(1, budget.getPausedConnections());
+        assertTrue(first.isWritable());
+        assertFalse(second.isWritable());
+
+        first.flush();
+        second.runPendingTasks();
+        assertEquals(500, budget.getPendingBytes());
+        assertEquals(0, budget.getPausedConnections());
+        assertTrue(second.isWritable());
+
+        second.flush();
+        assertEquals(0, budget.getPendingBytes());
+        first.finishAndReleaseAll();
+        second.finishAndReleaseAll();
+    }
+
+    @Test
+    void closedConnectionsAreNotKeptPaused() {
+        WriteBudget budget = new WriteBudget(100);
+        EmbeddedChannel channel = new EmbeddedChannel(new WriteBudgetHandler(budget));
+
+        queue(channel, 200);
+        assertEquals(1, budget.getPausedConnections());
+
+        channel.close();
+        assertEquals(0, budget.getPausedConnections());
+    }
+
+    @Test
+    void unlimitedBudgetNeverPauses() {
+        WriteBudget budget = new WriteBudget(-1);
+        EmbeddedChannel channel = new EmbeddedChannel(new WriteBudgetHandler(budget));
+
+        queue(channel, 16 * 1024); // Below the water marks of the channel
+        assertEquals(0, budget.getPausedConnections());
+        assertTrue(channel.isWritable());
+
+        channel.flush();
+        assertEquals(0, budget.getPendingBytes());
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,122 @@
+package pl.skidam.automodpack_core.protocol.netty.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import pl.skidam.automodpack_core.protocol.netty.message.BatchFileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.ContentDiffRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.FileRequestMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.ProtocolMessage;
+import pl.skidam.automodpack_core.protocol.netty.message.RefreshRequestMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static pl.skidam.automodpack_core.protocol.NetUtils.*;
+
+class ProtocolMessageDecoderTest {
+
+    private final byte[] secret = new byte[32];
+
+    private ByteBuf encode(ProtocolMessage message) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ProtocolMessageEncoder());
+        assertTrue(channel.writeOutbound(message));
+        return channel.readOutbound();
+    }
+
+    private <T extends ProtocolMessage> T decode(ByteBuf frame) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ProtocolMessageDecoder());
+        assertTrue(channel.writeInbound(frame));
+        return channel.readInbound();
+    }
+
+    @Test
+    void fileRequestRoundTrip() {
+        byte[] hash = "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3".getBytes(StandardCharsets.UTF_8);
+        FileRequestMessage decoded = decode(encode(new FileRequestMessage(PROTOCOL_VERSION, secret, 42, hash, 1024, 4096)));
+
+        assertEquals(PROTOCOL_VERSION, decoded.getVersion());
+        assertEquals(FILE_REQUEST_TYPE, decoded.getType());
+        assertEquals(42, decoded.getRequestId());
+        assertArrayEquals(hash, decoded.getFileHash());
+        assertEquals(1024, decoded.getOffset());
+        assertEquals(4096, decoded.getLength());
+    }
+
+    @Test
+    void refreshRequestRoundTrip() {
+        byte[][] hashes = {"0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33".getBytes(StandardCharsets.UTF_8), "62cdb7020ff920e5aa642c3d4066950dd1f01f4d".getBytes(StandardCharsets.UTF_8)};
+        RefreshRequestMessage decoded = decode(encode(new RefreshRequestMessage(PROTOCOL_VERSION, secret, 7, hashes)));
+
+        assertEquals(7, decoded.getRequestId());
+        assertEquals(2, decoded.getFileHashesList().length);
+        assertArrayEquals(hashes[1], decoded.getFileHashesList()[1]);
+    }
+
+    @Test
+    void batchRequestRoundTrip() {
+        byte[][] hashes = {"356a192b7913b04c54574d18c28d46e6395428ab".getBytes(StandardCharsets.UTF_8), "da4b9237bacccdf19c0760cab7aec4a8359010b0".getBytes(StandardCharsets.UTF_8)};
+        BatchFileRequestMessage decoded = decode(encode(new BatchFileRequestMessage(PROTOCOL_VERSION, secret, 3, hashes)));
+
+        assertEquals(3, decoded.getRequestId());
+        assertEquals(2, decoded.getFileHashesList().length);
+        assertArrayEquals(hashes[0], decoded.getFileHashesList()[0]);
+    }
+
+    @Test
+    void contentDiffRequestRoundTrip() {
+        byte[] baseContentHash = "77de68daecd823babbb58edb1c8e14d7106e83bb".getBytes(StandardCharsets.UTF_8);
+        ContentDiffRequestMessage decoded = decode(encode(new ContentDiffRequestMessage(PROTOCOL_VERSION, secret, 9, baseContentHash, new byte[0][])));
+
+        assertEquals(9, decoded.getRequestId());
+        assertArrayEquals(baseContentHash, decoded.getBaseContentHash());
+        assertEquals(0, decoded.getFileHashesCount());
+    }
+
+    @Test
+    void oversizedHashListsAreRejected() {
+        assertRejected(BATCH_FILE_REQUEST_TYPE, frame -> frame.writeInt(1).writeInt(Integer.MAX_VALUE).writeInt(40));
+        assertRejected(BATCH_FILE_REQUEST_TYPE, frame -> frame.writeInt(1).writeInt(1).writeInt(Integer.MAX_VALUE));
+        assertRejected(REFRESH_REQUEST_TYPE, frame -> frame.writeInt(1).writeInt(MAX_REQUESTED_HASHES + 1).writeInt(0));
+        assertRejected(FILE_REQUEST_TYPE, frame -> frame.writeInt(1).writeInt(-1));
+        assertRejected(CONTENT_DIFF_REQUEST_TYPE, frame -> frame.writeInt(1).writeInt(Integer.MAX_VALUE));
+        assertRejected(CONTENT_DIFF_REQUEST_TYPE, frame -> frame.writeInt(1).writeInt(0).writeInt(Integer.MAX_VALUE).writeInt(40));
+        assertRejected(DELTA_FILE_REQUEST_TYPE, frame -> frame.writeInt(1).writeInt(40).writeBytes(new byte[40]).writeInt(Integer.MAX_VALUE));
+    }
+
+    private void assertRejected(byte type, Consumer<ByteBuf> body) {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeByte(PROTOCOL_VERSION);
+        frame.writeByte(type);
+        frame.writeBytes(secret);
+        body.accept(frame);
+        frame.writeBytes(new byte[64]);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new ProtocolMessageDecoder());
+        assertFalse(channel.writeInbound(frame));
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    void otherProtocolVersionIsRejected() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeByte(1); // First version, without request ids
+        frame.writeByte(FILE_REQUEST_TYPE);
+        frame.writeBytes(secret);
+        frame.writeInt(40);
+        frame.writeBytes(new byte[40]);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new ProtocolMessageDecoder());
+        assertFalse(channel.writeInbound(frame));
+
+        ByteBuf error = channel.readOutbound();
+        assertEquals(1, error.readByte());
+        assertEquals(ERROR, error.readByte());
+        assertEquals(error.readableBytes() - 4, error.readInt());
+        assertTrue(error.toString(StandardCharsets.UTF_8).startsWith("Unsupported protocol version 1"));
+        assertFalse(channel.isOpen());
+        error.release();
+    }
+}
@@ -0,0 +1,138 @@
+package pl.skidam.automodpack_core.protocol.netty.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.protocol.netty.NettyServer;
+import pl.skidam.automodpack_core.protocol.netty.ZstdDictionary;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ZstdDecoderTest {
+
+    @TempDir
+    Path tempDir;
+
+    private EmbeddedChannel createChannel(ChannelHandler handler) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.attr(NettyServer.USE_COMPRESSION).set(true);
+        channel.pipeline().addLast(handler);
+        return channel;
+    }
+
+    private ByteBuf encode(Object msg) {
+        EmbeddedChannel channel = createChannel(new ZstdEncoder());
+        assertTrue(channel.writeOutbound(msg));
+        return channel.readOutbound();
+    }
+
+    private ByteBuf decode(ByteBuf frames) {
+        EmbeddedChannel channel = createChannel(new ZstdDecoder());
+        channel.writeInbound(frames);
+        return channel.readInbound();
+    }
+
+    @Test
+    void compressedFrameRoundTrip() {
+        byte[] data = "modpack content ".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        ByteBuf frame = encode(Unpooled.wrappedBuffer(data));
+        assertTrue(frame.readableBytes() < data.length / 10);
+
+        ByteBuf decoded = decode(frame);
+        assertEquals(Unpooled.wrappedBuffer(data), decoded);
+        decoded.release();
+    }
+
+    @Test
+    void frameSplitAcrossReads() {
+        byte[] data = "abcdefgh".repeat(100).getBytes(StandardCharsets.UTF_8);
+        ByteBuf frame = encode(new UncompressedFrame(Unpooled.wrappedBuffer(data)));
+
+        EmbeddedChannel channel = createChannel(new ZstdDecoder());
+        assertFalse(channel.writeInbound(frame.readRetainedSlice(frame.readableBytes() / 2)));
+        assertTrue(channel.writeInbound(frame));
+
+        ByteBuf decoded = channel.readInbound();
+        assertEquals(Unpooled.wrappedBuffer(data), decoded);
+        decoded.release();
+    }
+
+    @Test
+    void oversizedFrameIsRejected() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(16);
+        frame.writeInt(Integer.MAX_VALUE); // Would be allocated to decompress the frame
+        frame.writeBytes(new byte[16]);
+
+        EmbeddedChannel channel = createChannel(new ZstdDecoder());
+        assertThrows(DecoderException.class, () -> channel.writeInbound(frame));
+
+        ByteBuf hugeFrame = Unpooled.buffer();
+        hugeFrame.writeInt(ZstdDecoder.MAX_FRAME_LENGTH + 1);
+        hugeFrame.writeInt(ZstdEncoder.UNCOMPRESSED);
+        EmbeddedChannel otherChannel = createChannel(new ZstdDecoder());
+        assertThrows(DecoderException.class, () -> otherChannel.writeInbound(hugeFrame));
+    }
+
+    @Test
+    void dictionaryIdIsReadFromFrameHeader() {
+        int magic = 0xFD2FB528;
+
+        // Single segment, 4 byte id right after the descriptor
+        ByteBuf frame = Unpooled.buffer().writeIntLE(magic).writeByte(0x23).writeIntLE(0x12345678).writeZero(8);
+        assertEquals(0x12345678, ZstdDecoder.getDictionaryId(frame, 0, frame.readableBytes()));
+
+        // Window descriptor before the 1 byte id
+        ByteBuf windowFrame = Unpooled.buffer().writeZero(8).writeIntLE(magic).writeByte(0x01).writeByte(0x58).writeByte(42).writeZero(8);
+        assertEquals(42, ZstdDecoder.getDictionaryId(windowFrame, 8, windowFrame.readableBytes() - 8));
+
+        // 2 byte id cut off by the end of the frame
+        ByteBuf truncatedFrame = Unpooled.buffer().writeIntLE(magic).writeByte(0x22).writeByte(1);
+        assertEquals(0, ZstdDecoder.getDictionaryId(truncatedFrame, 0, truncatedFrame.readableBytes()));
+
+        byte[] data = "no dictionary".repeat(10).getBytes(StandardCharsets.UTF_8);
+        ByteBuf plainFrame = encode(Unpooled.wrappedBuffer(data));
+        assertEquals(0, ZstdDecoder.getDictionaryId(plainFrame, 8, plainFrame.readableBytes() - 8));
+    }
+
+    @Test
+    void dictionaryFrameRoundTrip() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            Path file = tempDir.resolve("config-" + i + ".json");
+            Files.writeString(file, "{\n  \"enabled\": " + (i % 2 == 0) + ",\n  \"renderDistance\": " + i + ",\n  \"name\": \"option" + i * 31 + "\"\n}\n");
+            files.add(file);
+        }
+        ZstdDictionary dictionary = ZstdDictionary.train(files).orElseThrow();
+
+        byte[] data = "{\n  \"enabled\": true,\n  \"renderDistance\": 12,\n  \"name\": \"option\"\n}\n".getBytes(StandardCharsets.UTF_8);
+        EmbeddedChannel encoder = createChannel(new ZstdEncoder(dictionary));
+        assertTrue(encoder.writeOutbound(Unpooled.wrappedBuffer(data)));
+        ByteBuf frame = encoder.readOutbound();
+        assertEquals(dictionary.getId(), ZstdDecoder.getDictionaryId(frame, 8, frame.readableBytes() - 8));
+
+        EmbeddedChannel decoder = createChannel(new ZstdDecoder(dictionary));
+        assertTrue(decoder.writeInbound(frame));
+        ByteBuf decoded = decoder.readInbound();
+        assertEquals(Unpooled.wrappedBuffer(data), decoded);
+        decoded.release();
+
+        // Same data, same id and hash
+        Path dictionaryFile = tempDir.resolve("copy.dict");
+        dictionary.save(dictionaryFile);
+        ZstdDictionary copy = ZstdDictionary.load(dictionaryFile).orElseThrow();
+        assertTrue(copy.matches(dictionary.getId(), dictionary.getHash()));
+        assertFalse(copy.matches(dictionary.getId(), new byte[ZstdDictionary.HASH_LENGTH]));
+    }
+}
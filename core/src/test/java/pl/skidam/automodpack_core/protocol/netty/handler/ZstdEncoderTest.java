@@ -0,0 +1,85 @@
+package pl.skidam.automodpack_core.protocol.netty.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.protocol.netty.NettyServer;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static pl.skidam.automodpack_core.protocol.NetUtils.FILE_RESPONSE_TYPE;
+
+class ZstdEncoderTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Encodes the first frame of the response with the file
+    private ByteBuf encodeFileHeader(Path file) throws Exception {
+        FileResponseChunkedInput input = new FileResponseChunkedInput((byte) 2, 1, List.of(file), Collections.singletonList(null));
+        Object chunk = input.readChunk(ByteBufAllocator.DEFAULT);
+        input.close();
+
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.attr(NettyServer.USE_COMPRESSION).set(true);
+        channel.pipeline().addLast(new ZstdEncoder());
+        assertTrue(channel.writeOutbound(chunk));
+        return channel.readOutbound();
+    }
+
+    // The frame header of the file response, followed by the data
+    private static ByteBuf expectedFrame(byte[] data) {
+        return Unpooled.buffer()
+                .writeByte(2).writeByte(FILE_RESPONSE_TYPE).writeInt(1)
+                .writeLong(data.length).writeLong(0)
+                .writeBytes(data);
+    }
+
+    @Test
+    void compressedFilesAreSentUnchanged() throws Exception {
+        // Compresses well, but the extension says it's already compressed
+        byte[] jarData = "PK mod class data ".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        Path jar = Files.write(tempDir.resolve("mod.jar"), jarData);
+
+        ByteBuf frame = encodeFileHeader(jar);
+        ByteBuf expected = expectedFrame(jarData);
+        assertEquals(expected.readableBytes(), frame.readInt());
+        assertEquals(ZstdEncoder.UNCOMPRESSED, frame.readInt());
+        assertEquals(expected, frame);
+        frame.release();
+
+        // Random data is found incompressible by its content
+        byte[] randomData = new byte[32 * 1024];
+        new Random(11).nextBytes(randomData);
+        Path archive = Files.write(tempDir.resolve("resources.dat"), randomData);
+
+        ByteBuf randomFrame = encodeFileHeader(archive);
+        ByteBuf expectedRandom = expectedFrame(randomData);
+        assertEquals(expectedRandom.readableBytes(), randomFrame.readInt());
+        assertEquals(ZstdEncoder.UNCOMPRESSED, randomFrame.readInt());
+        assertEquals(expectedRandom, randomFrame);
+        randomFrame.release();
+    }
+
+    @Test
+    void otherFilesAreCompressed() throws Exception {
+        byte[] data = "{\"option\": true}\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        Path config = Files.write(tempDir.resolve("config.json"), data);
+
+        ByteBuf frame = encodeFileHeader(config);
+        int compressedLength = frame.readInt();
+        assertEquals(expectedFrame(data).readableBytes(), frame.readInt());
+        assertEquals(compressedLength, frame.readableBytes());
+        assertTrue(compressedLength < data.length / 10);
+        frame.release();
+    }
+}
@@ -0,0 +1,97 @@
+package pl.skidam.automodpack_core.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.config.Jsons;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileChunkerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(7).nextBytes(data);
+        return data;
+    }
+
+    private List<FileChunker.Chunk> chunk(String name, byte[] data) throws IOException {
+        Path file = tempDir.resolve(name);
+        Files.write(file, data);
+        return FileChunker.chunk(file);
+    }
+
+    @Test
+    void chunksCoverTheFileWithinSizeLimits() throws Exception {
+        byte[] data = randomData(12 * 1024 * 1024 + 12345);
+        List<FileChunker.Chunk> chunks = chunk("random.zip", data);
+        assertTrue(chunks.size() > 1);
+
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            FileChunker.Chunk chunk = chunks.get(i);
+            assertEquals(offset, chunk.offset());
+            assertTrue(chunk.length() <= FileChunker.MAX_CHUNK_SIZE);
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk.length() >= FileChunker.MIN_CHUNK_SIZE);
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(data, (int) chunk.offset(), chunk.length());
+            assertEquals(CustomFileUtils.convertBytesToHex(digest.digest()), chunk.sha1());
+            offset += chunk.length();
+        }
+        assertEquals(data.length, offset);
+
+        // Same content, same chunks
+        assertEquals(chunks, chunk("copy.zip", data));
+    }
+
+    @Test
+    void chunksWithoutBoundariesAreCutAtMaximumSize() throws IOException {
+        // Repeating content keeps the rolling hash the same, a boundary is found either everywhere or nowhere
+        List<FileChunker.Chunk> chunks = chunk("zeros.bin", new byte[5 * 1024 * 1024]);
+        for (FileChunker.Chunk chunk : chunks.subList(0, chunks.size() - 1)) {
+            assertTrue(chunk.length() == FileChunker.MAX_CHUNK_SIZE || chunk.length() == FileChunker.MIN_CHUNK_SIZE);
+        }
+    }
+
+    @Test
+    void insertedDataChangesOnlyNearbyChunks() throws IOException {
+        byte[] data = randomData(12 * 1024 * 1024);
+        byte[] edited = new byte[data.length + 100];
+        int insertAt = 3 * 1024 * 1024;
+        System.arraycopy(data, 0, edited, 0, insertAt);
+        System.arraycopy(data, insertAt, edited, insertAt + 100, data.length - insertAt);
+
+        List<FileChunker.Chunk> chunks = chunk("old.zip", data);
+        List<FileChunker.Chunk> editedChunks = chunk("new.zip", edited);
+
+        Set<String> hashes = new HashSet<>();
+        chunks.forEach(chunk -> hashes.add(chunk.sha1()));
+        long changed = editedChunks.stream().filter(chunk -> !hashes.contains(chunk.sha1())).count();
+        assertTrue(changed >= 1 && changed <= 2, "Changed chunks: " + changed);
+    }
+
+    @Test
+    void manifestRoundTrip() throws IOException {
+        List<FileChunker.Chunk> chunks = chunk("random.zip", randomData(6 * 1024 * 1024));
+        assertEquals(chunks, FileChunker.fromManifest(FileChunker.toManifest(chunks)));
+
+        assertNull(FileChunker.fromManifest(List.of()));
+        assertNull(FileChunker.fromManifest(List.of(new Jsons.ModpackContentFields.ModpackContentChunk("abc", "-1"))));
+        assertNull(FileChunker.fromManifest(List.of(new Jsons.ModpackContentFields.ModpackContentChunk("abc", String.valueOf(FileChunker.MAX_CHUNK_SIZE + 1)))));
+        assertNull(FileChunker.fromManifest(List.of(new Jsons.ModpackContentFields.ModpackContentChunk("abc", "big"))));
+    }
+}
@@ -0,0 +1,109 @@
+package pl.skidam.automodpack_core.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.skidam.automodpack_core.config.ConfigTools;
+import pl.skidam.automodpack_core.config.Jsons;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ModpackContentCodecTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Jsons.ModpackContentFields createContent() {
+        Set<Jsons.ModpackContentFields.ModpackContentItem> items = new HashSet<>();
+        items.add(new Jsons.ModpackContentFields.ModpackContentItem("/mods/sodium.jar", "1048576", "mod", false, "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3", "2875420315"));
+        items.add(new Jsons.ModpackContentFields.ModpackContentItem("/mods/lithium.jar", "524288", "mod", false, "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33", "12"));
+        items.add(new Jsons.ModpackContentFields.ModpackContentItem("/config/sodium-options.json", "312", "config", true, "62cdb7020ff920e5aa642c3d4066950dd1f01f4d", null));
+        items.add(new Jsons.ModpackContentFields.ModpackContentItem("/config/żółw.txt", "0", "other", false, "DA39A3EE5E6B4B0D3255BFEF95601890AFD80709", null));
+        items.add(new Jsons.ModpackContentFields.ModpackContentItem("/datapacks/custom.zip", "007", "datapack", false, "null", "not a number"));
+
+        var chunked = new Jsons.ModpackContentFields.ModpackContentItem("/resourcepacks/faithful.zip", "20971520", "resourcepack", false, "356a192b7913b04c54574d18c28d46e6395428ab", "42");
+        chunked.chunks = List.of(new Jsons.ModpackContentFields.ModpackContentChunk("da4b9237bacccdf19c0760cab7aec4a8359010b0", "10485760"),
+                new Jsons.ModpackContentFields.ModpackContentChunk("77de68daecd823babbb58edb1c8e14d7106e83bb", "10485760"));
+        items.add(chunked);
+
+        var edited = new Jsons.ModpackContentFields.ModpackContentItem("/resourcepacks/edited.zip", "10", "resourcepack", false, "1b6453892473a467d07372d45eb05abc2031647a", null);
+        edited.chunks = List.of(new Jsons.ModpackContentFields.ModpackContentChunk("abc", "-1"));
+        items.add(edited);
+
+        Jsons.ModpackContentFields content = new Jsons.ModpackContentFields(items);
+        content.modpackName = "TestPack";
+        content.automodpackVersion = "4.0.0";
+        content.loader = "fabric";
+        content.loaderVersion = "0.16.0";
+        content.mcVersion = "1.21.1";
+        content.contentHash = ModpackContentTools.computeContentHash(content);
+        return content;
+    }
+
+    @Test
+    void decodedContentEqualsEncoded() throws IOException {
+        Jsons.ModpackContentFields content = createContent();
+        byte[] encoded = ModpackContentCodec.encode(content);
+        Jsons.ModpackContentFields decoded = ModpackContentCodec.decode(encoded);
+
+        assertEquals(content.list.size(), decoded.list.size());
+        assertEquals(content.modpackName, decoded.modpackName);
+        assertEquals(content.mcVersion, decoded.mcVersion);
+        assertEquals(content.contentHash, decoded.contentHash);
+        assertEquals(content.contentHash, ModpackContentTools.computeContentHash(decoded));
+        for (var item : content.list) {
+            var decodedItem = decoded.list.stream().filter(i -> i.file.equals(item.file)).findFirst().orElseThrow();
+            assertEquals(ConfigTools.GSON.toJson(item), ConfigTools.GSON.toJson(decodedItem));
+        }
+
+        assertTrue(ModpackContentCodec.isEncoded(encoded));
+        assertTrue(encoded.length < ConfigTools.GSON.toJson(content).length() / 3);
+    }
+
+    @Test
+    void invalidDataIsRejected() {
+        byte[] encoded = ModpackContentCodec.encode(createContent());
+        assertThrows(IOException.class, () -> ModpackContentCodec.decode(Arrays.copyOf(encoded, encoded.length / 2)));
+        assertThrows(IOException.class, () -> ModpackContentCodec.decode("{\"list\":[]}".getBytes()));
+
+        byte[] otherVersion = encoded.clone();
+        otherVersion[4] = ModpackContentCodec.VERSION + 1;
+        assertThrows(IOException.class, () -> ModpackContentCodec.decode(otherVersion));
+    }
+
+    @Test
+    void cacheIsValidUntilTheContentFileChanges() throws IOException {
+        Path contentFile = tempDir.resolve("automodpack-content.json");
+        Jsons.ModpackContentFields content = createContent();
+        Files.writeString(contentFile, ConfigTools.GSON.toJson(content));
+
+        // Coarse timestamps, the cache is written within the same second as the content file
+        FileTime modified = FileTime.fromMillis(1700000000000L);
+        Files.setLastModifiedTime(contentFile, modified);
+        ModpackContentCodec.writeCache(contentFile, content);
+        Files.setLastModifiedTime(ModpackContentCodec.getCachePath(contentFile), modified);
+        assertEquals(ModpackContentCodec.getCachePath(contentFile), ModpackContentCodec.getValidCachePath(contentFile).orElseThrow());
+        assertEquals(content.contentHash, ModpackContentCodec.decode(Files.readAllBytes(ModpackContentCodec.getCachePath(contentFile))).contentHash);
+
+        // Edited by hand, with the same timestamp and with an older one
+        Files.writeString(contentFile, ConfigTools.GSON.toJson(content) + "\n");
+        Files.setLastModifiedTime(contentFile, modified);
+        assertTrue(ModpackContentCodec.getValidCachePath(contentFile).isEmpty());
+
+        Files.writeString(contentFile, ConfigTools.GSON.toJson(content));
+        Files.setLastModifiedTime(contentFile, FileTime.fromMillis(1600000000000L));
+        assertTrue(ModpackContentCodec.getValidCachePath(contentFile).isEmpty());
+
+        // Encoded content without a content file
+        Files.write(ModpackContentCodec.getCachePath(contentFile), ModpackContentCodec.encode(content));
+        assertTrue(ModpackContentCodec.getValidCachePath(contentFile).isEmpty());
+    }
+}
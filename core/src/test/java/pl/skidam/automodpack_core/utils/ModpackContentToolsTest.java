@@ -0,0 +1,99 @@
+package pl.skidam.automodpack_core.utils;
+
+import org.junit.jupiter.api.Test;
+import pl.skidam.automodpack_core.config.Jsons;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ModpackContentToolsTest {
+
+    private static Jsons.ModpackContentFields.ModpackContentItem item(String file, String size, String sha1) {
+        return new Jsons.ModpackContentFields.ModpackContentItem(file, size, "mod", false, sha1, "1");
+    }
+
+    private static Jsons.ModpackContentFields createContent(Jsons.ModpackContentFields.ModpackContentItem... items) {
+        Jsons.ModpackContentFields content = new Jsons.ModpackContentFields(new LinkedHashSet<>(List.of(items)));
+        content.modpackName = "TestPack";
+        content.mcVersion = "1.21.1";
+        return content;
+    }
+
+    @Test
+    void contentHashIgnoresOrderAndDerivedFields() {
+        var sodium = item("/mods/sodium.jar", "1048576", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3");
+        var lithium = item("/mods/lithium.jar", "524288", "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        String hash = ModpackContentTools.computeContentHash(createContent(sodium, lithium));
+
+        Jsons.ModpackContentFields reordered = createContent(lithium, sodium);
+        reordered.contentHash = "stale";
+        assertEquals(hash, ModpackContentTools.computeContentHash(reordered));
+
+        var rehashed = item("/mods/sodium.jar", "1048576", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3");
+        rehashed.murmur = "2";
+        rehashed.chunks = List.of(new Jsons.ModpackContentFields.ModpackContentChunk("da4b9237bacccdf19c0760cab7aec4a8359010b0", "1048576"));
+        assertEquals(hash, ModpackContentTools.computeContentHash(createContent(rehashed, lithium)));
+    }
+
+    @Test
+    void contentHashChangesWithContent() {
+        var sodium = item("/mods/sodium.jar", "1048576", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3");
+        String hash = ModpackContentTools.computeContentHash(createContent(sodium));
+
+        assertNotEquals(hash, ModpackContentTools.computeContentHash(createContent(item("/mods/sodium.jar", "1048576", "62cdb7020ff920e5aa642c3d4066950dd1f01f4d"))));
+        assertNotEquals(hash, ModpackContentTools.computeContentHash(createContent(item("/mods/sodium.jar", "1048577", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3"))));
+        assertNotEquals(hash, ModpackContentTools.computeContentHash(createContent(item("/mods/sodium-0.6.jar", "1048576", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3"))));
+
+        var editable = item("/mods/sodium.jar", "1048576", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3");
+        editable.editable = true;
+        assertNotEquals(hash, ModpackContentTools.computeContentHash(createContent(editable)));
+
+        Jsons.ModpackContentFields otherVersion = createContent(sodium);
+        otherVersion.mcVersion = "1.21.4";
+        assertNotEquals(hash, ModpackContentTools.computeContentHash(otherVersion));
+    }
+
+    @Test
+    void appliedDiffRecreatesTheContent() {
+        var sodium = item("/mods/sodium.jar", "1048576", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3");
+        var lithium = item("/mods/lithium.jar", "524288", "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        var iris = item("/mods/iris.jar", "2097152", "62cdb7020ff920e5aa642c3d4066950dd1f01f4d");
+        var updatedSodium = item("/mods/sodium.jar", "1048600", "356a192b7913b04c54574d18c28d46e6395428ab");
+        var config = item("/config/sodium-options.json", "312", "da4b9237bacccdf19c0760cab7aec4a8359010b0");
+        Jsons.ModpackContentFields baseContent = createContent(sodium, lithium, iris);
+        Jsons.ModpackContentFields content = createContent(updatedSodium, lithium, config);
+        content.automodpackVersion = "4.0.1";
+
+        Jsons.ModpackContentDiffFields diff = ModpackContentTools.computeContentDiff(baseContent, content);
+        assertEquals(1, diff.added.size());
+        assertEquals(1, diff.changed.size());
+        assertEquals(1, diff.removed.size());
+        assertTrue(diff.removed.contains("/mods/iris.jar"));
+
+        Jsons.ModpackContentFields applied = ModpackContentTools.applyContentDiff(baseContent, diff).orElseThrow();
+        assertEquals(ModpackContentTools.computeContentHash(content), applied.contentHash);
+        assertEquals("4.0.1", applied.automodpackVersion);
+        assertEquals(3, applied.list.size());
+        assertTrue(applied.list.stream().anyMatch(item -> item.file.equals("/mods/sodium.jar") && item.size.equals("1048600")));
+
+        // Nothing changed
+        Jsons.ModpackContentDiffFields emptyDiff = ModpackContentTools.computeContentDiff(content, content);
+        assertTrue(emptyDiff.added.isEmpty() && emptyDiff.changed.isEmpty() && emptyDiff.removed.isEmpty());
+        assertEquals(applied.contentHash, ModpackContentTools.applyContentDiff(content, emptyDiff).orElseThrow().contentHash);
+    }
+
+    @Test
+    void diffIsNotAppliedToOtherContent() {
+        var sodium = item("/mods/sodium.jar", "1048576", "a94a8fe5ccb19ba61c4c0873d391e987982fbbd3");
+        var lithium = item("/mods/lithium.jar", "524288", "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33");
+        Jsons.ModpackContentDiffFields diff = ModpackContentTools.computeContentDiff(createContent(sodium), createContent(sodium, lithium));
+
+        assertTrue(ModpackContentTools.applyContentDiff(createContent(lithium), diff).isEmpty());
+
+        // Result doesn't match the content the diff was made for
+        diff.contentHash = "0000000000000000000000000000000000000000";
+        assertTrue(ModpackContentTools.applyContentDiff(createContent(sodium), diff).isEmpty());
+    }
+}
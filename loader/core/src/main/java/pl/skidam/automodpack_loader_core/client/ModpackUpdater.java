@@ -19,7 +19,6 @@ import java.util.*;
 import java.util.stream.Stream;
 
 import static pl.skidam.automodpack_core.GlobalVariables.*;
-import static pl.skidam.automodpack_core.config.ConfigTools.GSON;
 
 // TODO: clean up this mess
 public class ModpackUpdater {
@@ -29,7 +28,7 @@ public class ModpackUpdater {
     public long totalBytesToDownload = 0;
     public boolean fullDownload = false;
     private Jsons.ModpackContentFields serverModpackContent;
-    private String modpackContentJson;
+    private Jsons.ModpackContentFields modpackContentToSave; // The list of the server modpack content gets narrowed down to the files to download
     private WorkaroundUtil workaroundUtil;
     public Map<Jsons.ModpackContentFields.ModpackContentItem, List<String>> failedDownloads = new HashMap<>();
     private final Set<String> newDownloadedFiles = new HashSet<>(); // Only files which did not exist before. Because some files may have the same name/path and be updated.
@@ -64,7 +63,13 @@ public class ModpackUpdater {
             }
 
             // Prepare for modpack update
-            modpackContentJson = GSON.toJson(serverModpackContent);
+            modpackContentToSave = new Jsons.ModpackContentFields(new HashSet<>(serverModpackContent.list));
+            modpackContentToSave.modpackName = serverModpackContent.modpackName;
+            modpackContentToSave.automodpackVersion = serverModpackContent.automodpackVersion;
+            modpackContentToSave.loader = serverModpackContent.loader;
+            modpackContentToSave.loaderVersion = serverModpackContent.loaderVersion;
+            modpackContentToSave.mcVersion = serverModpackContent.mcVersion;
+            modpackContentToSave.contentHash = serverModpackContent.contentHash;
 
             // Create directories if they don't exist
             if (!Files.exists(modpackDir)) {
@@ -79,7 +84,7 @@ public class ModpackUpdater {
                 // Check if an update is needed
                 if (!ModpackUtils.isUpdate(serverModpackContent, modpackDir)) {
                     LOGGER.info("Modpack is up to date");
-                    Files.writeString(modpackContentFile, modpackContentJson);
+                    ConfigTools.saveModpackContent(modpackContentFile, modpackContentToSave);
                     CheckAndLoadModpack();
                     return;
                 }
@@ -237,7 +242,7 @@ public class ModpackUpdater {
 
             downloadManager = new DownloadManager(totalBytesToDownload);
             new ScreenManager().download(downloadManager, getModpackName());
-            DownloadClient downloadClient = new DownloadClient(modpackAddress, modpackSecret, Math.min(wholeQueue, 5));
+            DownloadClient downloadClient = new DownloadClient(modpackAddress, modpackSecret, Math.min(wholeQueue, 2), Math.min(wholeQueue, 5));
             downloadManager.attachDownloadClient(downloadClient);
 
             if (wholeQueue > 0) {
@@ -273,7 +278,7 @@ public class ModpackUpdater {
                     };
 
 
-                    downloadManager.download(downloadFile, serverSHA1, urls, successCallback, failureCallback);
+                    downloadManager.download(downloadFile, serverSHA1, Long.parseLong(item.size), FileChunker.fromManifest(item.chunks), urls, successCallback, failureCallback);
                 }
 
                 downloadManager.joinAll();
@@ -309,7 +314,7 @@ public class ModpackUpdater {
                 // TODO set client to a waiting for the server to respond screen
                 LOGGER.warn("Trying to refresh the modpack content");
                 LOGGER.info("Sending hashes to refresh: {}", hashesToRefresh.values());
-                var refreshedContentOptional = ModpackUtils.refreshServerModpackContent(modpackAddress, modpackSecret, hashesArray);
+                var refreshedContentOptional = ModpackUtils.refreshServerModpackContent(modpackAddress, modpackSecret, hashesArray, modpackContentToSave);
                 if (refreshedContentOptional.isEmpty()) {
                     LOGGER.error("Failed to refresh the modpack content");
                 } else {
@@ -319,14 +324,14 @@ public class ModpackUpdater {
                     // or fail and then show the error
 
                     var refreshedContent = refreshedContentOptional.get();
-                    this.modpackContentJson = GSON.toJson(refreshedContent);
+                    this.modpackContentToSave = refreshedContent;
 
                     // filter list to only the failed downloads
                     var refreshedFilteredList = refreshedContent.list.stream().filter(item -> hashesToRefresh.containsKey(item.file)).toList();
 
                     downloadManager = new DownloadManager(totalBytesToDownload);
                     new ScreenManager().download(downloadManager, getModpackName());
-                    downloadClient = new DownloadClient(modpackAddress, modpackSecret, Math.min(refreshedFilteredList.size(), 5));
+                    downloadClient = new DownloadClient(modpackAddress, modpackSecret, Math.min(refreshedFilteredList.size(), 2), Math.min(refreshedFilteredList.size(), 5));
                     downloadManager.attachDownloadClient(downloadClient);
 
                     // TODO try to fetch again from modrinth and curseforge
@@ -349,7 +354,7 @@ public class ModpackUpdater {
                             changelogs.changesAddedList.put(downloadFile.getFileName().toString(), null);
                         };
 
-                        downloadManager.download(downloadFile, serverSHA1, List.of(), successCallback, failureCallback);
+                        downloadManager.download(downloadFile, serverSHA1, Long.parseLong(item.size), FileChunker.fromManifest(item.chunks), List.of(), successCallback, failureCallback);
                     }
 
                     downloadManager.joinAll();
@@ -368,7 +373,7 @@ public class ModpackUpdater {
             LOGGER.info("Done, saving {}", modpackContentFile);
 
             // Downloads completed
-            Files.writeString(modpackContentFile, modpackContentJson);
+            ConfigTools.saveModpackContent(modpackContentFile, modpackContentToSave);
 
             Path cwd = Path.of(System.getProperty("user.dir"));
             CustomFileUtils.deleteDummyFiles(cwd, serverModpackContent.list);
@@ -523,7 +528,7 @@ public class ModpackUpdater {
         boolean needsRestart = false;
 
         for (Path path : pathList) {
-            if (Files.isDirectory(path) || path.equals(modpackContentFile) || path.equals(workaroundUtil.getWorkaroundFile())) {
+            if (Files.isDirectory(path) || path.equals(modpackContentFile) || path.equals(ModpackContentCodec.getCachePath(modpackContentFile)) || path.equals(workaroundUtil.getWorkaroundFile())) {
                 continue;
             }
 
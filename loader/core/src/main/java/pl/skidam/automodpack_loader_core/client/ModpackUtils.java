@@ -11,6 +11,7 @@ import pl.skidam.automodpack_core.utils.ModpackContentTools;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.Future;
@@ -78,6 +79,46 @@ public class ModpackUtils {
         }
     }
 
+    /**
+     * Returns the modpack content stored with the modpack if it has the given content hash and all of its files are in place,
+     * then the modpack is up to date without fetching the content from the server and hashing all the files.
+     * Files are checked just by their sizes, non-editable files which got changed in place are fixed on the next update.
+     */
+    public static Optional<Jsons.ModpackContentFields> getUnchangedModpackContent(String contentHash, Path modpackDir) {
+        if (contentHash == null || contentHash.isBlank()) {
+            return Optional.empty();
+        }
+
+        var optionalClientModpackContentFile = ModpackContentTools.getModpackContentFile(modpackDir);
+        if (optionalClientModpackContentFile.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Jsons.ModpackContentFields clientModpackContent = ConfigTools.loadModpackContent(optionalClientModpackContentFile.get());
+        if (clientModpackContent == null || clientModpackContent.list == null || !contentHash.equals(clientModpackContent.contentHash)) {
+            return Optional.empty();
+        }
+
+        try {
+            for (Jsons.ModpackContentFields.ModpackContentItem item : clientModpackContent.list) {
+                Path path = CustomFileUtils.getPath(modpackDir, item.file);
+                if (!Files.exists(path)) {
+                    return Optional.empty();
+                }
+
+                if (!item.editable && Files.size(path) != Long.parseLong(item.size)) {
+                    LOGGER.info("File does not match size {} - {}", path, item.file);
+                    return Optional.empty();
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return Optional.empty();
+        }
+
+        LOGGER.info("{} is up to date! Content hash {}", modpackDir, contentHash);
+        return Optional.of(clientModpackContent);
+    }
+
     public static boolean correctFilesLocations(Path modpackDir, Jsons.ModpackContentFields serverModpackContent, Set<String> filesNotToCopy) throws IOException {
         if (serverModpackContent == null || serverModpackContent.list == null) {
             LOGGER.error("Server modpack content list is null");
@@ -394,6 +435,73 @@ public class ModpackUtils {
                 "Re-fetched");
     }
 
+    /**
+     * Requests the modpack content as the changes from the content stored with the modpack, the server sends the whole content
+     * if it doesn't have that version anymore. Servers which don't send diffs are asked for the whole content.
+     */
+    public static Optional<Jsons.ModpackContentFields> requestServerModpackContent(InetSocketAddress address, Secrets.Secret secret, Path modpackDir) {
+        Jsons.ModpackContentFields baseContent = ModpackContentTools.getModpackContentFile(modpackDir).map(ConfigTools::loadModpackContent).orElse(null);
+        return fetchModpackContentDiff(address, secret, baseContent, new byte[0][])
+                .or(() -> requestServerModpackContent(address, secret));
+    }
+
+    /**
+     * Refreshes the files on the server and requests the modpack content as the changes from the base content, the same way as
+     * {@link #requestServerModpackContent(InetSocketAddress, Secrets.Secret, Path)}.
+     */
+    public static Optional<Jsons.ModpackContentFields> refreshServerModpackContent(InetSocketAddress address, Secrets.Secret secret, byte[][] fileHashes, Jsons.ModpackContentFields baseContent) {
+        return fetchModpackContentDiff(address, secret, baseContent, fileHashes)
+                .or(() -> refreshServerModpackContent(address, secret, fileHashes));
+    }
+
+    private static Optional<Jsons.ModpackContentFields> fetchModpackContentDiff(InetSocketAddress address, Secrets.Secret secret, Jsons.ModpackContentFields baseContent, byte[][] fileHashes) {
+        if (secret == null)
+            return Optional.empty();
+        if (address == null)
+            throw new IllegalArgumentException("Address is null");
+
+        byte[] baseContentHash = baseContent == null || baseContent.list == null ? new byte[0] : ModpackContentTools.computeContentHash(baseContent).getBytes(StandardCharsets.UTF_8);
+        Path modpackContentDiffTempFile = modpackContentTempFile.resolveSibling(modpackContentTempFile.getFileName() + ".diff");
+        DownloadClient client = null;
+        try {
+            client = new DownloadClient(address, secret, 1);
+            boolean isDiff = client.requestContentDiff(baseContentHash, fileHashes, modpackContentTempFile, modpackContentDiffTempFile).get();
+
+            Optional<Jsons.ModpackContentFields> content;
+            if (isDiff) {
+                var diff = ConfigTools.load(Files.readString(modpackContentDiffTempFile), Jsons.ModpackContentDiffFields.class);
+                content = diff == null || baseContentHash.length == 0 ? Optional.empty() : ModpackContentTools.applyContentDiff(baseContent, diff);
+                if (content.isEmpty()) {
+                    LOGGER.warn("Received modpack content diff which doesn't apply to the stored content");
+                    return Optional.empty();
+                }
+
+                LOGGER.info("Received modpack content diff, {} added, {} changed, {} removed files", diff.added.size(), diff.changed.size(), diff.removed.size());
+            } else {
+                content = Optional.ofNullable(ConfigTools.loadModpackContent(modpackContentTempFile));
+            }
+
+            if (content.isPresent() && potentiallyMalicious(content.get())) {
+                return Optional.empty();
+            }
+
+            return content;
+        } catch (Exception e) { // E.g. server which doesn't know the request
+            LOGGER.warn("Couldn't get modpack content diff, requesting the whole content - {}", e.getMessage());
+        } finally {
+            if (client != null)
+                client.close();
+            try {
+                Files.deleteIfExists(modpackContentTempFile);
+                Files.deleteIfExists(modpackContentDiffTempFile);
+            } catch (IOException e) {
+                LOGGER.debug("Failed to delete temporary modpack content files - {}", e.getMessage());
+            }
+        }
+
+        return Optional.empty();
+    }
+
     private static Optional<Jsons.ModpackContentFields> fetchModpackContent(InetSocketAddress address, Secrets.Secret secret, Function<DownloadClient, Future<Path>> operation, String fetchType) {
         if (secret == null)
             return Optional.empty();
@@ -1,15 +1,21 @@
 package pl.skidam.automodpack_loader_core.utils;
 
+import pl.skidam.automodpack_core.callbacks.IntCallback;
 import pl.skidam.automodpack_core.utils.CustomFileUtils;
 import pl.skidam.automodpack_core.utils.CustomThreadFactoryBuilder;
+import pl.skidam.automodpack_core.utils.FileChunker;
 import pl.skidam.automodpack_core.utils.FileInspection;
 import pl.skidam.automodpack_core.protocol.DownloadClient;
+import pl.skidam.automodpack_core.protocol.netty.DeltaCache;
 
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.zip.GZIPInputStream;
@@ -20,8 +26,11 @@ public class DownloadManager {
     private static final int MAX_DOWNLOADS_IN_PROGRESS = 5;
     private static final int MAX_DOWNLOAD_ATTEMPTS = 2; // its actually 3, but we start from 0
     private static final int BUFFER_SIZE = 128 * 1024;
-    private final ExecutorService DOWNLOAD_EXECUTOR = Executors.newFixedThreadPool(MAX_DOWNLOADS_IN_PROGRESS, new CustomThreadFactoryBuilder().setNameFormat("AutoModpackDownload-%d").build());
+    private static final int MAX_BATCH_FILES = 32;
+    private static final long MAX_BATCH_FILE_SIZE = 64 * 1024; // Only small files are batched, big ones are better spread across connections
+    private final ExecutorService DOWNLOAD_EXECUTOR = Executors.newCachedThreadPool(new CustomThreadFactoryBuilder().setNameFormat("AutoModpackDownload-%d").build());
     private DownloadClient downloadClient = null;
+    private int maxDownloadsInProgress = MAX_DOWNLOADS_IN_PROGRESS;
     private boolean cancelled = false;
     private final Map<FileInspection.HashPathPair, QueuedDownload> queuedDownloads = new ConcurrentHashMap<>();
     public final Map<FileInspection.HashPathPair, DownloadData> downloadsInProgress = new ConcurrentHashMap<>();
@@ -29,6 +38,8 @@ public class DownloadManager {
     private long bytesToDownload = 0;
     private int addedToQueue = 0;
     private int downloaded = 0;
+    private int tasksInProgress = 0;
+    private int threadTasksInProgress = 0; // Downloads which occupy a download thread, always at most MAX_DOWNLOADS_IN_PROGRESS
     private final Semaphore semaphore = new Semaphore(0);
     private final SpeedMeter speedMeter = new SpeedMeter(this);
     public DownloadManager() { }
@@ -39,12 +50,28 @@ public class DownloadManager {
 
     public void attachDownloadClient(DownloadClient downloadClient) {
          this.downloadClient = downloadClient;
+         // Host connections pipeline requests, keep enough host downloads in progress to fill them
+         this.maxDownloadsInProgress = Math.max(MAX_DOWNLOADS_IN_PROGRESS, downloadClient.getMaxRequestsInFlight());
     }
 
     public void download(Path file, String sha1, List<String> urls, Runnable successCallback, Runnable failureCallback) {
+        download(file, sha1, -1, urls, successCallback, failureCallback);
+    }
+
+    /**
+     * @param size expected size of the file, -1 if unknown. Small files downloaded from the host are requested in batches.
+     */
+    public void download(Path file, String sha1, long size, List<String> urls, Runnable successCallback, Runnable failureCallback) {
+        download(file, sha1, size, null, urls, successCallback, failureCallback);
+    }
+
+    /**
+     * @param chunks content-defined chunks of the file, null if it isn't chunked. Only chunks missing from the previous version of the file are downloaded from the host.
+     */
+    public void download(Path file, String sha1, long size, List<FileChunker.Chunk> chunks, List<String> urls, Runnable successCallback, Runnable failureCallback) {
         FileInspection.HashPathPair hashPathPair = new FileInspection.HashPathPair(sha1, file);
         if (queuedDownloads.containsKey(hashPathPair)) return;
-        queuedDownloads.put(hashPathPair, new QueuedDownload(file, urls, 0, successCallback, failureCallback));
+        queuedDownloads.put(hashPathPair, new QueuedDownload(file, urls, 0, size, chunks, successCallback, failureCallback));
         addedToQueue++;
         downloadNext();
     }
@@ -52,19 +79,13 @@ public class DownloadManager {
     private void downloadTask(FileInspection.HashPathPair hashPathPair, QueuedDownload queuedDownload) throws Exception {
         LOGGER.info("Downloading {} - {}", queuedDownload.file.getFileName(), queuedDownload.urls);
 
-        int numberOfIndexes = queuedDownload.urls.size();
-        int urlIndex = Math.min(queuedDownload.attempts / MAX_DOWNLOAD_ATTEMPTS, numberOfIndexes);
-        String url = "host";
-        if (queuedDownload.urls.size() > urlIndex) { // avoids IndexOutOfBoundsException
-            url = queuedDownload.urls.get(urlIndex);
-        }
+        String url = getDownloadUrl(queuedDownload);
         boolean interrupted = false;
+        String hash = null;
 
         try {
-            if (url != null && !Objects.equals(url, "host") && queuedDownload.attempts < MAX_DOWNLOAD_ATTEMPTS * numberOfIndexes) {
-                httpDownloadFile(url, hashPathPair, queuedDownload);
-            } else if (downloadClient != null) {
-                hostDownloadFile(hashPathPair, queuedDownload);
+            if (!isHostDownload(queuedDownload)) {
+                hash = httpDownloadFile(url, hashPathPair, queuedDownload);
             } else {
                 LOGGER.error("No download client attached, can't download file - {}", queuedDownload.file.getFileName());
             }
@@ -75,66 +96,178 @@ public class DownloadManager {
         } catch (Exception e) {
             LOGGER.warn("Error while downloading file - {} - {} - {}", queuedDownload.file, e, e.fillInStackTrace());
         } finally {
-            synchronized (downloadsInProgress) {
-                downloadsInProgress.remove(hashPathPair);
+            synchronized (this) {
+                threadTasksInProgress--;
             }
+            finishDownload(hashPathPair, queuedDownload, url, hash, interrupted);
+            taskFinished(interrupted);
+        }
+    }
 
-            boolean failed = true;
+    // Host downloads don't occupy a download thread while transferring, connections receive the files on their event loop
+    private CompletableFuture<Void> hostDownloadTask(FileInspection.HashPathPair hashPathPair, QueuedDownload queuedDownload) {
+        LOGGER.info("Downloading {} - {}", queuedDownload.file.getFileName(), queuedDownload.urls);
 
-            if (Files.exists(queuedDownload.file)) {
-                String hash = CustomFileUtils.getHash(queuedDownload.file);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return hostDownloadFile(hashPathPair, queuedDownload);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, DOWNLOAD_EXECUTOR).thenCompose(transfer -> transfer).handleAsync((hash, exception) -> {
+            if (exception != null) {
+                LOGGER.warn("Error while downloading file - {} - {}", queuedDownload.file, unwrap(exception));
+            }
 
-                if (Objects.equals(hash, hashPathPair.hash())) {
-                    // Runs on success
-                    failed = false;
-                    downloaded++;
-                    LOGGER.info("Successfully downloaded {} from {}", queuedDownload.file.getFileName(), url);
-                    queuedDownload.successCallback.run();
-                    semaphore.release();
-                }
+            finishDownload(hashPathPair, queuedDownload, "host", hash, cancelled);
+            taskFinished(cancelled);
+            return null;
+        }, DOWNLOAD_EXECUTOR);
+    }
+
+    private CompletableFuture<Void> batchDownloadTask(Map<FileInspection.HashPathPair, QueuedDownload> batch) {
+        LOGGER.info("Downloading batch of {} files from host", batch.size());
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return hostDownloadFiles(batch);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, DOWNLOAD_EXECUTOR).thenCompose(transfer -> transfer).handleAsync((result, exception) -> {
+            if (exception != null) {
+                LOGGER.warn("Error while downloading batch of {} files - {}", batch.size(), unwrap(exception));
             }
 
-            if (failed) {
-                bytesToDownload += queuedDownload.file.toFile().length(); // Add size of the whole file again because we will try to download it again
-                CustomFileUtils.forceDelete(queuedDownload.file);
-
-                if (!interrupted) {
-                    if (queuedDownload.attempts < (numberOfIndexes + 1) * MAX_DOWNLOAD_ATTEMPTS) {
-                        LOGGER.warn("Download of {} failed, retrying!", queuedDownload.file.getFileName());
-                        queuedDownload.attempts++;
-                        synchronized (queuedDownloads) {
-                            queuedDownloads.put(hashPathPair, queuedDownload);
-                        }
-                    } else {
-                        LOGGER.error("Download of {} failed!", queuedDownload.file.getFileName());
-                        queuedDownload.failureCallback.run();
-                        semaphore.release();
-                    }
-                }
+            for (var entry : batch.entrySet()) {
+                // Successful batch means every file got verified while it was received, otherwise some of them may be incomplete
+                String hash = exception == null ? entry.getKey().hash() : null;
+                finishDownload(entry.getKey(), entry.getValue(), "host", hash, cancelled);
             }
+            taskFinished(cancelled);
+            return null;
+        }, DOWNLOAD_EXECUTOR);
+    }
+
+    private static Throwable unwrap(Throwable exception) {
+        if (exception instanceof CompletionException && exception.getCause() != null) {
+            return exception.getCause();
+        }
+        return exception;
+    }
+
+    /**
+     * @param hash hash of the downloaded file computed while it was downloaded, null if it has to be computed from the file
+     */
+    private void finishDownload(FileInspection.HashPathPair hashPathPair, QueuedDownload queuedDownload, String url, String hash, boolean interrupted) {
+        synchronized (downloadsInProgress) {
+            downloadsInProgress.remove(hashPathPair);
+        }
+
+        boolean failed = true;
+
+        if (Files.exists(queuedDownload.file)) {
+            if (hash == null) {
+                hash = CustomFileUtils.getHash(queuedDownload.file);
+            }
+
+            if (Objects.equals(hash, hashPathPair.hash())) {
+                // Runs on success
+                failed = false;
+                downloaded++;
+                LOGGER.info("Successfully downloaded {} from {}", queuedDownload.file.getFileName(), url);
+                queuedDownload.successCallback.run();
+                semaphore.release();
+            }
+        }
+
+        if (failed) {
+            bytesToDownload += queuedDownload.file.toFile().length(); // Add size of the whole file again because we will try to download it again
+            CustomFileUtils.forceDelete(queuedDownload.file);
 
             if (!interrupted) {
-                downloadNext();
+                int numberOfIndexes = queuedDownload.urls.size();
+                if (queuedDownload.attempts < (numberOfIndexes + 1) * MAX_DOWNLOAD_ATTEMPTS) {
+                    LOGGER.warn("Download of {} failed, retrying!", queuedDownload.file.getFileName());
+                    queuedDownload.attempts++;
+                    synchronized (queuedDownloads) {
+                        queuedDownloads.put(hashPathPair, queuedDownload);
+                    }
+                } else {
+                    LOGGER.error("Download of {} failed!", queuedDownload.file.getFileName());
+                    queuedDownload.failureCallback.run();
+                    semaphore.release();
+                }
             }
         }
     }
 
+    private void taskFinished(boolean interrupted) {
+        synchronized (this) {
+            tasksInProgress--;
+        }
+
+        if (!interrupted) {
+            downloadNext();
+        }
+    }
+
+    private String getDownloadUrl(QueuedDownload queuedDownload) {
+        int numberOfIndexes = queuedDownload.urls.size();
+        int urlIndex = Math.min(queuedDownload.attempts / MAX_DOWNLOAD_ATTEMPTS, numberOfIndexes);
+        String url = "host";
+        if (queuedDownload.urls.size() > urlIndex) { // avoids IndexOutOfBoundsException
+            url = queuedDownload.urls.get(urlIndex);
+        }
+        return url;
+    }
+
+    private boolean isHostDownload(QueuedDownload queuedDownload) {
+        String url = getDownloadUrl(queuedDownload);
+        return url == null || Objects.equals(url, "host") || queuedDownload.attempts >= MAX_DOWNLOAD_ATTEMPTS * queuedDownload.urls.size();
+    }
+
+    private boolean isBatchable(QueuedDownload queuedDownload) {
+        return downloadClient != null && queuedDownload.size >= 0 && queuedDownload.size <= MAX_BATCH_FILE_SIZE && isHostDownload(queuedDownload);
+    }
+
+    private boolean isPipelinedHostDownload(QueuedDownload queuedDownload) {
+        return downloadClient != null && isHostDownload(queuedDownload);
+    }
+
     private synchronized void downloadNext() {
-        if (downloadsInProgress.size() < MAX_DOWNLOADS_IN_PROGRESS && !queuedDownloads.isEmpty()) {
-            FileInspection.HashPathPair hashAndPath = queuedDownloads.keySet().stream().findFirst().get();
-            QueuedDownload queuedDownload = queuedDownloads.remove(hashAndPath);
+        if (tasksInProgress < maxDownloadsInProgress && !queuedDownloads.isEmpty()) {
+            // Other downloads take a thread each, only host downloads pipelined over the connections go above the default limit
+            boolean threadAvailable = threadTasksInProgress < MAX_DOWNLOADS_IN_PROGRESS;
+            FileInspection.HashPathPair hashAndPath = queuedDownloads.entrySet().stream()
+                    .filter(entry -> threadAvailable || isPipelinedHostDownload(entry.getValue()))
+                    .map(Map.Entry::getKey)
+                    .findFirst().orElse(null);
+            QueuedDownload queuedDownload = hashAndPath == null ? null : queuedDownloads.remove(hashAndPath);
 
             if (queuedDownload == null) {
                 return;
             }
 
-            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                try {
-                    downloadTask(hashAndPath, queuedDownload);
-                } catch (Exception e) {
-                    LOGGER.error("Error while downloading file - {}", queuedDownload.file.getFileName(), e);
-                }
-            }, DOWNLOAD_EXECUTOR);
+            if (isBatchable(queuedDownload)) {
+                downloadNextBatch(hashAndPath, queuedDownload);
+                return;
+            }
+
+            tasksInProgress++;
+            CompletableFuture<Void> future;
+            if (isPipelinedHostDownload(queuedDownload)) {
+                future = hostDownloadTask(hashAndPath, queuedDownload);
+            } else {
+                threadTasksInProgress++;
+                future = CompletableFuture.runAsync(() -> {
+                    try {
+                        downloadTask(hashAndPath, queuedDownload);
+                    } catch (Exception e) {
+                        LOGGER.error("Error while downloading file - {}", queuedDownload.file.getFileName(), e);
+                    }
+                }, DOWNLOAD_EXECUTOR);
+            }
 
             synchronized (downloadsInProgress) {
                 downloadsInProgress.put(hashAndPath, new DownloadData(future, queuedDownload.file));
@@ -142,33 +275,181 @@ public class DownloadManager {
         }
     }
 
-    private void hostDownloadFile(FileInspection.HashPathPair hashPathPair, QueuedDownload queuedDownload) throws IOException, InterruptedException {
+    // Takes other small files from the queue which go to the host too, and requests them all at once
+    private void downloadNextBatch(FileInspection.HashPathPair firstHashAndPath, QueuedDownload firstDownload) {
+        Map<FileInspection.HashPathPair, QueuedDownload> batch = new LinkedHashMap<>();
+        batch.put(firstHashAndPath, firstDownload);
+
+        synchronized (queuedDownloads) {
+            var iterator = queuedDownloads.entrySet().iterator();
+            while (iterator.hasNext() && batch.size() < MAX_BATCH_FILES) {
+                var entry = iterator.next();
+                if (isBatchable(entry.getValue())) {
+                    batch.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+
+        tasksInProgress++;
+        CompletableFuture<Void> future = batchDownloadTask(batch);
+
+        synchronized (downloadsInProgress) {
+            batch.forEach((hashAndPath, queuedDownload) -> downloadsInProgress.put(hashAndPath, new DownloadData(future, queuedDownload.file)));
+        }
+    }
+
+    /**
+     * Returns a future with the hash of the downloaded file, or null if it has to be computed from the file.
+     */
+    private CompletableFuture<String> hostDownloadFile(FileInspection.HashPathPair hashPathPair, QueuedDownload queuedDownload) throws IOException {
         Path outFile = queuedDownload.file;
 
+        String baseHash = null;
         if (Files.exists(outFile)) {
-            if (Objects.equals(hashPathPair.hash(), CustomFileUtils.getHash(outFile))) {
-                return;
-            } else {
-                CustomFileUtils.forceDelete(outFile);
+            String hash = CustomFileUtils.getHash(outFile);
+            if (Objects.equals(hashPathPair.hash(), hash)) {
+                return CompletableFuture.completedFuture(hash);
             }
+
+            baseHash = hash;
         }
 
-        CustomFileUtils.setupFilePaths(outFile);
+        // Downloads into a .part file which is kept if the download fails, so the next attempt (even after a restart) resumes where this one stopped
+        Path partFile = outFile.resolveSibling(outFile.getFileName() + ".part");
+        CustomFileUtils.setupFilePaths(partFile);
+        long offset = Files.size(partFile);
+
+        // Older version of the file, large files are downloaded chunk by chunk, the host may send just a patch for smaller ones
+        if (baseHash != null && offset == 0 && queuedDownload.chunks != null) {
+            return hostDownloadFileChunked(hashPathPair, queuedDownload, outFile, partFile);
+        } else if (baseHash != null && offset == 0 && Files.size(outFile) <= DeltaCache.MAX_PATCHED_FILE_SIZE) {
+            return hostDownloadFileDelta(hashPathPair, outFile, partFile, baseHash);
+        } else if (baseHash != null) {
+            CustomFileUtils.forceDelete(outFile);
+        }
+
+        if (offset > 0) {
+            LOGGER.info("Resuming download of {} from {} bytes", outFile.getFileName(), offset);
+            if (queuedDownload.attempts == 0) { // Left over from previous game session, these bytes won't be downloaded again
+                bytesToDownload -= offset;
+            }
+        }
+
+        byte[] hash = hashPathPair.hash().getBytes(StandardCharsets.UTF_8);
+        IntCallback chunkCallback = (bytes) -> {
+            bytesDownloaded += bytes;
+            speedMeter.addDownloadedBytes(bytes);
+        };
+
+        // Fresh downloads of large files may get split across idle connections, those aren't verified by the download client
+        CompletableFuture<Boolean> future = offset == 0 && queuedDownload.size > 0
+                ? downloadClient.downloadFileInRanges(hash, partFile, queuedDownload.size, chunkCallback).thenApply(split -> !split)
+                : downloadClient.downloadFile(hash, partFile, offset, chunkCallback).thenApply(path -> true);
+
+        return future.thenApply(verified -> {
+            try {
+                Files.move(partFile, outFile, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return verified ? hashPathPair.hash() : null;
+        });
+    }
+
+    private CompletableFuture<String> hostDownloadFileChunked(FileInspection.HashPathPair hashPathPair, QueuedDownload queuedDownload, Path outFile, Path partFile) throws IOException {
+        long[] received = new long[1];
+        IntCallback chunkCallback = (bytes) -> {
+            received[0] += bytes;
+            bytesDownloaded += bytes;
+            speedMeter.addDownloadedBytes(bytes);
+        };
+
+        byte[] hash = hashPathPair.hash().getBytes(StandardCharsets.UTF_8);
+        return downloadClient.downloadFileChunked(hash, queuedDownload.chunks, outFile, partFile, chunkCallback).thenApply(path -> {
+            try {
+                long size = Files.size(partFile);
+                LOGGER.info("Reused chunks of {}, downloaded {} of {} bytes", outFile.getFileName(), received[0], size);
+                bytesDownloaded += Math.max(0, size - received[0]); // Copied from the previous version
+
+                Files.move(partFile, outFile, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return null; // Chunks aren't verified while received
+        });
+    }
+
+    private CompletableFuture<String> hostDownloadFileDelta(FileInspection.HashPathPair hashPathPair, Path outFile, Path partFile, String baseHash) {
+        long[] received = new long[1];
+        IntCallback chunkCallback = (bytes) -> {
+            received[0] += bytes;
+            bytesDownloaded += bytes;
+            speedMeter.addDownloadedBytes(bytes);
+        };
+
+        byte[] hash = hashPathPair.hash().getBytes(StandardCharsets.UTF_8);
+        return downloadClient.downloadFileDelta(hash, baseHash.getBytes(StandardCharsets.UTF_8), outFile, partFile, chunkCallback).thenApply(path -> {
+            try {
+                long size = Files.size(partFile);
+                if (received[0] < size) {
+                    LOGGER.info("Patched {}, downloaded {} of {} bytes", outFile.getFileName(), received[0], size);
+                    bytesDownloaded += size - received[0]; // The rest of the file didn't have to be downloaded
+                }
+
+                Files.move(partFile, outFile, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return hashPathPair.hash();
+        });
+    }
 
-        var future = downloadClient.downloadFile(hashPathPair.hash().getBytes(StandardCharsets.UTF_8), outFile, (bytes) -> {
+    private CompletableFuture<Void> hostDownloadFiles(Map<FileInspection.HashPathPair, QueuedDownload> batch) throws IOException {
+        List<byte[]> hashes = new ArrayList<>(batch.size());
+        List<Path> outFiles = new ArrayList<>(batch.size());
+
+        for (var entry : batch.entrySet()) {
+            Path outFile = entry.getValue().file;
+
+            if (Files.exists(outFile)) {
+                if (Objects.equals(entry.getKey().hash(), CustomFileUtils.getHash(outFile))) {
+                    continue;
+                } else {
+                    CustomFileUtils.forceDelete(outFile);
+                }
+            }
+
+            CustomFileUtils.setupFilePaths(outFile);
+            hashes.add(entry.getKey().hash().getBytes(StandardCharsets.UTF_8));
+            outFiles.add(outFile);
+        }
+
+        if (hashes.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        var future = downloadClient.downloadFiles(hashes.toArray(byte[][]::new), outFiles.toArray(Path[]::new), (bytes) -> {
             bytesDownloaded += bytes;
             speedMeter.addDownloadedBytes(bytes);
         });
-        future.join();
+        return future.thenAccept(paths -> { });
     }
 
-    private void httpDownloadFile(String url, FileInspection.HashPathPair hashPathPair, QueuedDownload queuedDownload) throws IOException, InterruptedException {
+    /**
+     * Returns the hash of the downloaded file, computed while downloading it.
+     */
+    private String httpDownloadFile(String url, FileInspection.HashPathPair hashPathPair, QueuedDownload queuedDownload) throws IOException, InterruptedException {
 
         Path outFile = queuedDownload.file;
 
         if (Files.exists(outFile)) {
-            if (Objects.equals(hashPathPair.hash(), CustomFileUtils.getHash(outFile))) {
-                return;
+            String hash = CustomFileUtils.getHash(outFile);
+            if (Objects.equals(hashPathPair.hash(), hash)) {
+                return hash;
             } else {
                 CustomFileUtils.forceDelete(outFile);
             }
@@ -177,6 +458,12 @@ public class DownloadManager {
         CustomFileUtils.setupFilePaths(outFile);
 
         URLConnection connection = getHttpConnection(url);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
 
         try (OutputStream outputStream = new FileOutputStream(outFile.toFile());
              InputStream rawInputStream = new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE);
@@ -189,12 +476,15 @@ public class DownloadManager {
                 bytesDownloaded += bytesRead;
                 speedMeter.addDownloadedBytes(bytesRead);
                 outputStream.write(buffer, 0, bytesRead);
+                digest.update(buffer, 0, bytesRead);
 
                 if (Thread.currentThread().isInterrupted()) {
                     throw new InterruptedException("Download got cancelled");
                 }
             }
         }
+
+        return CustomFileUtils.convertBytesToHex(digest.digest());
     }
 
     private URLConnection getHttpConnection(String url) throws IOException {
@@ -283,12 +573,20 @@ public class DownloadManager {
         private final Path file;
         private final List<String> urls;
         private int attempts;
+        private final long size;
+        private final List<FileChunker.Chunk> chunks;
         private final Runnable successCallback;
         private final Runnable failureCallback;
         public QueuedDownload(Path file, List<String> urls, int attempts, Runnable successCallback, Runnable failureCallback) {
+            this(file, urls, attempts, -1, null, successCallback, failureCallback);
+        }
+
+        public QueuedDownload(Path file, List<String> urls, int attempts, long size, List<FileChunker.Chunk> chunks, Runnable successCallback, Runnable failureCallback) {
             this.file = file;
             this.urls = urls;
             this.attempts = attempts;
+            this.size = size;
+            this.chunks = chunks;
             this.successCallback = successCallback;
             this.failureCallback = failureCallback;
         }
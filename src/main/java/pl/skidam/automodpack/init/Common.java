@@ -4,6 +4,7 @@ import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.Identifier;
 import pl.skidam.automodpack.loader.GameCall;
 import pl.skidam.automodpack.networking.ModPackets;
+import pl.skidam.automodpack_core.auth.SecretsStore;
 import pl.skidam.automodpack_core.modpack.Modpack;
 import pl.skidam.automodpack_core.loader.LoaderManagerService;
 import pl.skidam.automodpack_core.protocol.netty.NettyServer;
@@ -51,6 +52,7 @@ public class Common {
             return;
         }
 
+        SecretsStore.loadHostSecrets();
         hostServer.start();
     }
 
@@ -60,7 +62,9 @@ public class Common {
         }
 
         hostServer.stop();
+        hostServer.shutdownTransferExecutorGroup();
         modpack.shutdownExecutor();
+        SecretsStore.flushHostSecrets();
     }
 
     public static Identifier id(String path) {
@@ -30,6 +30,7 @@ public abstract class ServerNetworkIoMixin {
             return;
         }
 
-        channel.pipeline().addFirst(MOD_ID, new ProtocolServerHandler(GlobalVariables.hostServer.getSslCtx()));
+        // Transfers run on their own threads, the network threads of the server handle game packets
+        channel.pipeline().addFirst(MOD_ID, new ProtocolServerHandler(GlobalVariables.hostServer.getSslCtx(), GlobalVariables.hostServer.getTransferExecutorGroup()));
     }
 }
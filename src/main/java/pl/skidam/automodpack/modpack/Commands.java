@@ -3,6 +3,7 @@ package pl.skidam.automodpack.modpack;
 import com.mojang.authlib.GameProfile;
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.LongArgumentType;
 import com.mojang.brigadier.context.CommandContext;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.util.Formatting;
@@ -15,6 +16,7 @@ import pl.skidam.automodpack_core.config.Jsons;
 
 import java.util.Set;
 
+import static net.minecraft.server.command.CommandManager.argument;
 import static net.minecraft.server.command.CommandManager.literal;
 import static pl.skidam.automodpack_core.GlobalVariables.*;
 
@@ -47,6 +49,20 @@ public class Commands {
                                         .requires((source) -> source.hasPermissionLevel(3))
                                         .executes(Commands::connections)
                                 )
+                                .then(literal("bandwidth")
+                                        .requires((source) -> source.hasPermissionLevel(3))
+                                        .executes(Commands::bandwidth)
+                                        .then(literal("global")
+                                                .then(argument("limit", LongArgumentType.longArg(0))
+                                                        .executes(context -> setBandwidthLimit(context, true))
+                                                )
+                                        )
+                                        .then(literal("connection")
+                                                .then(argument("limit", LongArgumentType.longArg(0))
+                                                        .executes(context -> setBandwidthLimit(context, false))
+                                                )
+                                        )
+                                )
                         )
                         .then(literal("config")
                                 .requires((source) -> source.hasPermissionLevel(3))
@@ -81,11 +97,41 @@ public class Commands {
         return Command.SINGLE_SUCCESS;
     }
 
+    private static int bandwidth(CommandContext<ServerCommandSource> context) {
+        var trafficCounter = hostServer.getTrafficShaper().trafficCounter();
+        send(context, "Global bandwidth limit", Formatting.YELLOW, formatBandwidthLimit(serverConfig.hostBandwidthLimit), Formatting.WHITE, false);
+        send(context, "Connection bandwidth limit", Formatting.YELLOW, formatBandwidthLimit(serverConfig.hostConnectionBandwidthLimit), Formatting.WHITE, false);
+        send(context, "Current upload", Formatting.YELLOW, trafficCounter.lastWriteThroughput() / 1024 + " KB/s", Formatting.WHITE, false);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int setBandwidthLimit(CommandContext<ServerCommandSource> context, boolean global) {
+        long limit = LongArgumentType.getLong(context, "limit");
+        Util.getMainWorkerExecutor().execute(() -> {
+            if (global) {
+                serverConfig.hostBandwidthLimit = limit;
+            } else {
+                serverConfig.hostConnectionBandwidthLimit = limit;
+            }
+
+            ConfigTools.save(serverConfigFile, serverConfig);
+            hostServer.updateBandwidthLimits();
+            send(context, (global ? "Global" : "Connection") + " bandwidth limit set", Formatting.GREEN, formatBandwidthLimit(limit), Formatting.WHITE, true);
+        });
+
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static String formatBandwidthLimit(long limit) {
+        return limit <= 0 ? "unlimited" : limit + " KB/s";
+    }
+
     private static int reload(CommandContext<ServerCommandSource> context) {
         Util.getMainWorkerExecutor().execute(() -> {
             var tempServerConfig = ConfigTools.load(serverConfigFile, Jsons.ServerConfigFields.class);
             if (tempServerConfig != null) {
                 serverConfig = tempServerConfig;
+                hostServer.updateBandwidthLimits();
                 send(context, "AutoModpack server config reloaded!", Formatting.GREEN, true);
             } else {
                 send(context, "Error while reloading config file!", Formatting.RED, true);
@@ -165,7 +211,7 @@ public class Commands {
     private static int about(CommandContext<ServerCommandSource> context) {
         send(context, "AutoModpack", Formatting.GREEN, AM_VERSION, Formatting.WHITE, false);
         send(context, "/automodpack generate", Formatting.YELLOW, false);
-        send(context, "/automodpack host start/stop/restart/connections", Formatting.YELLOW, false);
+        send(context, "/automodpack host start/stop/restart/connections/bandwidth", Formatting.YELLOW, false);
         send(context, "/automodpack config reload", Formatting.YELLOW, false);
         return Command.SINGLE_SUCCESS;
     }
@@ -9,13 +9,15 @@ public class DataPacket {
     public String modpackName;
     public Secrets.Secret secret;
     public boolean modRequired;
+    public String contentHash; // Hash of the modpack content, null if the server doesn't have it
 
-    public DataPacket(String address, Integer port, String modpackName, Secrets.Secret secret, boolean modRequired) {
+    public DataPacket(String address, Integer port, String modpackName, Secrets.Secret secret, boolean modRequired, String contentHash) {
         this.address = address;
         this.port = port;
         this.modpackName = modpackName;
         this.secret = secret;
         this.modRequired = modRequired;
+        this.contentHash = contentHash;
     }
 
     public String toJson() {
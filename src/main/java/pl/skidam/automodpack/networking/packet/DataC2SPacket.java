@@ -9,6 +9,7 @@ import pl.skidam.automodpack.mixin.core.ClientLoginNetworkHandlerAccessor;
 import pl.skidam.automodpack.networking.content.DataPacket;
 import pl.skidam.automodpack_core.auth.Secrets;
 import pl.skidam.automodpack_core.auth.SecretsStore;
+import pl.skidam.automodpack_core.config.ConfigTools;
 import pl.skidam.automodpack_loader_core.ReLauncher;
 import pl.skidam.automodpack_loader_core.client.ModpackUpdater;
 import pl.skidam.automodpack_loader_core.client.ModpackUtils;
@@ -21,7 +22,6 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 
 import static pl.skidam.automodpack_core.GlobalVariables.*;
-import static pl.skidam.automodpack_core.config.ConfigTools.GSON;
 
 public class DataC2SPacket {
     public static CompletableFuture<PacketByteBuf> receive(MinecraftClient minecraftClient, ClientLoginNetworkHandler handler, PacketByteBuf buf) {
@@ -59,10 +59,13 @@ public class DataC2SPacket {
             Boolean needsDisconnecting = null;
 
             Path modpackDir = ModpackUtils.getModpackPath(address, modpackName);
-            var optionalServerModpackContent = ModpackUtils.requestServerModpackContent(address, secret);
+
+            // If the stored content has the same hash as the server's, there is nothing to fetch or check
+            var optionalUnchangedModpackContent = ModpackUtils.getUnchangedModpackContent(dataPacket.contentHash, modpackDir);
+            var optionalServerModpackContent = optionalUnchangedModpackContent.isPresent() ? optionalUnchangedModpackContent : ModpackUtils.requestServerModpackContent(address, secret, modpackDir);
 
             if (optionalServerModpackContent.isPresent()) {
-                boolean update = ModpackUtils.isUpdate(optionalServerModpackContent.get(), modpackDir);
+                boolean update = optionalUnchangedModpackContent.isEmpty() && ModpackUtils.isUpdate(optionalServerModpackContent.get(), modpackDir);
 
                 if (update) {
                     disconnectImmediately(handler);
@@ -73,8 +76,8 @@ public class DataC2SPacket {
 
                     // save latest modpack content
                     var modpackContentFile = modpackDir.resolve(hostModpackContentFile.getFileName());
-                    if (Files.exists(modpackContentFile)) {
-                        Files.writeString(modpackContentFile, GSON.toJson(optionalServerModpackContent.get()));
+                    if (optionalUnchangedModpackContent.isEmpty() && Files.exists(modpackContentFile)) {
+                        ConfigTools.saveModpackContent(modpackContentFile, optionalServerModpackContent.get());
                     }
 
                     if (selectedModpackChanged) {
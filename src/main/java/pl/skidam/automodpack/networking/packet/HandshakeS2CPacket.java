@@ -123,8 +123,11 @@ public class HandshakeS2CPacket {
             Secrets.Secret secret = Secrets.generateSecret();
             SecretsStore.saveHostSecret(profile.getId().toString(), secret);
 
+            // Clients which have the modpack with this content hash don't need to fetch the content
+            String contentHash = modpack.getContentHash().orElse(null);
+
             // We send empty string if hostIp/hostLocalIp is not specified in server config. Client will use ip by which it connected to the server in first place.
-            DataPacket dataPacket = new DataPacket(addressToSend, null, serverConfig.modpackName, secret, serverConfig.requireAutoModpackOnClient);
+            DataPacket dataPacket = new DataPacket(addressToSend, null, serverConfig.modpackName, secret, serverConfig.requireAutoModpackOnClient, contentHash);
 
             if (serverConfig.reverseProxy) {
                 // With reverse proxy we dont append port to the link, it should be already included in the link
@@ -149,7 +152,7 @@ public class HandshakeS2CPacket {
                 if (!addressToSend.isBlank()) {
                     LOGGER.info("Sending {} modpack url: {}:{}", profile.getName(), addressToSend, portToSend);
                 }
-                dataPacket = new DataPacket(addressToSend, portToSend, serverConfig.modpackName, secret, serverConfig.requireAutoModpackOnClient);
+                dataPacket = new DataPacket(addressToSend, portToSend, serverConfig.modpackName, secret, serverConfig.requireAutoModpackOnClient, contentHash);
             }
 
             String packetContentJson = dataPacket.toJson();